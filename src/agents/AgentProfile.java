@@ -0,0 +1,37 @@
+package agents;
+
+/**
+ * The kinds of agent in the model and what sets them apart. They all travel
+ * from home to work and back along the road network; they differ in how far
+ * they can move in a step.
+ *
+ * @author KJGarbutt
+ *
+ */
+public enum AgentProfile	{
+
+    MAIN("Main", 70),
+    NGO("NGO", 70),
+    ELDERLY("Elderly", 30),
+    LIMITED_ACTIONS("LimitedActions", 50);
+
+    final String label;
+    // how far an agent moves along the road in each step, before traffic
+    final double moveRate;
+
+
+    AgentProfile(String label, double moveRate)	{
+        this.label = label;
+        this.moveRate = moveRate;
+    }
+
+
+    public String getLabel()	{
+        return label;
+    }
+
+
+    public double getMoveRate()	{
+        return moveRate;
+    }
+}
@@ -0,0 +1,700 @@
+package agents;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.planargraph.Node;
+import network.EdgeGeometry;
+import network.Route;
+import network.RoutePlanner;
+import network.RoutingGraph;
+import sim.MK_5;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+import sim.field.geo.GeomVectorField;
+import sim.util.geo.MasonGeometry;
+import sim.util.geo.PointMoveTo;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Every agent travelling between home and work, held as parallel arrays of
+ * primitives rather than one object per agent, and moved by a single
+ * Steppable.
+ *
+ * Agent i is the i'th slot of each array: its shared Route, how far along
+ * the whole route it is and which way it is heading, the arc of the route
+ * and road that puts it on, and a few flag bits. A step moves the distance
+ * along the route, and if that crosses junctions the new arc is found by a
+ * binary search over the route's summed arc lengths, however many short
+ * roads were crossed. What differs between kinds of agent
+ * lives in the profile table, indexed by AgentProfile, so there is one
+ * movement kernel for all of them. Each step walks the arrays in order.
+ *
+ * Agents have no geometry of their own. A GeomVectorField can be attached for
+ * each profile to display it, in which case a point is kept per agent and
+ * moved as the agent moves; without one, nothing is allocated or computed
+ * for display.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class AgentStore implements Steppable	{
+    private static final long serialVersionUID = 1L;
+
+    // agents per block in two-phase stepping
+    static final int CHUNK_SIZE = 1024;
+
+    // flag bits in state[]
+    static final byte ON_EDGE = 1;	// placed on a road
+    static final byte ARRIVED = 2;	// at the end of its route
+    static final byte REROUTE = 4;	// compare routes at the next junction
+
+    final MK_5 world;
+    final RoutingGraph graph;
+    final RoutePlanner planner;
+
+    int count = 0;
+    // per agent
+    byte[] profile;
+    byte[] state;
+    byte[] pathDirection;	// 1 towards work, -1 towards home
+    int[] edge;	// road id
+    double[] offset;	// distance along the route from its start
+    float[] speed;	// last distance moved in a step, for charts
+    Route[] route;	// shared with the other agents on the same trip
+    int[] routeIndex;	// arc of the route being travelled
+    int[] routeVersion;	// planner's route version when the route was checked
+    int[] home, work;	// node ids
+
+    // per profile
+    final AgentProfile[] profiles = AgentProfile.values();
+    final boolean[] toWork;
+    final GeomVectorField[] layers;
+
+    // agents of each profile on each road, and optionally which ones
+    final EdgeOccupancy occupancy;
+    EdgeMembers members = null;
+
+    // per road
+    final EdgeGeometry geometry;
+    final double[] edgeLength;
+    // whether each arc runs the same way as its road's line
+    final boolean[] arcForward;
+
+    // display points, only once a layer has been attached
+    MasonGeometry[] points = null;
+    final GeometryFactory factory = new GeometryFactory();
+
+    // runs the compute phase on its threads; null to run it on the
+    // calling thread
+    transient ForkJoinPool pool = null;
+    transient Chunk[] chunks = new Chunk[0];
+
+
+    public AgentStore(MK_5 world)	{
+        this.world = world;
+        this.graph = world.routingGraph;
+        this.planner = world.planner;
+        allocate(1024);
+
+        toWork = new boolean[profiles.length];
+        Arrays.fill(toWork, true);
+        layers = new GeomVectorField[profiles.length];
+
+        int edges = graph.getEdgeCount();
+        occupancy = new EdgeOccupancy(edges, profiles.length);
+        geometry = world.edgeGeometry != null ? world.edgeGeometry : new EdgeGeometry(graph);
+        edgeLength = new double[edges];
+        int[] lineStart = new int[edges];
+        for (int e = 0; e < edges; e++)	{
+            LineString line = graph.edge(e).getLine();
+            edgeLength[e] = geometry.length(e);
+            lineStart[e] = graph.nodeAt(line.getCoordinateN(0));
+        }
+        arcForward = new boolean[graph.getArcCount()];
+        for (int a = 0; a < arcForward.length; a++)	{
+            int e = graph.arcEdge(a);
+            arcForward[a] = e >= 0 && graph.arcTail(a) == lineStart[e];
+        }
+        setThreads(world.stepThreads);
+    }
+
+
+    /**
+     * Chooses how many threads agents are moved on each step.
+     *
+     * A step has two phases. First, blocks of agents are moved, all against
+     * the number of agents on each road at the start of the step; whatever
+     * changes shared state - those numbers, and asking the planner about a
+     * route at a junction - is put off. Then what was put off is done on the
+     * calling thread, in agent order. No agent sees another's move from the
+     * same step and the blocks do not depend on the number of threads, so
+     * runs come out the same however many threads they use, none included.
+     * @param threads how many threads to move the blocks on, or 0 to move
+     * them on the calling thread
+     */
+    public void setThreads(int threads)	{
+        if (pool != null)	{
+            pool.shutdown();
+        }
+        pool = threads > 0 ? new ForkJoinPool(threads) : null;
+    }
+
+
+    void allocate(int capacity)	{
+        profile = profile == null ? new byte[capacity] : Arrays.copyOf(profile, capacity);
+        state = state == null ? new byte[capacity] : Arrays.copyOf(state, capacity);
+        pathDirection = pathDirection == null
+            ? new byte[capacity] : Arrays.copyOf(pathDirection, capacity);
+        edge = edge == null ? new int[capacity] : Arrays.copyOf(edge, capacity);
+        offset = offset == null ? new double[capacity] : Arrays.copyOf(offset, capacity);
+        speed = speed == null ? new float[capacity] : Arrays.copyOf(speed, capacity);
+        route = route == null ? new Route[capacity] : Arrays.copyOf(route, capacity);
+        routeIndex = routeIndex == null ? new int[capacity] : Arrays.copyOf(routeIndex, capacity);
+        routeVersion = routeVersion == null
+            ? new int[capacity] : Arrays.copyOf(routeVersion, capacity);
+        home = home == null ? new int[capacity] : Arrays.copyOf(home, capacity);
+        work = work == null ? new int[capacity] : Arrays.copyOf(work, capacity);
+        if (points != null)	{
+            points = Arrays.copyOf(points, capacity);
+        }
+    }
+
+
+    /**
+     * Displays the agents of a profile added from now on in a field
+     * @param p the profile
+     * @param layer the field to add their points to
+     */
+    public void attachLayer(AgentProfile p, GeomVectorField layer)	{
+        layers[p.ordinal()] = layer;
+        if (points == null)	{
+            points = new MasonGeometry[profile.length];
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    ////////////////////////// ROUTING /////////////////////////////
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds an agent at its home junction and sets it off along a route to
+     * work, shared with others making the same trip
+     * @param p what kind of agent it is
+     * @param homeNode where it starts
+     * @param workNode where it is heading
+     * @return the agent's index, or -1 if there is no route between the two,
+     * in which case nothing is added
+     */
+    public int add(AgentProfile p, Node homeNode, Node workNode)	{
+        // fail at once if home and work are in disconnected parts of the network
+        if (!planner.mayReach(homeNode, workNode))	{
+            return -1;
+        }
+        Route path = planner.assignPath(homeNode, workNode);
+        if (path.isEmpty())	{
+            return -1;
+        }
+        if (count == profile.length)	{
+            allocate(2 * count);
+        }
+        int i = count++;
+        profile[i] = (byte) p.ordinal();
+        state[i] = ON_EDGE;
+        pathDirection[i] = 1;
+        home[i] = graph.nodeId(homeNode);
+        work[i] = graph.nodeId(workNode);
+        route[i] = path;
+        routeIndex[i] = 0;
+        routeVersion[i] = planner.getRouteVersion();
+        offset[i] = 0;
+        edge[i] = -1;
+        enterEdge(i, path.arc(0));
+
+        GeomVectorField layer = layers[p.ordinal()];
+        if (layer != null)	{
+            MasonGeometry point = new MasonGeometry(
+                factory.createPoint(new Coordinate(homeNode.getCoordinate())));
+            point.isMovable = true;
+            layer.addGeometry(point);
+            points[i] = point;
+        }
+        return i;
+    }
+
+
+    /**
+     * Called every tick by the scheduler. Moves every agent along its path.
+     */
+    public void step(SimState state)	{
+        // compute: move every agent against the roads' occupancy as it was
+        // at the start of the step, leaving anything shared for later
+        int used = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunks == null)	{
+            chunks = new Chunk[0]; // not saved with the store
+        }
+        if (chunks.length < used)	{
+            Chunk[] grown = Arrays.copyOf(chunks, Math.max(used, 2 * chunks.length));
+            for (int c = chunks.length; c < grown.length; c++)	{
+                grown[c] = new Chunk();
+            }
+            chunks = grown;
+        }
+        if (pool == null || used <= 1)	{
+            // the same blocks, one after another on this thread
+            for (int c = 0; c < used; c++)	{
+                chunks[c].compute(c * CHUNK_SIZE, Math.min(count, (c + 1) * CHUNK_SIZE));
+            }
+        } else	{
+            pool.invoke(new ComputePhase(0, used));
+        }
+
+        // commit: apply what was left, in agent order
+        for (int c = 0; c < used; c++)	{
+            chunks[c].commit();
+        }
+    }
+
+
+    /**
+     * Moves agent i along its road, as far as the junction at its end
+     * @return how much further the agent would have gone past the junction,
+     * in which case it is left where it was; 0 or less if it did not reach it
+     */
+    double moveAlong(int i)	{
+        int p = profile[i];
+
+        // make sure that we're heading in the right direction
+        if ((toWork[p] && pathDirection[i] < 0) || (!toWork[p] && pathDirection[i] > 0))	{
+            flip(i);
+        }
+
+        double moved = profiles[p].moveRate * congestion(i);
+        speed[i] = (float) moved;
+
+        // still short of the junction at the end of the road?
+        double beyond = moved - (pathDirection[i] > 0
+            ? route[i].distanceTo(routeIndex[i] + 1) - offset[i]
+            : offset[i] - route[i].distanceTo(routeIndex[i]));
+        if (beyond <= 0)	{
+            offset[i] += pathDirection[i] * moved;
+        }
+        return beyond;
+    }
+
+
+    /**
+     * @return whether agent i has to ask the planner about its route on
+     * reaching a junction
+     */
+    boolean needsRouteCheck(int i)	{
+        return routeVersion[i] != planner.getRouteVersion() || (state[i] & REROUTE) != 0;
+    }
+
+
+    /**
+     * At a junction: if roads have opened or closed, looks the rest of agent
+     * i's way up again, or a faster way if it has been asked to
+     */
+    void checkRoute(int i)	{
+        if (routeVersion[i] != planner.getRouteVersion())	{
+            updateRoute(i, 0);
+        } else if ((state[i] & REROUTE) != 0)	{
+            // congestion: only switch if the new route is clearly faster
+            updateRoute(i, world.rerouteGain);
+        }
+    }
+
+
+    /**
+     * Carries agent i on along its route from the junction it has reached,
+     * to whichever arc the rest of its move ends on. The road it is counted
+     * on is left to the caller to change.
+     * @param beyond how far past the junction to go
+     */
+    void carry(int i, double beyond)	{
+        Route path = route[i];
+        boolean backwards = pathDirection[i] < 0;
+        double junction = backwards
+            ? path.distanceTo(routeIndex[i]) : path.distanceTo(routeIndex[i] + 1);
+        double target = junction + pathDirection[i] * beyond;
+        if (target > path.getLength() || target < 0)	{
+            // past the end of the route: we've arrived
+            state[i] |= ARRIVED;
+            offset[i] = backwards ? 0 : path.getLength();
+            routeIndex[i] = backwards ? 0 : path.size() - 1;
+        } else	{
+            offset[i] = target;
+            routeIndex[i] = path.indexAt(target, backwards);
+        }
+    }
+
+
+    /**
+     * @return the fraction of its usual rate agent i can move at, slowed by
+     * the other agents of its kind on the same road
+     */
+    double congestion(int i)	{
+        return speedFactor(edge[i], occupancy.count(profile[i], edge[i]));
+    }
+
+
+    /**
+     * @return the fraction of its usual rate an agent can move at on road e
+     * with traffic agents of its kind there, itself included
+     */
+    double speedFactor(int e, int traffic)	{
+        double factor = 1000 * edgeLength[e] / (traffic * 5);
+        return Math.min(1, factor);
+    }
+
+
+    /**
+     * How many times longer road e takes to travel than when it is empty,
+     * for the kind of agent most slowed there; the inverse of congestion()
+     * for an agent of that kind
+     */
+    public double slowdown(int e)	{
+        int traffic = 0;
+        for (int p = 0; p < occupancy.getTypeCount(); p++)	{
+            traffic = Math.max(traffic, occupancy.count(p, e));
+        }
+        if (traffic == 0 || edgeLength[e] <= 0)	{
+            return 1;
+        }
+        return 1 / speedFactor(e, traffic);
+    }
+
+
+    /**
+     * Puts agent i on the road under an arc of its route
+     */
+    void enterEdge(int i, int arc)	{
+        int e = graph.arcEdge(arc);
+        occupancy.move(profile[i], edge[i], e);
+        if (members != null)	{
+            members.move(i, e);
+        }
+        edge[i] = e;
+    }
+
+
+    /**
+     * Replaces the rest of agent i's path with the best route from the
+     * junction at the end of its current road. The planner repairs its trees
+     * when roads close, so this is a lookup rather than a fresh search.
+     * @param minGain the fraction of the remaining route's cost the new route
+     * must save to be taken, or 0 to take it regardless
+     */
+    void updateRoute(int i, double minGain)	{
+        routeVersion[i] = planner.getRouteVersion();
+        state[i] &= ~REROUTE;
+
+        // the junction we are about to reach, and where we are heading
+        Route path = route[i];
+        int index = routeIndex[i];
+        int arc = path.arc(index);
+        int junction = pathDirection[i] > 0 ? graph.arcHead(arc) : graph.arcTail(arc);
+        int goal = pathDirection[i] > 0 ? work[i] : home[i];
+        Route rest = planner.findPath(junction, goal);
+        if (rest.isEmpty() && junction != goal)	{
+            return; // cut off: keep to the old path in case the roads reopen
+        }
+
+        // keep to the current route unless the new one is enough faster, so
+        // that agents do not swap back and forth between two roads
+        if (minGain > 0)	{
+            double current = pathDirection[i] > 0
+                ? planner.pathCost(path, index + 1, path.size(), false)
+                : planner.pathCost(path, 0, index, true);
+            double better = planner.pathCost(rest, 0, rest.size(), false);
+            if (better >= (1 - minGain) * current)	{
+                return;
+            }
+        }
+
+        // splice the new route onto the part of the path already travelled
+        if (pathDirection[i] > 0)	{
+            route[i] = planner.replaceAfter(path, index + 1, rest);
+        } else	{
+            route[i] = planner.replaceBefore(path, index, rest);
+            routeIndex[i] = rest.size();
+            // the route now starts somewhere else
+            offset[i] += route[i].distanceTo(routeIndex[i]) - path.distanceTo(index);
+        }
+    }
+
+
+    /**
+     * Turns agent i round to head back the way it came
+     */
+    void flip(int i)	{
+        state[i] &= ~ARRIVED;
+        pathDirection[i] = (byte) -pathDirection[i];
+    }
+
+
+    /**
+     * Asks agent i to look for a faster route at its next junction
+     * @return false if it is not travelling, so there is nothing to do
+     */
+    public boolean requestReroute(int i)	{
+        if ((state[i] & (ON_EDGE | ARRIVED)) != ON_EDGE)	{
+            return false;
+        }
+        state[i] |= REROUTE;
+        return true;
+    }
+
+
+    /**
+     * @return whether every agent of a profile has reached its destination
+     */
+    public boolean allArrived(AgentProfile p)	{
+        for (int i = 0; i < count; i++)	{
+            if (profile[i] == p.ordinal() && (state[i] & ARRIVED) == 0)	{
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Sends every agent of a profile back the other way
+     */
+    public void turnBack(AgentProfile p)	{
+        int k = p.ordinal();
+        toWork[k] = !toWork[k];
+        for (int i = 0; i < count; i++)	{
+            if (profile[i] == k)	{
+                flip(i);
+            }
+        }
+    }
+
+
+    ////////////////// HELPER FUNCTIONS ////////////////////////
+
+    /**
+     * Moves agent i's display point to where it is on its road
+     * @param location scratch space for the point
+     * @param pointMoveTo scratch space for the move
+     */
+    void updatePoint(int i, Coordinate location, PointMoveTo pointMoveTo)	{
+        if (points == null || points[i] == null)	{
+            return;
+        }
+        geometry.locate(graph.arcEdge(route[i].arc(routeIndex[i])), linePosition(i), location);
+        pointMoveTo.setCoordinate(location);
+        // moved in place: the layer's spatial index is rebuilt after each step
+        points[i].geometry.apply(pointMoveTo);
+        points[i].geometry.geometryChanged();
+    }
+
+
+    /**
+     * @return how far along its road's line agent i is
+     */
+    double linePosition(int i)	{
+        // the road under the route, which in two-phase stepping can be
+        // ahead of the one the agent is counted on until the commit phase
+        int arc = route[i].arc(routeIndex[i]);
+        int e = graph.arcEdge(arc);
+        double along = offset[i] - route[i].distanceTo(routeIndex[i]);
+        along = Math.max(0, Math.min(edgeLength[e], along));
+        return arcForward[arc] ? along : edgeLength[e] - along;
+    }
+
+
+    /**
+     * @return the number of agents of each profile, and in all, on each road
+     */
+    public EdgeOccupancy getOccupancy()	{
+        return occupancy;
+    }
+
+
+    /**
+     * Starts keeping track of which agents are on each road, not just how
+     * many, for code that needs to visit them
+     * @return the agents on each road
+     */
+    public EdgeMembers trackMembers()	{
+        if (members == null)	{
+            members = new EdgeMembers(occupancy.getEdgeCount(), profile.length);
+            for (int i = 0; i < count; i++)	{
+                members.move(i, edge[i]);
+            }
+        }
+        return members;
+    }
+
+
+    public int size()	{
+        return count;
+    }
+
+
+    public AgentProfile getProfile(int i)	{
+        return profiles[profile[i]];
+    }
+
+
+    public boolean hasArrived(int i)	{
+        return (state[i] & ARRIVED) != 0;
+    }
+
+
+    /**
+     * @return how far agent i moved in its last step, for charts
+     */
+    public double getSpeed(int i)	{
+        return speed[i];
+    }
+
+
+    /**
+     * @return how much further agent i has to go along its route
+     */
+    public double getRemainingDistance(int i)	{
+        return pathDirection[i] > 0 ? route[i].getLength() - offset[i] : offset[i];
+    }
+
+
+    /**
+     * @return how many more steps agent i will take to arrive, at its
+     * profile's rate with no traffic
+     */
+    public double getTicksToArrival(int i)	{
+        return getRemainingDistance(i) / profiles[profile[i]].moveRate;
+    }
+
+
+    public boolean isGoingToWork(AgentProfile p)	{
+        return toWork[p.ordinal()];
+    }
+
+
+    /**
+     * @return the number of agents of a profile
+     */
+    public int count(AgentProfile p)	{
+        int n = 0;
+        for (int i = 0; i < count; i++)	{
+            if (profile[i] == p.ordinal())	{
+                n++;
+            }
+        }
+        return n;
+    }
+
+
+    /**
+     * A block of CHUNK_SIZE agents in two-phase stepping, and what moving
+     * them left to be done in the commit phase
+     */
+    class Chunk	{
+        // agents whose road has changed, in order, and for those that
+        // reached a junction where the planner is needed, how far past it
+        // they still have to go
+        int[] pending = new int[64];
+        double[] beyond = new double[64];
+        int pendingCount = 0;
+        final Coordinate location = new Coordinate();
+        final PointMoveTo pointMoveTo = new PointMoveTo();
+
+
+        /**
+         * Moves agents from .. to - 1, as far as can be done without
+         * touching anything another thread might
+         */
+        void compute(int from, int to)	{
+            pendingCount = 0;
+            for (int i = from; i < to; i++)	{
+                if ((state[i] & (ON_EDGE | ARRIVED)) != ON_EDGE)	{
+                    continue;
+                }
+                double past = moveAlong(i);
+                if (past > 0)	{
+                    if (needsRouteCheck(i))	{
+                        defer(i, past);
+                        continue;
+                    }
+                    int index = routeIndex[i];
+                    carry(i, past);
+                    if (routeIndex[i] != index)	{
+                        defer(i, 0);
+                    }
+                }
+                updatePoint(i, location, pointMoveTo);
+            }
+        }
+
+
+        void defer(int i, double past)	{
+            if (pendingCount == pending.length)	{
+                pending = Arrays.copyOf(pending, 2 * pendingCount);
+                beyond = Arrays.copyOf(beyond, 2 * pendingCount);
+            }
+            pending[pendingCount] = i;
+            beyond[pendingCount] = past;
+            pendingCount++;
+        }
+
+
+        /**
+         * Finishes the moves put off in the compute phase
+         */
+        void commit()	{
+            for (int k = 0; k < pendingCount; k++)	{
+                int i = pending[k];
+                if (beyond[k] > 0)	{
+                    checkRoute(i);
+                    int index = routeIndex[i];
+                    carry(i, beyond[k]);
+                    if (routeIndex[i] != index)	{
+                        enterEdge(i, route[i].arc(routeIndex[i]));
+                    }
+                    updatePoint(i, location, pointMoveTo);
+                } else	{
+                    enterEdge(i, route[i].arc(routeIndex[i]));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The compute phase over a range of blocks, halving it until there is
+     * one block left
+     */
+    class ComputePhase extends RecursiveAction	{
+        private static final long serialVersionUID = 1L;
+
+        final int from, to;
+
+
+        ComputePhase(int from, int to)	{
+            this.from = from;
+            this.to = to;
+        }
+
+
+        @Override
+        protected void compute()	{
+            if (to - from <= 1)	{
+                for (int c = from; c < to; c++)	{
+                    chunks[c].compute(c * CHUNK_SIZE, Math.min(count, (c + 1) * CHUNK_SIZE));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ComputePhase(from, mid), new ComputePhase(mid, to));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package agents;
+
+import java.util.Arrays;
+
+/**
+ * Which agents are on each road, for code that needs the agents themselves
+ * rather than EdgeOccupancy's counts.
+ *
+ * Each road's agents form a doubly linked list threaded through arrays
+ * indexed by agent, so joining or leaving a road is O(1) and nothing is
+ * allocated as agents move. Walk a road's agents with first() and next().
+ *
+ * Not safe for concurrent updates.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class EdgeMembers	{
+
+    // first agent on each road, -1 if none
+    final int[] head;
+    final int[] size;
+    // neighbours of each agent on its road's list, -1 at either end
+    int[] next;
+    int[] prev;
+    // the road each agent is on, -1 if none
+    int[] edgeOf;
+
+
+    /**
+     * @param edgeCount the number of roads
+     * @param capacity the number of agents to make room for; grows as needed
+     */
+    public EdgeMembers(int edgeCount, int capacity)	{
+        head = new int[edgeCount];
+        Arrays.fill(head, -1);
+        size = new int[edgeCount];
+        next = new int[0];
+        prev = new int[0];
+        edgeOf = new int[0];
+        ensureCapacity(capacity);
+    }
+
+
+    void ensureCapacity(int capacity)	{
+        if (capacity <= edgeOf.length)	{
+            return;
+        }
+        int old = edgeOf.length;
+        capacity = Math.max(capacity, 2 * old);
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        edgeOf = Arrays.copyOf(edgeOf, capacity);
+        Arrays.fill(edgeOf, old, capacity, -1);
+    }
+
+
+    /**
+     * Moves an agent onto road e, off whichever road it was on
+     */
+    public void move(int agent, int e)	{
+        ensureCapacity(agent + 1);
+        if (edgeOf[agent] == e)	{
+            return;
+        }
+        remove(agent);
+        int first = head[e];
+        next[agent] = first;
+        prev[agent] = -1;
+        if (first >= 0)	{
+            prev[first] = agent;
+        }
+        head[e] = agent;
+        edgeOf[agent] = e;
+        size[e]++;
+    }
+
+
+    /**
+     * Takes an agent off the road it is on, if any
+     */
+    public void remove(int agent)	{
+        if (agent >= edgeOf.length || edgeOf[agent] < 0)	{
+            return;
+        }
+        int e = edgeOf[agent];
+        int before = prev[agent], after = next[agent];
+        if (before >= 0)	{
+            next[before] = after;
+        } else	{
+            head[e] = after;
+        }
+        if (after >= 0)	{
+            prev[after] = before;
+        }
+        edgeOf[agent] = -1;
+        size[e]--;
+    }
+
+
+    /**
+     * @return the first agent on road e, or -1 if there is none
+     */
+    public int first(int e)	{
+        return head[e];
+    }
+
+
+    /**
+     * @return the agent after the given one on its road, or -1
+     */
+    public int next(int agent)	{
+        return next[agent];
+    }
+
+
+    /**
+     * @return the road the agent is on, or -1
+     */
+    public int edgeOf(int agent)	{
+        return agent < edgeOf.length ? edgeOf[agent] : -1;
+    }
+
+
+    /**
+     * @return the number of agents on road e
+     */
+    public int size(int e)	{
+        return size[e];
+    }
+}
@@ -0,0 +1,102 @@
+package agents;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * How many agents of each type are on each road, and how many in total, by
+ * dense road id (RoutingGraph edge ids).
+ *
+ * The counts for a road sit side by side - its total, then one per type - so
+ * an agent reading its own type's count and the total touches one cache
+ * line. Updates are atomic, so agents stepped on several threads can enter
+ * and leave roads without a lock; reads see each count as of the moment it is
+ * read. Only counts are kept: EdgeMembers lists the agents on a road where
+ * that is really needed.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class EdgeOccupancy	{
+
+    final int edgeCount;
+    final int typeCount;
+    // per road: total, then each type
+    final int stride;
+    final AtomicIntegerArray counts;
+
+
+    /**
+     * @param edgeCount the number of roads
+     * @param typeCount the number of types of agent
+     */
+    public EdgeOccupancy(int edgeCount, int typeCount)	{
+        this.edgeCount = edgeCount;
+        this.typeCount = typeCount;
+        this.stride = typeCount + 1;
+        this.counts = new AtomicIntegerArray(edgeCount * stride);
+    }
+
+
+    /**
+     * Counts an agent of the given type onto road e
+     */
+    public void enter(int type, int e)	{
+        counts.incrementAndGet(e * stride);
+        counts.incrementAndGet(e * stride + 1 + type);
+    }
+
+
+    /**
+     * Counts an agent of the given type off road e
+     */
+    public void leave(int type, int e)	{
+        counts.decrementAndGet(e * stride);
+        counts.decrementAndGet(e * stride + 1 + type);
+    }
+
+
+    /**
+     * Moves an agent of the given type from one road to another
+     * @param from the road it leaves, or -1 if it was on none
+     * @param to the road it enters
+     */
+    public void move(int type, int from, int to)	{
+        if (from >= 0)	{
+            leave(type, from);
+        }
+        enter(type, to);
+    }
+
+
+    /**
+     * @return the number of agents of the given type on road e
+     */
+    public int count(int type, int e)	{
+        return counts.get(e * stride + 1 + type);
+    }
+
+
+    /**
+     * @return the number of agents of every type on road e
+     */
+    public int total(int e)	{
+        return counts.get(e * stride);
+    }
+
+
+    public int getEdgeCount()	{
+        return edgeCount;
+    }
+
+
+    public int getTypeCount()	{
+        return typeCount;
+    }
+
+
+    public void clear()	{
+        for (int i = 0; i < counts.length(); i++)	{
+            counts.set(i, 0);
+        }
+    }
+}
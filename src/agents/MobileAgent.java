@@ -5,15 +5,20 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.linearref.LengthIndexedLine;
-import network.AStar;
+import network.AStar_SWise;
+import network.EdgeGeometry;
 import network.GeoNode;
+import network.NetworkAdapter;
+import network.Route;
+import network.RoutePlanner;
+import sim.MK_5;
 import sim.field.geo.GeomVectorField;
 import sim.field.network.Edge;
 import sim.util.geo.MasonGeometry;
 import sim.util.geo.PointMoveTo;
 
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 //import sun.tools.tree.ThisExpression;
 
@@ -28,12 +33,25 @@ public class MobileAgent extends agents.SpatialAgent {
 	// network functionality
 	protected GeoNode node;
 	protected Coordinate goalPoint = null, startPoint = null;
-	protected AStar pathfinder = new AStar();
+	protected AStar_SWise pathfinder = new AStar_SWise();
+	// the world's roads as a Network, and the planner shared with every other agent, once
+	// the agent has been put on them
+	protected NetworkAdapter roads = null;
+	protected RoutePlanner planner = null;
 	protected int direction = 1;
 	protected Edge edge;
 	protected LengthIndexedLine segment = null;
 	protected double startIndex = 0., endIndex = 0., currentIndex = 0.;
-	protected ArrayList<Edge> path = null;
+	// the path may be shared with other agents and is never changed: the edges still
+	// to travel are path[0 .. pathIndex), taken from the end
+	protected List<Edge> path = null;
+	protected int pathIndex = 0;
+	// the world's cache of the roads' polylines, indexed by the roads' road ids; edgeId is
+	// the current edge's road in the cache, or -1 where segment is used instead
+	protected EdgeGeometry edgeGeometry = null;
+	protected int edgeId = -1;
+	Coordinate here = new Coordinate();
+	PointMoveTo pointMoveTo = new PointMoveTo();
 
 	// attributes
 	protected double speed = 0;
@@ -46,12 +64,62 @@ public class MobileAgent extends agents.SpatialAgent {
 	public MobileAgent(Coordinate c){ super((new GeometryFactory()).createPoint(c)); }
 	public MobileAgent(Point p){ super(p); }
 
+	/**
+	 * @param path - the edges to travel, in the order AStar_SWise returns them: the last
+	 * 		edge is taken first. Not copied, so the same path can be given to many agents.
+	 */
+	public void setPath(List<Edge> path){
+		this.path = path;
+		pathIndex = path == null ? 0 : path.size();
+	}
+
+	/**
+	 * @param route - a route from the RoutePlanner, followed along the adapter's Network. The
+	 * 		edges are looked up as they are taken, so the route is shared rather than copied.
+	 */
+	public void setRoute(Route route, NetworkAdapter adapter){
+		setPath(route == null ? null : route.edgesFromGoal(adapter));
+	}
+
+	/**
+	 * Puts the agent on a world's roads: its paths come from the world's RoutePlanner, so it
+	 * gets the same routes, closures and caches as every other agent, and it is placed along
+	 * the road polylines the world cached at load rather than a LengthIndexedLine per edge
+	 * @param world - the simulation whose roads to move on
+	 */
+	public void setRoads(MK_5 world){
+		roads = world.roadNetwork();
+		planner = world.planner;
+		edgeGeometry = world.edgeGeometry;
+		pathfinder.setRouting(planner, roads);
+	}
+
+	/**
+	 * Sets the agent off from its current node towards a goal on its roads
+	 * @param goal - the node to head for
+	 * @return whether there is a path there
+	 */
+	public boolean headFor(GeoNode goal){
+		if(roads == null){
+			setPath(null);
+			return false;
+		}
+		int s = roads.nodeId(node), t = roads.nodeId(goal);
+		if(s >= 0 && t >= 0){
+			Route route = planner.findPath(s, t);
+			setRoute(route.isEmpty() ? null : route, roads);
+		} else
+			setPath(pathfinder.astarPath(node, goal, roads.getNetwork()));
+		return path != null;
+	}
+
 	public HashMap <String, Object> getPositionalInformation(){
 		HashMap <String, Object> results = new HashMap <String, Object> ();
 		results.put("node", node);
 		results.put("direction", direction);
 		results.put("edge", edge);
 		results.put("segment", segment);
+		results.put("edgeId", edgeId);
 		results.put("startIndex", startIndex);
 		results.put("endIndex", endIndex);
 		results.put("currentIndex", currentIndex);
@@ -63,6 +131,7 @@ public class MobileAgent extends agents.SpatialAgent {
 		direction = (Integer) position.get("direction");
 		edge = (Edge) position.get("edge");
 		segment = (LengthIndexedLine) position.get("segment");
+		edgeId = position.containsKey("edgeId") ? (Integer) position.get("edgeId") : -1;
 		startIndex = (Double) position.get("startIndex");
 		endIndex = (Double) position.get("endIndex");
 		currentIndex = (Double) position.get("currentIndex");
@@ -81,17 +150,14 @@ public class MobileAgent extends agents.SpatialAgent {
 		if(arrived()){
 			
 			// make sure that there is another edge in the path
-			if(path.size() > 0){ 
+			if(pathIndex > 0){ 
 			
 				// take the next edge
-				edge = path.remove(path.size() - 1);
+				edge = path.get(--pathIndex);
 				
 				// format the edge's geometry so that we can move along it conveniently
 				LineString ls = (LineString)((MasonGeometry)edge.info).geometry;
-				
-				segment = new LengthIndexedLine(ls);
-				startIndex = segment.getStartIndex();
-				endIndex = segment.getEndIndex();
+				setupSegment(ls);
 
 				// make sure we're moving in the correct direction along the Edge
 				if(node == edge.from()){
@@ -109,7 +175,7 @@ public class MobileAgent extends agents.SpatialAgent {
 			// if there is no other edge in the path, we have finished our journey: reset the path
 			// and return the remaining time
 			else if(currentIndex <= startIndex || currentIndex >= endIndex){
-				path = null;
+				setPath(null);
 				return time;
 			}
 		}
@@ -140,10 +206,59 @@ public class MobileAgent extends agents.SpatialAgent {
 		else
 			time = 0;
 
-		updateLoc(segment.extractPoint(currentIndex));
+		locate(currentIndex);
 		
 		return time;
 	}
+
+	/**
+	 * Sets up the start and end indices of the current edge, whose line is given, from the
+	 * geometry cache where it holds that line
+	 */
+	protected void setupSegment(LineString ls){
+		edgeId = -1;
+		if(edgeGeometry != null){
+			int e = roads.edgeId(edge);
+			if(e >= 0 && edgeGeometry.matches(e, ls))
+				edgeId = e;
+		}
+		if(edgeId >= 0){
+			segment = null;
+			startIndex = 0;
+			endIndex = edgeGeometry.length(edgeId);
+		} else {
+			segment = new LengthIndexedLine(ls);
+			startIndex = segment.getStartIndex();
+			endIndex = segment.getEndIndex();
+		}
+	}
+
+	/**
+	 * @return the index on the current edge of the point on it nearest c
+	 */
+	protected double project(Coordinate c){
+		if(edgeId >= 0)
+			return edgeGeometry.project(edgeId, c.x, c.y);
+		return segment.project(c);
+	}
+
+	/**
+	 * @return whether the agent has an edge to be placed on
+	 */
+	protected boolean onSegment(){
+		return edgeId >= 0 || segment != null;
+	}
+
+	/**
+	 * Places the MobileAgent at the given index along the current edge
+	 */
+	protected void locate(double index){
+		if(edgeId >= 0){
+			edgeGeometry.locate(edgeId, index, here);
+			updateLoc(here);
+		} else
+			updateLoc(segment.extractPoint(index));
+	}
 	
 	/**
 	 * @return whether the MobileAgent has arrived at the end of the Edge
@@ -159,9 +274,8 @@ public class MobileAgent extends agents.SpatialAgent {
 	 * @param c - the new position of the MobileAgent
 	 */
 	protected void updateLoc(Coordinate c){
-		PointMoveTo p = new PointMoveTo();
-		p.setCoordinate(c);
-		geometry.apply(p);
+		pointMoveTo.setCoordinate(c);
+		geometry.apply(pointMoveTo);
 		geometry.geometryChanged();
 	}
 
@@ -4,7 +4,6 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.linearref.LengthIndexedLine;
 import network.GeoNode;
 import network.ListEdge;
 import sim.field.network.Edge;
@@ -46,16 +45,16 @@ public class TrafficAgent extends MobileAgent {
 
 			// if we have arrived and there is no other edge in the path, we have finished our journey: 
 			// reset the path and return the remaining time
-			if(goalPoint == null && path.size() == 0 && (currentIndex <= startIndex || currentIndex >= endIndex )){
-				path = null;
+			if(goalPoint == null && pathIndex == 0 && (currentIndex <= startIndex || currentIndex >= endIndex )){
+				setPath(null);
 				return time;
 			}
 			
 			// make sure that there is another edge in the path
-			if(path.size() > 0) { 
+			if(pathIndex > 0) { 
 
 				// take the next edge
-				Edge newEdge = path.remove(path.size() - 1);				
+				Edge newEdge = path.get(--pathIndex);				
 				edge = newEdge;
 
 				// make sure it's open
@@ -63,7 +62,7 @@ public class TrafficAgent extends MobileAgent {
 				if(((MasonGeometry)newEdge.info).getStringAttribute("open").equals("CLOSED")){
 					updateLoc(node.geometry.getCoordinate());
 					edge = newEdge;
-					path = null;
+					setPath(null);
 					return -1;
 				}				
 					
@@ -74,15 +73,13 @@ public class TrafficAgent extends MobileAgent {
 				LineString ls = (LineString)((MasonGeometry)edge.info).geometry;
 
 				// set up the segment and coordinates
-				segment = new LengthIndexedLine(ls);
-				startIndex = segment.getStartIndex();
-				endIndex = segment.getEndIndex();
-				currentIndex = segment.project(this.geometry.getCoordinate());
+				setupSegment(ls);
+				currentIndex = project(this.geometry.getCoordinate());
 				
 				
 				// if that was the last edge and we have a goal point, resize the expanse
-				if(path.size() == 0 && goalPoint != null){ 
-					double goalIndex = segment.project(goalPoint);
+				if(pathIndex == 0 && goalPoint != null){ 
+					double goalIndex = project(goalPoint);
 					if(currentIndex < goalIndex)
 						endIndex = goalIndex;
 					else
@@ -145,8 +142,8 @@ public class TrafficAgent extends MobileAgent {
 			time = 0;
 
 		// don't overshoot if we're on the last bit!
-		if(goalPoint != null && path.size() == 0){
-			double idealIndex = segment.indexOf(goalPoint);
+		if(goalPoint != null && pathIndex == 0){
+			double idealIndex = project(goalPoint);
 			if((direction == 1 && idealIndex <= currentIndex) || (direction == -1 && idealIndex >= currentIndex)){
 				currentIndex = idealIndex;
 				time = 0;
@@ -154,10 +151,10 @@ public class TrafficAgent extends MobileAgent {
 			}
 		}
 
-		updateLoc(segment.extractPoint(currentIndex));
+		locate(currentIndex);
 		
-		if(path.size() == 0 && arrived()){
-			path = null;
+		if(pathIndex == 0 && arrived()){
+			setPath(null);
 		}
 		return time;
 	}
@@ -174,8 +171,8 @@ public class TrafficAgent extends MobileAgent {
 				time = move(time, speed, resolution);
 			}
 			
-			if(segment != null)
-				updateLoc(segment.extractPoint(currentIndex));				
+			if(onSegment())
+				locate(currentIndex);
 
 			if(time < 0){
 				return -1;
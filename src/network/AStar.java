@@ -4,8 +4,10 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.planargraph.DirectedEdgeStar;
 import com.vividsolutions.jts.planargraph.Node;
 import sim.util.geo.GeomPlanarGraphDirectedEdge;
+import sim.util.geo.GeomPlanarGraphEdge;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 
 /**
@@ -24,104 +26,190 @@ import java.util.HashMap;
 public class AStar
 {
 
+    // optional landmark lower bounds and bookkeeping
+    Landmarks landmarks = null;
+    SearchStats stats = null;
+    int goalLandmark = -1;
+    // optional compiled arc costs to use in place of road lengths, and the
+    // dense search run over them
+    RoutingGraph graph = null;
+    GraphAStar dense = null;
+
+
+    /**
+     * @param graph a routing graph over the same network, whose current arc
+     * costs (weights and closures) are used for edge lengths; or null to use
+     * the length of each road's geometry
+     */
+    public void setGraph(RoutingGraph graph)
+    {
+        this.graph = graph;
+        dense = graph == null ? null : new GraphAStar(graph);
+    }
+
+
+    /**
+     * @param landmarks landmark distances to tighten the heuristic with, or
+     * null for Euclidean distance alone
+     */
+    public void setLandmarks(Landmarks landmarks)
+    {
+        this.landmarks = landmarks;
+    }
+
+
+    /**
+     * @param stats where to record the nodes settled by each query, or null
+     */
+    public void setStats(SearchStats stats)
+    {
+        this.stats = stats;
+    }
+
     public ArrayList<GeomPlanarGraphDirectedEdge> astarPath(Node start, Node goal)
     {
 
+        // set up the containers for the result
+        ArrayList<GeomPlanarGraphDirectedEdge> result =
+            new ArrayList<GeomPlanarGraphDirectedEdge>();
+
         // initial check
         if (start == null || goal == null)
         {
             System.out.println("Error: invalid node provided to AStar");
+            return result;
         }
 
-        // set up the containers for the result
-        ArrayList<GeomPlanarGraphDirectedEdge> result =
-            new ArrayList<GeomPlanarGraphDirectedEdge>();
+        // with a routing graph, search its arrays by node and arc id rather
+        // than looking each edge and node up as it is reached
+        if (graph != null)
+        {
+            int s = graph.nodeId(start), t = graph.nodeId(goal);
+            if (s >= 0 && t >= 0)
+            {
+                // landmarks over some other graph have no ids here
+                dense.setLandmarks(landmarks != null && landmarks.graph == graph
+                    ? landmarks : null);
+                dense.setStats(stats);
+                return dense.astarPath(start, goal);
+            }
+        }
+
+        // landmark id of the goal, looked up once for the whole query
+        goalLandmark = landmarks == null ? -1 : landmarks.graph.nodeId(goal);
 
         // containers for the metainformation about the Nodes relative to the
-        // A* search
+        // A* search. Wrappers are numbered in the order they are found so the
+        // open set can refer to them by index.
         HashMap<Node, AStarNodeWrapper> foundNodes =
             new HashMap<Node, AStarNodeWrapper>();
+        ArrayList<AStarNodeWrapper> wrappers = new ArrayList<AStarNodeWrapper>();
 
-        AStarNodeWrapper startNode = new AStarNodeWrapper(start);
-        AStarNodeWrapper goalNode = new AStarNodeWrapper(goal);
-        foundNodes.put(start, startNode);
-        foundNodes.put(goal, goalNode);
-
+        AStarNodeWrapper startNode = wrap(start, foundNodes, wrappers);
         startNode.gx = 0;
-        startNode.hx = heuristic(start, goal);
-        startNode.fx = heuristic(start, goal);
+        startNode.hx = heuristic(startNode, goal);
+        startNode.fx = startNode.hx;
 
-        // A* containers: nodes to be investigated, nodes that have been investigated
-        ArrayList<AStarNodeWrapper> closedSet = new ArrayList<AStarNodeWrapper>(),
-            openSet = new ArrayList<AStarNodeWrapper>();
-        openSet.add(startNode);
+        // A* open set: an indexed heap ordered by fx, so the best candidate
+        // comes off the top and improved candidates are re-keyed in place.
+        // Membership of the closed set is a flag on the wrapper.
+        IndexedMinHeap openSet = new IndexedMinHeap();
+        openSet.insertOrUpdate(startNode.id, startNode.fx);
+        int settled = 0;
 
 
-        while (openSet.size() > 0)
+        while (!openSet.isEmpty())
         { // while there are reachable nodes to investigate
 
-            AStarNodeWrapper x = findMin(openSet); // find the shortest path so far
+            AStarNodeWrapper x = wrappers.get(openSet.poll()); // find the shortest path so far
+            settled++;
             if (x.node == goal)
             { // we have found the shortest possible path to the goal!
                 // Reconstruct the path and send it back.
-                return reconstructPath(goalNode);
+                record(settled);
+                return reconstructPath(x);
             }
-            openSet.remove(x); // maintain the lists
-            closedSet.add(x);
+            x.closed = true;
 
             // check all the edges out from this Node
             DirectedEdgeStar des = x.node.getOutEdges();
-            for (Object o : des.getEdges().toArray())
+            for (Object o : des.getEdges())
             {
                 GeomPlanarGraphDirectedEdge l = (GeomPlanarGraphDirectedEdge) o;
-                Node next = null;
-                next = l.getToNode();
-
-                // get the A* meta information about this Node
-                AStarNodeWrapper nextNode;
-                if (foundNodes.containsKey(next))
+                Node next = l.getToNode();
+                double edgeCost = length(l);
+                if (edgeCost == Double.POSITIVE_INFINITY)
                 {
-                    nextNode = foundNodes.get(next);
-                } else
-                {
-                    nextNode = new AStarNodeWrapper(next);
-                    foundNodes.put(next, nextNode);
+                    continue; // closed road
                 }
 
-                if (closedSet.contains(nextNode)) // it has already been considered
+                // get the A* meta information about this Node
+                AStarNodeWrapper nextNode = foundNodes.get(next);
+                boolean discovered = nextNode == null;
+                if (discovered)
+                {
+                    nextNode = wrap(next, foundNodes, wrappers);
+                } else if (nextNode.closed) // it has already been considered
                 {
                     continue;
                 }
 
                 // otherwise evaluate the cost of this node/edge combo
-                double tentativeCost = x.gx + length(l);
-                boolean better = false;
+                double tentativeCost = x.gx + edgeCost;
 
-                if (!openSet.contains(nextNode))
+                if (discovered)
                 {
-                    openSet.add(nextNode);
-                    nextNode.hx = heuristic(next, goal);
-                    better = true;
-                } else if (tentativeCost < nextNode.gx)
+                    nextNode.hx = heuristic(nextNode, goal);
+                } else if (tentativeCost >= nextNode.gx)
                 {
-                    better = true;
+                    continue;
                 }
 
                 // store A* information about this promising candidate node
-                if (better)
-                {
-                    nextNode.cameFrom = x;
-                    nextNode.edgeFrom = l;
-                    nextNode.gx = tentativeCost;
-                    nextNode.fx = nextNode.gx + nextNode.hx;
-                }
+                nextNode.cameFrom = x;
+                nextNode.edgeFrom = l;
+                nextNode.gx = tentativeCost;
+                nextNode.fx = nextNode.gx + nextNode.hx;
+                openSet.insertOrUpdate(nextNode.id, nextNode.fx);
             }
         }
 
+        record(settled);
         return result;
     }
 
 
+    void record(int settled)
+    {
+        if (stats != null)
+        {
+            stats.record(settled);
+        }
+    }
+
+
+    /**
+     * Creates the A* meta information for a newly found Node and registers it
+     * @param n the Node
+     * @param foundNodes lookup from Node to its wrapper
+     * @param wrappers lookup from wrapper id to wrapper
+     * @return the new wrapper
+     */
+    AStarNodeWrapper wrap(Node n, HashMap<Node, AStarNodeWrapper> foundNodes,
+        ArrayList<AStarNodeWrapper> wrappers)
+    {
+        AStarNodeWrapper wrapper = new AStarNodeWrapper(n);
+        wrapper.id = wrappers.size();
+        if (goalLandmark >= 0)
+        {
+            wrapper.landmark = landmarks.graph.nodeId(n);
+        }
+        wrappers.add(wrapper);
+        foundNodes.put(n, wrapper);
+        return wrapper;
+    }
+
+
     /**
      * Takes the information about the given node n and returns the path that
      * found it.
@@ -136,9 +224,10 @@ public class AStar
         AStarNodeWrapper x = n;
         while (x.cameFrom != null)
         {
-            result.add(0, x.edgeFrom); // add this edge to the front of the list
+            result.add(x.edgeFrom);
             x = x.cameFrom;
         }
+        Collections.reverse(result); // collected from the goal backwards
 
         return result;
     }
@@ -146,23 +235,29 @@ public class AStar
 
 
     /**
-     * Measure of the estimated distance between two Nodes. Extremely basic, just
-     * Euclidean distance as implemented here.
+     * Measure of the estimated distance between two Nodes: Euclidean distance,
+     * or the landmark lower bound where landmarks are set and it is larger.
      * @param x
-     * @param y
+     * @param y the goal of the current query
      * @return notional "distance" between the given nodes.
      */
-    double heuristic(Node x, Node y)
+    double heuristic(AStarNodeWrapper x, Node y)
     {
-        Coordinate xnode = x.getCoordinate();
+        Coordinate xnode = x.node.getCoordinate();
         Coordinate ynode = y.getCoordinate();
-        return Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
+        double h = Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
             + Math.pow(xnode.y - ynode.y, 2));
+        if (goalLandmark >= 0 && x.landmark >= 0)
+        {
+            h = Math.max(h, landmarks.lowerBound(x.landmark, goalLandmark));
+        }
+        return h;
     }
 
 
 
     /**
+     * Only used off the routing graph, so always the length of the road
      * @param e
      * @return The length of an edge
      */
@@ -170,31 +265,11 @@ public class AStar
     {
         Coordinate xnode = e.getFromNode().getCoordinate();
         Coordinate ynode = e.getToNode().getCoordinate();
-        return Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
+        double chord = Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
             + Math.pow(xnode.y - ynode.y, 2));
-    }
-
-
-
-    /**
-     *  Considers the list of Nodes open for consideration and returns the node
-     *  with minimum fx value
-     * @param set list of open Nodes
-     * @return
-     */
-    AStarNodeWrapper findMin(ArrayList<AStarNodeWrapper> set)
-    {
-        double min = 100000;
-        AStarNodeWrapper minNode = null;
-        for (AStarNodeWrapper n : set)
-        {
-            if (n.fx < min)
-            {
-                min = n.fx;
-                minNode = n;
-            }
-        }
-        return minNode;
+        // roads bend, so measure along them; never less than the chord the
+        // heuristic assumes
+        return Math.max(chord, ((GeomPlanarGraphEdge) e.getEdge()).getLine().getLength());
     }
 
 
@@ -208,6 +283,12 @@ public class AStar
 
         // the underlying Node associated with the metainformation
         Node node;
+        // position of this wrapper in the open set's index
+        int id;
+        // id of the Node in the landmarks' graph, or -1
+        int landmark;
+        // whether the Node has been fully investigated
+        boolean closed;
         // the Node from which this Node was most profitably linked
         AStarNodeWrapper cameFrom;
         // the edge by which this Node was discovered
@@ -218,6 +299,9 @@ public class AStar
         public AStarNodeWrapper(Node n)
         {
             node = n;
+            id = -1;
+            landmark = -1;
+            closed = false;
             gx = 0;
             hx = 0;
             fx = 0;
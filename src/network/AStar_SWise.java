@@ -15,9 +15,10 @@ package network;
 import com.vividsolutions.jts.geom.Coordinate;
 import sim.field.network.Edge;
 import sim.field.network.Network;
-import sim.util.geo.GeomPlanarGraphDirectedEdge;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -31,6 +32,76 @@ import java.util.HashSet;
 public class AStar_SWise
 {
 
+	// optional landmark lower bounds and bookkeeping
+	Landmarks landmarks = null;
+	SearchStats stats = null;
+	// optional compiled road weights to use in place of straight-line lengths
+	CostModel costModel = null;
+	// optional planner over the shared graph, and the view of it as this Network
+	RoutePlanner planner = null;
+	NetworkAdapter adapter = null;
+
+	/**
+	 * @param landmarks - landmark distances over a RoutingGraph of the same roads, used to
+	 * 		tighten the heuristic; GeoNodes are matched to its nodes by coordinate
+	 */
+	public void setLandmarks(Landmarks landmarks){
+		this.landmarks = landmarks;
+	}
+
+	/**
+	 * @param stats - where to record the nodes settled by each query, or null
+	 */
+	public void setStats(SearchStats stats){
+		this.stats = stats;
+	}
+
+	/**
+	 * @param costModel - a model over a RoutingGraph of the same roads, whose last compiled
+	 * 		weights are used for edges built from its GeomPlanarGraphEdges; or null for
+	 * 		straight-line lengths. Weights are never less than those lengths, so the
+	 * 		heuristic stays admissible.
+	 */
+	public void setCostModel(CostModel costModel){
+		this.costModel = costModel;
+	}
+
+	/**
+	 * @param planner - a planner to hand astarPath and bidirectionalPath queries to, or null
+	 * @param adapter - the view of the planner's graph as a Network: queries over that Network,
+	 * 		between nodes on the graph, are answered by the planner, and its current arc costs
+	 * 		are used for edge lengths in the searches still made here
+	 */
+	public void setRouting(RoutePlanner planner, NetworkAdapter adapter){
+		this.planner = planner;
+		this.adapter = adapter;
+	}
+
+	/**
+	 * @return the planner's path between two nodes on its graph, in the order astarPath
+	 * 		returns paths, or null if there is none
+	 */
+	ArrayList<Edge> plannedPath(GeoNode start, GeoNode goal){
+		int s = adapter.nodeId(start), t = adapter.nodeId(goal);
+		Route route = planner.findPath(s, t);
+		if(route.isEmpty())
+			return null;
+		return new ArrayList<Edge>(route.edgesFromGoal(adapter));
+	}
+
+	/**
+	 * @return whether the planner can answer a query between the nodes over this Network
+	 */
+	boolean planned(GeoNode start, GeoNode goal, Network network){
+		return planner != null && adapter != null && network == adapter.network
+				&& adapter.nodeId(start) >= 0 && adapter.nodeId(goal) >= 0;
+	}
+
+	void record(int settled){
+		if(stats != null)
+			stats.record(settled);
+	}
+
 	/**
 	 * Finds a path between the start and goal nodes within the given network
 	 * 
@@ -52,91 +123,228 @@ public class AStar_SWise
         if(start == goal)
         	return new ArrayList<Edge> ();
 
+        if(planned(start, goal, network))
+        	return plannedPath(start, goal);
+
         // containers for the metainformation about the Nodes relative to the
-        // A* search
+        // A* search, and their index in the open set
         HashMap<GeoNode, AStarNodeWrapper> foundNodes =
             new HashMap<GeoNode, AStarNodeWrapper>();
+        ArrayList<AStarNodeWrapper> wrappers = new ArrayList<AStarNodeWrapper>();
 
-        AStarNodeWrapper startNode = new AStarNodeWrapper(start);
-        AStarNodeWrapper goalNode = new AStarNodeWrapper(goal);
-        foundNodes.put(start, startNode);
-        foundNodes.put(goal, goalNode);
+        AStarNodeWrapper startNode = discover(start, foundNodes, wrappers);
+        AStarNodeWrapper goalNode = discover(goal, foundNodes, wrappers);
 
         startNode.gx = 0;
-        startNode.hx = heuristic(start, goal);
-        startNode.fx = heuristic(start, goal);
+        startNode.hx = heuristic(startNode, goalNode);
+        startNode.fx = startNode.hx;
+        goalNode.hx = heuristic(goalNode, goalNode);
 
-        // A* containers: nodes to be investigated, nodes that have been investigated
-        ArrayList<AStarNodeWrapper> closedSet = new ArrayList<AStarNodeWrapper>(),
-            openSet = new ArrayList<AStarNodeWrapper>();
-        openSet.add(startNode);
+        // A* open set: an indexed heap ordered by fx. Membership of the closed
+        // set is a flag on the wrapper.
+        IndexedMinHeap openSet = new IndexedMinHeap(64);
+        openSet.insertOrUpdate(startNode.id, startNode.fx);
+        int settled = 0;
 
 
-        while (openSet.size() > 0)
+        while (!openSet.isEmpty())
         { // while there are reachable nodes to investigate
 
-            AStarNodeWrapper x = findMin(openSet); // find the shortest path so far
+            AStarNodeWrapper x = wrappers.get(openSet.poll()); // find the shortest path so far
+            settled++;
             if (x.node == goal)
             { // we have found the shortest possible path to the goal!
                 // Reconstruct the path and send it back.
+                record(settled);
                 return reconstructPath(goalNode);
             }
-            openSet.remove(x); // maintain the lists
-            closedSet.add(x);
+            x.closed = true;
 
             // check all the edges out from this Node
 //            for (Object o : network.getEdgesOut(x.node))
            for (Object o : network.getEdges(x.node, null))
            {
             	Edge l = (Edge) o;
-                GeoNode next = null;
-                next = (GeoNode) l.getOtherNode(x.node);
+                GeoNode next = (GeoNode) l.getOtherNode(x.node);
                 
                 // get the A* meta information about this Node
-                AStarNodeWrapper nextNode;
-                if (foundNodes.containsKey(next))
-                {
-                    nextNode = foundNodes.get(next);
-                } else
+                AStarNodeWrapper nextNode = foundNodes.get(next);
+                if (nextNode == null)
                 {
-                    nextNode = new AStarNodeWrapper(next);
-                    foundNodes.put(next, nextNode);
-                }
-
-                if (closedSet.contains(nextNode)) // it has already been considered
+                    nextNode = discover(next, foundNodes, wrappers);
+                    nextNode.hx = heuristic(nextNode, goalNode);
+                } else if (nextNode.closed) // it has already been considered
                 {
                     continue;
                 }
 
-                // otherwise evaluate the cost of this node/edge combo
+                // otherwise evaluate the cost of this node/edge combo, and store A*
+                // information about it if it is a promising candidate
                 double tentativeCost = x.gx + length(l);
-                boolean better = false;
-
-                if (!openSet.contains(nextNode))
-                {
-                    openSet.add(nextNode);
-                    nextNode.hx = heuristic(next, goal);
-                    better = true;
-                } else if (tentativeCost < nextNode.gx)
-                {
-                    better = true;
-                }
-
-                // store A* information about this promising candidate node
-                if (better)
+                if (tentativeCost < nextNode.gx)
                 {
                     nextNode.cameFrom = x;
                     nextNode.edgeFrom = l;
                     nextNode.gx = tentativeCost;
                     nextNode.fx = nextNode.gx + nextNode.hx;
+                    openSet.insertOrUpdate(nextNode.id, nextNode.fx);
                 }
             }
         }
 
-//        System.out.println("A* Problem: graph has only " + closedSet.size() + " nodes associated with it");
+//        System.out.println("A* Problem: graph has only " + settled + " nodes associated with it");
+        record(settled);
         return null;
     }
 
+	/**
+	 * Finds a path between the start and goal nodes within the given network by searching
+	 * from both ends at once, for one-off long trips. Both searches are guided by the
+	 * average of the bounds to the goal and from the start, which keeps them consistent
+	 * with each other, and stop once no unsettled node can lie on a shorter path than the
+	 * best one met. Node delays are left out of the bounds so that they stay admissible.
+	 * 
+	 * @param start - the node from which to start
+	 * @param goal - the goal node
+	 * @param network - the network in which the path should exist
+	 * @return either the connecting edges, in the same order as astarPath, or else null
+	 */
+	public ArrayList<Edge> bidirectionalPath(GeoNode start, GeoNode goal, Network network)
+	{
+		// initial check
+		if (start == null || goal == null){
+			System.out.println("Error: invalid node provided to AStar");
+			return null;
+		}
+
+		// if they're the same place, the path is empty but certainly exists
+		if(start == goal)
+			return new ArrayList<Edge> ();
+
+		if(planned(start, goal, network))
+			return plannedPath(start, goal);
+
+		// meta information about each Node for both searches, and its index in the queues
+		HashMap<GeoNode, BidirectionalNodeWrapper> foundNodes =
+			new HashMap<GeoNode, BidirectionalNodeWrapper>();
+		ArrayList<BidirectionalNodeWrapper> wrappers = new ArrayList<BidirectionalNodeWrapper>();
+		IndexedMinHeap forwardSet = new IndexedMinHeap(64), backwardSet = new IndexedMinHeap(64);
+
+		BidirectionalNodeWrapper startNode = wrap(start, foundNodes, wrappers);
+		BidirectionalNodeWrapper goalNode = wrap(goal, foundNodes, wrappers);
+		double span = bound(startNode.node, startNode.landmark, goalNode.node, goalNode.landmark);
+		startNode.forwardSeen = true;
+		startNode.forwardPotential = span / 2;
+		forwardSet.insertOrUpdate(startNode.id, startNode.forwardPotential);
+		goalNode.backwardSeen = true;
+		goalNode.forwardPotential = -span / 2;
+		backwardSet.insertOrUpdate(goalNode.id, -goalNode.forwardPotential);
+
+		double best = Double.MAX_VALUE;
+		BidirectionalNodeWrapper meet = null;
+		int settled = 0;
+
+		while (!forwardSet.isEmpty() && !backwardSet.isEmpty())
+		{
+			// nothing left in either queue can improve on the best path met
+			if (forwardSet.peekKey() + backwardSet.peekKey() >= best)
+				break;
+
+			// expand the side with less on its frontier
+			boolean forward = forwardSet.size() <= backwardSet.size();
+			IndexedMinHeap thisSet = forward ? forwardSet : backwardSet;
+			BidirectionalNodeWrapper x = wrappers.get(thisSet.poll());
+			settled++;
+			if (forward)
+				x.forwardClosed = true;
+			else
+				x.backwardClosed = true;
+			double gx = forward ? x.forwardCost : x.backwardCost;
+
+			for (Object o : network.getEdges(x.node, null))
+			{
+				Edge l = (Edge) o;
+				GeoNode next = (GeoNode) l.getOtherNode(x.node);
+				BidirectionalNodeWrapper nextNode = wrap(next, foundNodes, wrappers);
+				if (forward ? nextNode.forwardClosed : nextNode.backwardClosed)
+					continue;
+				if (!nextNode.forwardSeen && !nextNode.backwardSeen)
+					nextNode.forwardPotential = (bound(next, nextNode.landmark, goal, goalNode.landmark)
+							- bound(start, startNode.landmark, next, nextNode.landmark)) / 2;
+
+				double tentativeCost = gx + length(l);
+				if (forward)
+				{
+					if (nextNode.forwardSeen && tentativeCost >= nextNode.forwardCost)
+						continue;
+					nextNode.forwardSeen = true;
+					nextNode.forwardCost = tentativeCost;
+					nextNode.forwardFrom = x;
+					nextNode.forwardEdge = l;
+					forwardSet.insertOrUpdate(nextNode.id, tentativeCost + nextNode.forwardPotential);
+					if (nextNode.backwardSeen && tentativeCost + nextNode.backwardCost < best)
+					{
+						best = tentativeCost + nextNode.backwardCost;
+						meet = nextNode;
+					}
+				} else
+				{
+					if (nextNode.backwardSeen && tentativeCost >= nextNode.backwardCost)
+						continue;
+					nextNode.backwardSeen = true;
+					nextNode.backwardCost = tentativeCost;
+					nextNode.backwardFrom = x;
+					nextNode.backwardEdge = l;
+					backwardSet.insertOrUpdate(nextNode.id, tentativeCost - nextNode.forwardPotential);
+					if (nextNode.forwardSeen && tentativeCost + nextNode.forwardCost < best)
+					{
+						best = tentativeCost + nextNode.forwardCost;
+						meet = nextNode;
+					}
+				}
+			}
+		}
+		record(settled);
+		if (meet == null)
+			return null;
+
+		// edges from the goal back to the meeting Node, then on back to the start
+		ArrayList<Edge> result = new ArrayList<Edge>();
+		for (BidirectionalNodeWrapper y = meet; y.backwardFrom != null; y = y.backwardFrom)
+			result.add(y.backwardEdge);
+		Collections.reverse(result);
+		for (BidirectionalNodeWrapper y = meet; y.forwardFrom != null; y = y.forwardFrom)
+			result.add(y.forwardEdge);
+		return result;
+	}
+
+	BidirectionalNodeWrapper wrap(GeoNode n, HashMap<GeoNode, BidirectionalNodeWrapper> foundNodes,
+			ArrayList<BidirectionalNodeWrapper> wrappers){
+		BidirectionalNodeWrapper w = foundNodes.get(n);
+		if(w == null){
+			w = new BidirectionalNodeWrapper(n, wrappers.size());
+			w.landmark = landmarkId(n);
+			foundNodes.put(n, w);
+			wrappers.add(w);
+		}
+		return w;
+	}
+
+	/**
+	 * Creates the A* meta information for a newly found Node and registers it, with its
+	 * landmark id looked up once and no path to it yet
+	 */
+	AStarNodeWrapper discover(GeoNode n, HashMap<GeoNode, AStarNodeWrapper> foundNodes,
+			ArrayList<AStarNodeWrapper> wrappers){
+		AStarNodeWrapper w = new AStarNodeWrapper(n);
+		w.id = wrappers.size();
+		w.landmark = landmarkId(n);
+		w.gx = Double.MAX_VALUE;
+		foundNodes.put(n, w);
+		wrappers.add(w);
+		return w;
+	}
+
 	/**
 	 * Finds a path between the start and a set of goal nodes, within the given network
 	 * 
@@ -147,115 +355,140 @@ public class AStar_SWise
 	 */
 	public ArrayList<Edge> astarPath(GeoNode start, ArrayList <GeoNode> goal, Network network)
 	   {
+	        if (goal == null || goal.size() == 0)
+	        {
+	            System.out.println("Error: invalid nodeset provided to AStar");
+	            return null;
+	        }
+	        return astarPath(start, new GoalSet(goal), network);
+	    }
 
+	/**
+	 * Finds a path between the start and whichever of a set of goal nodes is nearest, within
+	 * the given network. Build the GoalSet once and reuse it when many searches share the
+	 * same goals.
+	 * 
+	 * @param start - the node from which to start
+	 * @param goals - the set of goal nodes
+	 * @param network - the network in which the path should exist
+	 * @return either an ordered list of the connecting edges or else null
+	 */
+	public ArrayList<Edge> astarPath(GeoNode start, GoalSet goals, Network network)
+	   {
 	        // initial check
-	        if (start == null || goal == null || goal.size() == 0)
+	        if (start == null || goals == null || goals.isEmpty())
 	        {
 	            System.out.println("Error: invalid nodeset provided to AStar");
 	            return null;
 	        }
-	        else if(goal.contains(start))
+	        else if(goals.contains(start))
 	        	return null;
 
+	        ArrayList<GoalPath> found = nearestGoals(start, goals, 1, network);
+	        if(found.isEmpty()){
+	        	System.out.println("A* ERROR: No path found from " + start);
+	        	return null;
+	        }
+	        return found.get(0).path;
+	    }
+
+	/**
+	 * Finds the k goals nearest the start along the network, with their paths, in one search.
+	 * The heuristic is the distance to the nearest goal, which never overestimates the
+	 * distance to any of them; goals are therefore settled in order of their true distance
+	 * and the search simply carries on past the first until k have been found.
+	 * 
+	 * @param start - the node from which to start
+	 * @param goals - the set of goal nodes
+	 * @param k - how many goals to find
+	 * @param network - the network in which the paths should exist
+	 * @return up to k goals with their paths, nearest first; fewer if fewer can be reached
+	 */
+	public ArrayList<GoalPath> nearestGoals(GeoNode start, GoalSet goals, int k, Network network)
+	   {
+	        ArrayList<GoalPath> result = new ArrayList<GoalPath>();
+	        if (start == null || goals == null || goals.isEmpty() || k <= 0)
+	            return result;
+
 	        // containers for the metainformation about the Nodes relative to the
-	        // A* search
+	        // A* search, and their index in the open set
 	        HashMap<GeoNode, AStarNodeWrapper> foundNodes =
 	            new HashMap<GeoNode, AStarNodeWrapper>();
+	        ArrayList<AStarNodeWrapper> wrappers = new ArrayList<AStarNodeWrapper>();
+	        IndexedMinHeap openSet = new IndexedMinHeap(64);
 
 	        AStarNodeWrapper startNode = new AStarNodeWrapper(start);
+	        startNode.id = 0;
+	        wrappers.add(startNode);
 	        foundNodes.put(start, startNode);
 	        startNode.gx = 0;
+	        startNode.hx = goalHeuristic(start, goals);
+	        startNode.fx = startNode.hx;
+	        openSet.insertOrUpdate(startNode.id, startNode.fx);
 
-	        ArrayList <AStarNodeWrapper> goalNodes = new ArrayList <AStarNodeWrapper> ();
-	        double minVal = Double.MAX_VALUE;
-	        for(GeoNode n: goal){
-	        	AStarNodeWrapper goalNode = new AStarNodeWrapper(n); 
-	        	goalNodes.add(goalNode);
-		        foundNodes.put(n, goalNode);
-		        
-		        double hval = heuristic(start, n);
-		        if(hval < minVal)
-		        	minVal = hval;
-	        }
-	        startNode.hx = minVal;
-	        startNode.fx = minVal;
-
-
-	        // A* containers: nodes to be investigated, nodes that have been investigated
-	        ArrayList<AStarNodeWrapper> closedSet = new ArrayList<AStarNodeWrapper>(),
-	            openSet = new ArrayList<AStarNodeWrapper>();
-	        openSet.add(startNode);
-
-
-	        while (openSet.size() > 0)
+	        int settled = 0;
+	        while (!openSet.isEmpty())
 	        { // while there are reachable nodes to investigate
 
-	            AStarNodeWrapper x = findMin(openSet); // find the shortest path so far
-	            if (goal.contains(x.node))
-	            { // we have found the shortest possible path to the goal!
-	                // Reconstruct the path and send it back.
-	                return reconstructPath(foundNodes.get(x.node));
+	            AStarNodeWrapper x = wrappers.get(openSet.poll()); // find the shortest path so far
+	            x.closed = true;
+	            settled++;
+	            if (goals.contains(x.node))
+	            { // this is the nearest goal not yet found
+	                ArrayList<Edge> path = x == startNode ? new ArrayList<Edge>() : reconstructPath(x);
+	                result.add(new GoalPath(x.node, path, x.gx));
+	                if(result.size() == k)
+	                	break;
 	            }
-	            openSet.remove(x); // maintain the lists
-	            closedSet.add(x);
 
 	            // check all the edges out from this Node
 	            for (Object o : network.getEdgesOut(x.node)) // TODO: make sure this is still ok
 	            {
 	            	Edge l = (Edge) o;
-	                GeoNode next = null;
-	                next = (GeoNode) l.getOtherNode(x.node);
+	                GeoNode next = (GeoNode) l.getOtherNode(x.node);
 	                
 	                // get the A* meta information about this Node
-	                AStarNodeWrapper nextNode;
-	                if (foundNodes.containsKey(next))
-	                {
-	                    nextNode = foundNodes.get(next);
-	                } else
+	                AStarNodeWrapper nextNode = foundNodes.get(next);
+	                if (nextNode == null)
 	                {
 	                    nextNode = new AStarNodeWrapper(next);
+	                    nextNode.id = wrappers.size();
+	                    wrappers.add(nextNode);
 	                    foundNodes.put(next, nextNode);
+	                    nextNode.hx = goalHeuristic(next, goals);
+	                    nextNode.gx = Double.MAX_VALUE;
 	                }
-
-	                if (closedSet.contains(nextNode)) // it has already been considered
+	                else if (nextNode.closed) // it has already been considered
 	                {
 	                    continue;
 	                }
 
-	                // otherwise evaluate the cost of this node/edge combo
+	                // otherwise evaluate the cost of this node/edge combo, and store A*
+	                // information about it if it is a promising candidate
 	                double tentativeCost = x.gx + length(l);
-	                boolean better = false;
-
-	                if (!openSet.contains(nextNode))
-	                {
-	                    openSet.add(nextNode);
-	                    minVal = Double.MAX_VALUE;
-	                    for(GeoNode n: goal){
-	                    	double hval = heuristic(next, n); 
-	                    	if(hval < minVal) minVal = hval;
-	                    }
-	                    nextNode.hx = minVal;
-	                    better = true;
-	                } else if (tentativeCost < nextNode.gx)
-	                {
-	                    better = true;
-	                }
-
-	                // store A* information about this promising candidate node
-	                if (better)
+	                if (tentativeCost < nextNode.gx)
 	                {
 	                    nextNode.cameFrom = x;
 	                    nextNode.edgeFrom = l;
 	                    nextNode.gx = tentativeCost;
 	                    nextNode.fx = nextNode.gx + nextNode.hx;
+	                    openSet.insertOrUpdate(nextNode.id, nextNode.fx);
 	                }
 	            }
 	        }
-
-	        System.out.println("A* ERROR: No path found. Graph has only " + closedSet.size() + " nodes associated with it");
-	        return null;
+	        record(settled);
+	        return result;
 	    }
 
+	/**
+	 * Estimate of the distance from a node to the nearest of a set of goals. Node delays are
+	 * left out: the edge costs the search adds up carry none, so counting them here would
+	 * let the estimate exceed the true distance.
+	 */
+	double goalHeuristic(GeoNode x, GoalSet goals){
+		return goals.distanceToNearest(x.geometry.getCoordinate());
+	}
+
 	/**
 	 * Finds a path between the start and a set of goal nodes, within the given network
 	 * 
@@ -274,99 +507,109 @@ public class AStar_SWise
 	            System.out.println("Error: invalid nodeset provided to AStar");
 	        }
 
-	        // set up the containers for the result
-	        ArrayList<GeomPlanarGraphDirectedEdge> result =
-	            new ArrayList<GeomPlanarGraphDirectedEdge>();
-
 	        // containers for the metainformation about the Nodes relative to the
-	        // A* search
+	        // A* search, and their index in the open set
 	        HashMap<GeoNode, AStarNodeWrapper> foundNodes =
 	            new HashMap<GeoNode, AStarNodeWrapper>();
-	        
-	        AStarNodeWrapper startNode = new AStarNodeWrapper(start);
-	        AStarNodeWrapper goalNode = new AStarNodeWrapper(goal);
-	        foundNodes.put(start, startNode);
-	        foundNodes.put(goal, goalNode);
-
-	        startNode.gx = 0;
-	        startNode.hx = heuristic(start, goal);
-	        startNode.fx = heuristic(start, goal);
+	        ArrayList<AStarNodeWrapper> wrappers = new ArrayList<AStarNodeWrapper>();
+
+	        // the weighted set is resolved once, before the search: nodes get their factor
+	        // when they are found, and roads of the planner's graph a factor by road id.
+	        // Only Edges of other Networks, which have no ids, are still matched by set.
+	        HashSet<GeoNode> weightedNodes = new HashSet<GeoNode>();
+	        HashSet<Edge> weightedEdges = new HashSet<Edge>();
+	        boolean onGraph = adapter != null && network == adapter.network;
+	        double [] edgeFactors = onGraph ? new double [adapter.edges.length] : null;
+	        if(onGraph)
+	        	Arrays.fill(edgeFactors, 1);
+	        for(Object o : weighted){
+	        	if(o instanceof GeoNode)
+	        		weightedNodes.add((GeoNode) o);
+	        	else if(o instanceof Edge){
+	        		int e = onGraph ? adapter.edgeId((Edge) o) : -1;
+	        		if(e >= 0)
+	        			edgeFactors[e] = weight;
+	        		else
+	        			weightedEdges.add((Edge) o);
+	        	}
+	        }
 
+	        AStarNodeWrapper startNode = discover(start, foundNodes, wrappers);
+	        AStarNodeWrapper goalNode = discover(goal, foundNodes, wrappers);
+	        if(weightedNodes.contains(goal))
+	        	goalNode.nodeFactor = weight;
 
-	        // A* containers: nodes to be investigated, nodes that have been investigated
-//	        ArrayList<AStarNodeWrapper> closedSet = new ArrayList<AStarNodeWrapper>(),
-//	            openSet = new ArrayList<AStarNodeWrapper>();
-	        HashSet <AStarNodeWrapper> closedSet = new HashSet<AStarNodeWrapper>(),
-		            openSet = new HashSet<AStarNodeWrapper>();
-	        openSet.add(startNode);
+	        startNode.gx = 0;
+	        startNode.hx = heuristic(startNode, goalNode);
+	        startNode.fx = startNode.hx;
+	        goalNode.hx = heuristic(goalNode, goalNode);
 
+	        // A* open set: an indexed heap ordered by fx. Membership of the closed
+	        // set is a flag on the wrapper.
+	        IndexedMinHeap openSet = new IndexedMinHeap(64);
+	        openSet.insertOrUpdate(startNode.id, startNode.fx);
+	        int settled = 0;
 
-	        while (openSet.size() > 0)
+	        while (!openSet.isEmpty())
 	        { // while there are reachable nodes to investigate
 
-	            AStarNodeWrapper x = findMin(openSet); // find the shortest path so far
+	            AStarNodeWrapper x = wrappers.get(openSet.poll()); // find the shortest path so far
+	            settled++;
 	            if (x.node == goal)
 	            { // we have found the shortest possible path to the goal!
 	                // Reconstruct the path and send it back.
-	                return reconstructPath(foundNodes.get(x.node));
+	                record(settled);
+	                return reconstructPath(x);
 	            }
-	            openSet.remove(x); // maintain the lists
-	            closedSet.add(x);
+	            x.closed = true;
 
 	            // check all the edges out from this Node
 	            for (Object o : network.getEdgesOut(x.node))
 	            {
 	            	Edge l = (Edge) o;
-	                GeoNode next = null;
-	                next = (GeoNode) l.getOtherNode(x.node);
+	                GeoNode next = (GeoNode) l.getOtherNode(x.node);
 	                
 	                // get the A* meta information about this Node
-	                AStarNodeWrapper nextNode;
-	                if (foundNodes.containsKey(next))
+	                AStarNodeWrapper nextNode = foundNodes.get(next);
+	                if (nextNode == null)
 	                {
-	                    nextNode = foundNodes.get(next);
-	                } else
-	                {
-	                    nextNode = new AStarNodeWrapper(next);
-	                    foundNodes.put(next, nextNode);
-	                }
-
-	                if (closedSet.contains(nextNode)) // it has already been considered
+	                    nextNode = discover(next, foundNodes, wrappers);
+	                    // whether the node is weighted does not change during the search
+	                    if(!weightedNodes.isEmpty() && weightedNodes.contains(next))
+	                    	nextNode.nodeFactor = weight;
+	                    nextNode.hx = heuristic(nextNode, goalNode);
+	                } else if (nextNode.closed) // it has already been considered
 	                {
 	                    continue;
 	                }
 
 	                // otherwise evaluate the cost of this node/edge combo
-	                double edge_factor = 1, node_factor = 1;
-	                if(weighted.contains(l))
-	                	edge_factor = weight;
-	                if(weighted.contains(next))
-	                	node_factor = weight;
-	                double tentativeCost = node_factor * (x.gx + edge_factor * length(l));
-	                boolean better = false;
-
-	                if (!openSet.contains(nextNode))
-	                {
-	                    openSet.add(nextNode);
-	                    nextNode.hx = heuristic(next, goal);
-	                    better = true;
-	                } else if (tentativeCost < nextNode.gx)
-	                {
-	                    better = true;
+	                double edge_factor = 1, edgeCost;
+	                int e = onGraph ? adapter.edgeId(l) : -1;
+	                if(e >= 0){
+	                	edge_factor = edgeFactors[e];
+	                	edgeCost = adapter.roadCost(e);
+	                } else {
+	                	if(!weightedEdges.isEmpty() && weightedEdges.contains(l))
+	                		edge_factor = weight;
+	                	edgeCost = length(l);
 	                }
+	                double tentativeCost = nextNode.nodeFactor * (x.gx + edge_factor * edgeCost);
 
 	                // store A* information about this promising candidate node
-	                if (better)
+	                if (tentativeCost < nextNode.gx)
 	                {
 	                    nextNode.cameFrom = x;
 	                    nextNode.edgeFrom = l;
 	                    nextNode.gx = tentativeCost;
 	                    nextNode.fx = nextNode.gx + nextNode.hx;
+	                    openSet.insertOrUpdate(nextNode.id, nextNode.fx);
 	                }
 	            }
 	        }
 
-	        System.out.println("A* Problem: graph has only " + closedSet.size() + " nodes associated with it");
+	        System.out.println("A* Problem: graph has only " + settled + " nodes associated with it");
+	        record(settled);
 	        return null;
 	    }
 	
@@ -397,73 +640,73 @@ public class AStar_SWise
 
     /**
      * Measure of the estimated distance between two Nodes. Takes into account whether either of the 
-     * GeoNodes entails a delay
+     * GeoNodes entails a delay. Where landmarks are set and both nodes are on their graph, the
+     * landmark bound replaces the straight line if it is larger.
      * @param x
      * @param y
      * @return notional "distance" between the given nodes.
      */
-    double heuristic(GeoNode x, GeoNode y)
+    double heuristic(AStarNodeWrapper x, AStarNodeWrapper y)
     {
-        Coordinate xnode = x.geometry.getCoordinate();
-        Coordinate ynode = y.geometry.getCoordinate();
         int nodeCost = 0;
-        if(x.hasAttribute("delay"))
-        	nodeCost += x.getIntegerAttribute("delay");
-        if(y.hasAttribute("delay"))
-        	nodeCost += y.getIntegerAttribute("delay");
+        if(x.node.hasAttribute("delay"))
+        	nodeCost += x.node.getIntegerAttribute("delay");
+        if(y.node.hasAttribute("delay"))
+        	nodeCost += y.node.getIntegerAttribute("delay");
         
-        return nodeCost + Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
-            + Math.pow(xnode.y - ynode.y, 2));
+        return nodeCost + bound(x.node, x.landmark, y.node, y.landmark);
     }
 
-    double length(Edge e)
+    /**
+     * Lower bound on the length of any path between two Nodes: the straight line, or the
+     * landmark bound if that is larger
+     * @param x
+     * @param xid - the id of x on the landmarks' graph, or -1
+     * @param y
+     * @param yid - the id of y on the landmarks' graph, or -1
+     * @return
+     */
+    double bound(GeoNode x, int xid, GeoNode y, int yid)
     {
-        Coordinate xnode = ((GeoNode)e.from()).geometry.getCoordinate();
-        Coordinate ynode = ((GeoNode)e.to()).geometry.getCoordinate();
-        return Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
+        Coordinate xnode = x.geometry.getCoordinate();
+        Coordinate ynode = y.geometry.getCoordinate();
+        double distance = Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
             + Math.pow(xnode.y - ynode.y, 2));
+        if(xid >= 0 && yid >= 0)
+        	distance = Math.max(distance, landmarks.lowerBound(xid, yid));
+        return distance;
     }
 
     /**
-     *  Considers the list of Nodes open for consideration and returns the node
-     *  with minimum fx value
-     * @param set list of open Nodes
-     * @return
+     * @return the id of the node on the landmarks' graph at the GeoNode's coordinate, or -1
      */
-    AStarNodeWrapper findMin(ArrayList<AStarNodeWrapper> set)
+    int landmarkId(GeoNode n)
     {
-        double min = Double.MAX_VALUE;
-        AStarNodeWrapper minNode = null;
-        for (AStarNodeWrapper n : set)
+        return landmarks == null ? -1 : landmarks.graph.nodeAt(n.geometry.getCoordinate());
+    }
+
+    double length(Edge e)
+    {
+        if (adapter != null)
         {
-            if (n.fx < min)
+            double c = adapter.cost(e);
+            if (c >= 0)
             {
-                min = n.fx;
-                minNode = n;
+                return c;
             }
         }
-        return minNode;
-    }
-    
-    /**
-     *  Considers the list of Nodes open for consideration and returns the node
-     *  with minimum fx value
-     * @param set list of open Nodes
-     * @return
-     */
-    AStarNodeWrapper findMin(HashSet<AStarNodeWrapper> set)
-    {
-        double min = Double.MAX_VALUE;
-        AStarNodeWrapper minNode = null;
-        for (AStarNodeWrapper n : set)
+        if (costModel != null)
         {
-            if (n.fx < min)
+            double w = costModel.weight(e);
+            if (w >= 0)
             {
-                min = n.fx;
-                minNode = n;
+                return w;
             }
         }
-        return minNode;
+        Coordinate xnode = ((GeoNode)e.from()).geometry.getCoordinate();
+        Coordinate ynode = ((GeoNode)e.to()).geometry.getCoordinate();
+        return Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
+            + Math.pow(xnode.y - ynode.y, 2));
     }
 
     /**
@@ -480,6 +723,13 @@ public class AStar_SWise
         // the edge by which this Node was discovered
         Edge edgeFrom;
         double gx, hx, fx;
+        // index in the open set, and whether it has been taken off it
+        int id = -1;
+        // id on the landmarks' graph, or -1
+        int landmark = -1;
+        boolean closed = false;
+        // multiplier on the cost of reaching this Node, for weighted searches
+        double nodeFactor = 1;
 
 
 
@@ -497,4 +747,58 @@ public class AStar_SWise
         	return node.hashCode(); 
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The meta information about a Node for the searches from both ends
+     *
+     */
+    class BidirectionalNodeWrapper
+    {
+
+        GeoNode node;
+        // index in the search queues, and id on the landmarks' graph or -1
+        int id;
+        int landmark = -1;
+        // cost from the start, and the Node and edge it was reached by
+        double forwardCost = 0;
+        BidirectionalNodeWrapper forwardFrom = null;
+        Edge forwardEdge = null;
+        // cost to the goal, and the Node and edge it leads on to
+        double backwardCost = 0;
+        BidirectionalNodeWrapper backwardFrom = null;
+        Edge backwardEdge = null;
+        // potential of the forward search; the backward one is its negation
+        double forwardPotential = 0;
+        boolean forwardSeen = false, backwardSeen = false;
+        boolean forwardClosed = false, backwardClosed = false;
+
+        public BidirectionalNodeWrapper(GeoNode n, int id)
+        {
+            node = n;
+            this.id = id;
+        }
+
+        public int hashCode(){
+        	return node.hashCode(); 
+        }
+    }
+
+    /**
+     * A goal reached by a multi-goal search, with the path to it
+     *
+     */
+    public static class GoalPath
+    {
+        public final GeoNode goal;
+        // edges in the same order as astarPath returns them
+        public final ArrayList<Edge> path;
+        public final double cost;
+
+        public GoalPath(GeoNode goal, ArrayList<Edge> path, double cost)
+        {
+            this.goal = goal;
+            this.path = path;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Finds several good but distinct routes between two nodes, so that agents
+ * making the same trip can be spread across them instead of all queuing on
+ * the one shortest path.
+ *
+ * This uses the penalty method: after each search, the roads of the path
+ * found are made more expensive and the search is run again. A path found
+ * this way is kept as an alternative if its real cost is within maxStretch
+ * of the shortest and it shares no more than maxOverlap of its length with
+ * any route already kept. Penalties only ever raise costs, so A* keeps its
+ * straight-line heuristic.
+ *
+ * Routes are returned as arrays of arc ids, shortest first. An instance is
+ * not safe for concurrent use.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class AlternativeRoutes
+{
+
+    final RoutingGraph graph;
+    final GraphAStar astar;
+
+    // cost multiplier for the roads of each path found
+    double penalty = 1.5;
+    // how much longer than the shortest an alternative may be
+    double maxStretch = 1.4;
+    // the most of an alternative's length it may share with another route
+    double maxOverlap = 0.6;
+
+    // penalised costs, reset from the graph's costs for each query
+    final double[] penalised;
+    // marks the roads of the candidate being checked
+    final int[] onCandidate;
+    int stamp = 0;
+
+
+    public AlternativeRoutes(RoutingGraph graph)
+    {
+        this.graph = graph;
+        this.astar = new GraphAStar(graph);
+        penalised = new double[graph.arcCount];
+        onCandidate = new int[graph.getEdgeCount()];
+    }
+
+
+    /**
+     * @param penalty cost multiplier for roads already used, above 1
+     * @param maxStretch how much longer than the shortest route an
+     * alternative may be, e.g. 1.4 for 40% longer
+     * @param maxOverlap the fraction of an alternative's length it may share
+     * with another route
+     */
+    public void setLimits(double penalty, double maxStretch, double maxOverlap)
+    {
+        this.penalty = Math.max(penalty, 1.01);
+        this.maxStretch = Math.max(maxStretch, 1);
+        this.maxOverlap = maxOverlap;
+    }
+
+
+    public void setLandmarks(Landmarks landmarks)
+    {
+        astar.setLandmarks(landmarks);
+    }
+
+
+    /**
+     * @param s start node id
+     * @param t goal node id
+     * @param k the most routes wanted
+     * @return up to k routes as arc ids, the shortest first; empty if t
+     * cannot be reached
+     */
+    public ArrayList<int[]> find(int s, int t, int k)
+    {
+        ArrayList<int[]> routes = new ArrayList<int[]>(k);
+        final double[] cost = graph.cost;
+        System.arraycopy(cost, 0, penalised, 0, penalised.length);
+
+        double shortest = -1;
+        // each search that fails to find a new route still adds penalties,
+        // so a few more attempts than routes wanted are usually enough
+        for (int attempt = 0; attempt < 2 * k + 2 && routes.size() < k; attempt++)
+        {
+            int count = astar.search(s, t, penalised);
+            if (count < 0)
+            {
+                break;
+            }
+            int[] route = new int[count];
+            double routeCost = 0;
+            for (int i = 0; i < count; i++)
+            {
+                route[i] = astar.getPathArc(i);
+                routeCost += cost[route[i]];
+            }
+            if (shortest < 0)
+            {
+                shortest = routeCost;
+                routes.add(route);
+            } else if (routeCost <= maxStretch * shortest && distinct(route, routes))
+            {
+                routes.add(route);
+            }
+            penalise(route);
+        }
+        return routes;
+    }
+
+
+    /**
+     * Raises the cost of both directions of each road on the route
+     */
+    void penalise(int[] route)
+    {
+        for (int a : route)
+        {
+            int e = graph.arcEdge[a];
+            if (e < 0)
+            {
+                penalised[a] *= penalty;
+                continue;
+            }
+            for (int slot = 2 * e; slot < 2 * e + 2; slot++)
+            {
+                int arc = graph.edgeArcs[slot];
+                if (arc >= 0)
+                {
+                    penalised[arc] *= penalty;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return whether the candidate shares at most maxOverlap of its length
+     * with each of the routes
+     */
+    boolean distinct(int[] candidate, ArrayList<int[]> routes)
+    {
+        if (stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(onCandidate, 0);
+            stamp = 0;
+        }
+        int current = ++stamp;
+        double length = 0;
+        for (int a : candidate)
+        {
+            if (graph.arcEdge[a] >= 0)
+            {
+                onCandidate[graph.arcEdge[a]] = current;
+            }
+            length += graph.length[a];
+        }
+        for (int[] route : routes)
+        {
+            double shared = 0;
+            for (int a : route)
+            {
+                int e = graph.arcEdge[a];
+                if (e >= 0 && onCandidate[e] == current)
+                {
+                    shared += graph.length[a];
+                }
+            }
+            if (shared > maxOverlap * length)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,342 @@
+package network;
+
+import com.vividsolutions.jts.planargraph.Node;
+import sim.util.geo.GeomPlanarGraphDirectedEdge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Bidirectional A* over a RoutingGraph, for one-off queries on networks that
+ * have had no preprocessing.
+ *
+ * A forward search from the start and a backward search from the goal take
+ * turns, whichever has the smaller frontier going next. Both use the average potential
+ *
+ *     p(v) = (h(v, goal) - h(start, v)) / 2
+ *
+ * forwards and -p(v) backwards, where h is the straight-line (or landmark)
+ * lower bound. With this potential both searches see the same reduced arc
+ * costs, so they behave like bidirectional Dijkstra and may stop as soon as
+ * the smallest forward key plus the smallest backward key reaches the cost
+ * of the best path met so far.
+ *
+ * Each side only has to cover about half the trip. Where the straight line is
+ * a poor guide, as round estuaries and rail lines, that roughly halves the
+ * nodes settled on long trips; where it is already tight the two come out
+ * much the same.
+ *
+ * An instance is not safe for concurrent use; give each thread its own.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class BidirectionalAStar
+{
+
+    final RoutingGraph graph;
+
+    // per-node search state for each direction, trusted only when the
+    // matching seen stamp is current
+    final double[] forwardCost, backwardCost;
+    final int[] forwardArc, backwardArc;
+    final int[] forwardSeen, backwardSeen;
+    final int[] forwardClosed, backwardClosed;
+    int stamp = 0;
+
+    final IndexedMinHeap forwardQueue, backwardQueue;
+
+    // arcs of the last path found, from start to goal
+    int[] path;
+    int pathLength = 0;
+    double pathCost = 0;
+
+    // optional landmark lower bounds and bookkeeping
+    Landmarks landmarks = null;
+    SearchStats stats = null;
+
+
+    public BidirectionalAStar(RoutingGraph graph)
+    {
+        this.graph = graph;
+        int n = graph.nodeCount;
+        forwardCost = new double[n];
+        backwardCost = new double[n];
+        forwardArc = new int[n];
+        backwardArc = new int[n];
+        forwardSeen = new int[n];
+        backwardSeen = new int[n];
+        forwardClosed = new int[n];
+        backwardClosed = new int[n];
+        forwardQueue = new IndexedMinHeap(n);
+        backwardQueue = new IndexedMinHeap(n);
+        path = new int[16];
+    }
+
+
+    /**
+     * @param landmarks landmark distances to tighten the potentials with, or
+     * null for straight-line distance alone
+     */
+    public void setLandmarks(Landmarks landmarks)
+    {
+        this.landmarks = landmarks;
+    }
+
+
+    /**
+     * @param stats where to record the nodes settled by each query, or null
+     */
+    public void setStats(SearchStats stats)
+    {
+        this.stats = stats;
+    }
+
+
+    /**
+     * Finds a path between two planargraph Nodes
+     * @param start
+     * @param goal
+     * @return the directed edges leading from start to goal, or an empty list
+     * if no such path exists
+     */
+    public ArrayList<GeomPlanarGraphDirectedEdge> astarPath(Node start, Node goal)
+    {
+        ArrayList<GeomPlanarGraphDirectedEdge> result =
+            new ArrayList<GeomPlanarGraphDirectedEdge>();
+        int s = graph.nodeId(start), t = graph.nodeId(goal);
+        if (s < 0 || t < 0)
+        {
+            System.out.println("Error: invalid node provided to AStar");
+            return result;
+        }
+        if (search(s, t) < 0)
+        {
+            return result;
+        }
+        result.ensureCapacity(pathLength);
+        for (int i = 0; i < pathLength; i++)
+        {
+            result.add(graph.arcs[path[i]]);
+        }
+        return result;
+    }
+
+
+    /**
+     * Runs the search between two node ids. The path can then be read with
+     * getPathLength() and getPathArc().
+     * @param s start node id
+     * @param t goal node id
+     * @return the number of arcs on the path, or -1 if t cannot be reached
+     */
+    public int search(int s, int t)
+    {
+        pathLength = 0;
+        pathCost = 0;
+        if (s == t)
+        {
+            record(0);
+            return 0;
+        }
+        if (stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(forwardSeen, 0);
+            Arrays.fill(backwardSeen, 0);
+            Arrays.fill(forwardClosed, 0);
+            Arrays.fill(backwardClosed, 0);
+            stamp = 0;
+        }
+        int current = ++stamp;
+        forwardQueue.clear();
+        backwardQueue.clear();
+
+        forwardCost[s] = 0;
+        forwardArc[s] = -1;
+        forwardSeen[s] = current;
+        forwardQueue.insertOrUpdate(s, potential(s, s, t));
+        backwardCost[t] = 0;
+        backwardArc[t] = -1;
+        backwardSeen[t] = current;
+        backwardQueue.insertOrUpdate(t, -potential(t, s, t));
+
+        final int[] firstOut = graph.firstOut, head = graph.head, tail = graph.tail;
+        final int[] firstIn = graph.firstIn, inArc = graph.inArc;
+        final double[] cost = graph.cost;
+
+        // cost of the best path met so far, and the node where it meets
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        int settled = 0;
+
+        while (!forwardQueue.isEmpty() && !backwardQueue.isEmpty())
+        {
+            // nothing left on either frontier can lead to a shorter path
+            if (forwardQueue.peekKey() + backwardQueue.peekKey() >= best)
+            {
+                break;
+            }
+            settled++;
+
+            // expand the side with less on its frontier
+            if (forwardQueue.size() <= backwardQueue.size())
+            {
+                int v = forwardQueue.poll();
+                forwardClosed[v] = current;
+                double gv = forwardCost[v];
+                for (int a = firstOut[v], end = firstOut[v + 1]; a < end; a++)
+                {
+                    int w = head[a];
+                    if (forwardClosed[w] == current || cost[a] == Double.POSITIVE_INFINITY)
+                    {
+                        continue;
+                    }
+                    double tentative = gv + cost[a];
+                    if (forwardSeen[w] != current)
+                    {
+                        forwardSeen[w] = current;
+                    } else if (tentative >= forwardCost[w])
+                    {
+                        continue;
+                    }
+                    forwardCost[w] = tentative;
+                    forwardArc[w] = a;
+                    forwardQueue.insertOrUpdate(w, tentative + potential(w, s, t));
+                    if (backwardSeen[w] == current && tentative + backwardCost[w] < best)
+                    {
+                        best = tentative + backwardCost[w];
+                        meet = w;
+                    }
+                }
+            } else
+            {
+                int v = backwardQueue.poll();
+                backwardClosed[v] = current;
+                double gv = backwardCost[v];
+                for (int i = firstIn[v], end = firstIn[v + 1]; i < end; i++)
+                {
+                    int a = inArc[i];
+                    int w = tail[a];
+                    if (backwardClosed[w] == current || cost[a] == Double.POSITIVE_INFINITY)
+                    {
+                        continue;
+                    }
+                    double tentative = gv + cost[a];
+                    if (backwardSeen[w] != current)
+                    {
+                        backwardSeen[w] = current;
+                    } else if (tentative >= backwardCost[w])
+                    {
+                        continue;
+                    }
+                    backwardCost[w] = tentative;
+                    backwardArc[w] = a;
+                    backwardQueue.insertOrUpdate(w, tentative - potential(w, s, t));
+                    if (forwardSeen[w] == current && tentative + forwardCost[w] < best)
+                    {
+                        best = tentative + forwardCost[w];
+                        meet = w;
+                    }
+                }
+            }
+        }
+        record(settled);
+        if (meet < 0)
+        {
+            return -1;
+        }
+        pathCost = best;
+        return tracePath(meet);
+    }
+
+
+    void record(int settled)
+    {
+        if (stats != null)
+        {
+            stats.record(settled);
+        }
+    }
+
+
+    /**
+     * Joins the forward parents back from the meeting node to the backward
+     * parents on from it, in start-to-goal order
+     */
+    int tracePath(int meet)
+    {
+        int count = 0;
+        for (int v = meet; forwardArc[v] >= 0; v = graph.tail[forwardArc[v]])
+        {
+            count++;
+        }
+        int before = count;
+        for (int v = meet; backwardArc[v] >= 0; v = graph.head[backwardArc[v]])
+        {
+            count++;
+        }
+        if (path.length < count)
+        {
+            path = new int[Math.max(count, 2 * path.length)];
+        }
+        int i = before;
+        for (int v = meet; forwardArc[v] >= 0; v = graph.tail[forwardArc[v]])
+        {
+            path[--i] = forwardArc[v];
+        }
+        i = before;
+        for (int v = meet; backwardArc[v] >= 0; v = graph.head[backwardArc[v]])
+        {
+            path[i++] = backwardArc[v];
+        }
+        pathLength = count;
+        return count;
+    }
+
+
+    /**
+     * The forward potential of v: half the bound on the rest of the way to t
+     * less half the bound on the way from s. The backward potential is its
+     * negation.
+     */
+    double potential(int v, int s, int t)
+    {
+        return (bound(v, t) - bound(s, v)) / 2;
+    }
+
+
+    /**
+     * Straight-line distance between two nodes, or the landmark bound if
+     * that is larger
+     */
+    double bound(int v, int w)
+    {
+        double h = graph.distance(v, w);
+        if (landmarks != null)
+        {
+            h = Math.max(h, landmarks.lowerBound(v, w));
+        }
+        return h;
+    }
+
+
+    public int getPathLength()
+    {
+        return pathLength;
+    }
+
+
+    public int getPathArc(int i)
+    {
+        return path[i];
+    }
+
+
+    /**
+     * @return the cost of the last path found
+     */
+    public double getPathCost()
+    {
+        return pathCost;
+    }
+}
@@ -0,0 +1,296 @@
+package network;
+
+import java.util.Arrays;
+
+/**
+ * A* over a ChainGraph: only junctions are settled, one super-edge at a time,
+ * and the path found is expanded back to the RoutingGraph's arcs.
+ *
+ * The start and goal may be interior to a chain. The search then leaves the
+ * start along each of its arcs to the ends of its chain, and the goal is
+ * reached part way along the super-edges that pass through it.
+ *
+ * An instance is not safe for concurrent use; give each thread its own.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class ChainAStar
+{
+
+    final ChainGraph chains;
+    final RoutingGraph graph;
+
+    // per-node search state
+    final double[] gx;
+    // how each node was reached: from parentNode, along the arcs
+    // superArcs[segmentFrom] .. superArcs[segmentTo - 1]
+    final int[] parentNode;
+    final int[] segmentFrom;
+    final int[] segmentTo;
+    final int[] seen;
+    final int[] closed;
+    int stamp = 0;
+
+    final IndexedMinHeap openSet;
+
+    // the (up to two) super-edges through an interior goal, and where along
+    // each the goal is reached
+    final int[] goalSuper = new int[2];
+    final int[] goalPosition = new int[2];
+    final double[] goalCost = new double[2];
+    int goalSupers = 0;
+
+    // arcs of the last path found, from start to goal
+    int[] path = new int[16];
+    int pathLength = 0;
+
+    Landmarks landmarks = null;
+    SearchStats stats = null;
+
+
+    public ChainAStar(ChainGraph chains)
+    {
+        this.chains = chains;
+        this.graph = chains.graph;
+        int n = graph.nodeCount;
+        gx = new double[n];
+        parentNode = new int[n];
+        segmentFrom = new int[n];
+        segmentTo = new int[n];
+        seen = new int[n];
+        closed = new int[n];
+        openSet = new IndexedMinHeap(n);
+    }
+
+
+    public void setLandmarks(Landmarks landmarks)
+    {
+        this.landmarks = landmarks;
+    }
+
+
+    public void setStats(SearchStats stats)
+    {
+        this.stats = stats;
+    }
+
+
+    /**
+     * Runs the search between two node ids. The path can then be read with
+     * getPathLength() and getPathArc().
+     * @param s start node id
+     * @param t goal node id
+     * @return the number of arcs on the path, or -1 if t cannot be reached
+     */
+    public int search(int s, int t)
+    {
+        pathLength = 0;
+        chains.sync();
+        if (s == t)
+        {
+            return 0;
+        }
+        if (stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(seen, 0);
+            Arrays.fill(closed, 0);
+            stamp = 0;
+        }
+        int current = ++stamp;
+        openSet.clear();
+        findGoalSupers(t);
+
+        final double[] cost = chains.costSource;
+        final int[] superArcs = chains.superArcs, superStart = chains.superStart;
+
+        gx[s] = 0;
+        parentNode[s] = -1;
+        seen[s] = current;
+        closed[s] = current;
+        int settled = 1;
+        if (chains.interior[s])
+        {
+            // walk from the start to each end of its chain, looking out for
+            // the goal on the way
+            for (int a = graph.firstOut[s]; a < graph.firstOut[s + 1]; a++)
+            {
+                int sup = chains.arcSuper[a];
+                double g = 0;
+                int end = superStart[sup + 1];
+                for (int i = chains.arcPosition[a]; i < end && g < Double.POSITIVE_INFINITY; i++)
+                {
+                    g += cost[superArcs[i]];
+                    int w = graph.head[superArcs[i]];
+                    if (w == t || i == end - 1)
+                    {
+                        relax(s, w, g, chains.arcPosition[a], i + 1, t, current);
+                    }
+                }
+            }
+        } else
+        {
+            expand(s, 0, t, current);
+        }
+
+        while (!openSet.isEmpty())
+        {
+            int v = openSet.poll();
+            settled++;
+            if (v == t)
+            {
+                record(settled);
+                return tracePath(s, t);
+            }
+            closed[v] = current;
+            expand(v, gx[v], t, current);
+        }
+        record(settled);
+        return -1;
+    }
+
+
+    /**
+     * Relaxes the super-edges leaving junction v, and the goal where one of
+     * them passes through it
+     */
+    void expand(int v, double gv, int t, int current)
+    {
+        final double[] superCost = chains.superCost;
+        final int[] superStart = chains.superStart, superHead = chains.superHead;
+        for (int sup = chains.firstSuper[v], end = chains.firstSuper[v + 1]; sup < end; sup++)
+        {
+            for (int k = 0; k < goalSupers; k++)
+            {
+                if (goalSuper[k] == sup)
+                {
+                    relax(v, t, gv + goalCost[k], superStart[sup], goalPosition[k], t, current);
+                }
+            }
+            if (superCost[sup] < Double.POSITIVE_INFINITY)
+            {
+                relax(v, superHead[sup], gv + superCost[sup], superStart[sup],
+                    superStart[sup + 1], t, current);
+            }
+        }
+    }
+
+
+    void relax(int from, int w, double tentative, int segmentStart, int segmentEnd, int t,
+        int current)
+    {
+        if (closed[w] == current || tentative == Double.POSITIVE_INFINITY)
+        {
+            return;
+        }
+        if (seen[w] != current)
+        {
+            seen[w] = current;
+        } else if (tentative >= gx[w])
+        {
+            return;
+        }
+        gx[w] = tentative;
+        parentNode[w] = from;
+        segmentFrom[w] = segmentStart;
+        segmentTo[w] = segmentEnd;
+        openSet.insertOrUpdate(w, tentative + heuristic(w, t));
+    }
+
+
+    /**
+     * Notes which super-edges pass through an interior goal, and what it
+     * costs to reach it along each from the super-edge's start
+     */
+    void findGoalSupers(int t)
+    {
+        goalSupers = 0;
+        if (!chains.interior[t])
+        {
+            return;
+        }
+        final double[] cost = chains.costSource;
+        for (int i = graph.firstIn[t]; i < graph.firstIn[t + 1] && goalSupers < 2; i++)
+        {
+            int a = graph.inArc[i];
+            int sup = chains.arcSuper[a];
+            double g = 0;
+            for (int p = chains.superStart[sup]; p <= chains.arcPosition[a]; p++)
+            {
+                g += cost[chains.superArcs[p]];
+            }
+            goalSuper[goalSupers] = sup;
+            goalPosition[goalSupers] = chains.arcPosition[a] + 1;
+            goalCost[goalSupers] = g;
+            goalSupers++;
+        }
+    }
+
+
+    void record(int settled)
+    {
+        if (stats != null)
+        {
+            stats.record(settled);
+        }
+    }
+
+
+    /**
+     * Walks the parents back from t and stores the arcs of each segment in
+     * start-to-goal order
+     */
+    int tracePath(int s, int t)
+    {
+        int count = 0;
+        for (int v = t; v != s; v = parentNode[v])
+        {
+            count += segmentTo[v] - segmentFrom[v];
+        }
+        if (path.length < count)
+        {
+            path = new int[Math.max(count, 2 * path.length)];
+        }
+        int i = count;
+        for (int v = t; v != s; v = parentNode[v])
+        {
+            int length = segmentTo[v] - segmentFrom[v];
+            i -= length;
+            System.arraycopy(chains.superArcs, segmentFrom[v], path, i, length);
+        }
+        pathLength = count;
+        return count;
+    }
+
+
+    double heuristic(int v, int t)
+    {
+        double h = graph.distance(v, t);
+        if (landmarks != null)
+        {
+            h = Math.max(h, landmarks.lowerBound(v, t));
+        }
+        return h;
+    }
+
+
+    public int getPathLength()
+    {
+        return pathLength;
+    }
+
+
+    public int getPathArc(int i)
+    {
+        return path[i];
+    }
+
+
+    /**
+     * @return the cost of the last path found
+     */
+    public double getPathCost()
+    {
+        return pathLength == 0 ? 0 : gx[graph.head[path[pathLength - 1]]];
+    }
+}
@@ -0,0 +1,322 @@
+package network;
+
+import java.util.Arrays;
+
+/**
+ * The road network with its degree-2 chains collapsed, for routing.
+ *
+ * ITN splits roads into many short links, joined by nodes that only connect
+ * one link to the next. A search has to settle each of them in turn although
+ * there is nowhere else to go. Here every such node is "interior", and each
+ * run of arcs from one junction through interior nodes to the next junction
+ * is a single super-edge whose cost is the sum of its arcs' costs. A search
+ * over super-edges only settles junctions; the arcs of each super-edge are
+ * kept in order, so its result expands back to the original arcs for agents
+ * to follow.
+ *
+ * A node is interior if it has exactly two neighbours and every arc into it
+ * leads on to the other neighbour. Nodes that begin arcs no super-edge
+ * reaches - on a ring with no junction, or at the start of a one-way run -
+ * are made junctions so that every arc belongs to exactly one super-edge.
+ *
+ * Super-edge costs follow the graph's: a new cost array is picked up by
+ * sync(), and closures, which change costs in place, by update().
+ *
+ * @author KJGarbutt
+ *
+ */
+public class ChainGraph
+{
+
+    final RoutingGraph graph;
+
+    // nodes with nowhere to go but on along their chain
+    final boolean[] interior;
+    // the arc that continues on from each arc's head, -1 at a junction
+    final int[] nextArc;
+
+    final int superCount;
+    // super-edges leaving each junction in CSR form, by original node id
+    final int[] firstSuper;
+    final int[] superHead;
+    final int[] superTail;
+    // the arcs of super-edge i are superArcs[superStart[i]] ..
+    // superArcs[superStart[i + 1] - 1]
+    final int[] superStart;
+    final int[] superArcs;
+    // the super-edge each arc belongs to, and its position in superArcs
+    final int[] arcSuper;
+    final int[] arcPosition;
+
+    // sum of the current costs of each super-edge's arcs
+    final double[] superCost;
+    // the cost array superCost was summed from
+    double[] costSource = null;
+
+
+    public ChainGraph(RoutingGraph graph)
+    {
+        this.graph = graph;
+        int n = graph.nodeCount, m = graph.arcCount;
+        final int[] firstOut = graph.firstOut, head = graph.head, tail = graph.tail;
+
+        interior = new boolean[n];
+        for (int v = 0; v < n; v++)
+        {
+            interior[v] = isChainNode(v);
+        }
+        nextArc = new int[m];
+        arcSuper = new int[m];
+
+        // follow chains from junctions; any arc left over starts at a node
+        // that has to be a junction after all
+        int count;
+        boolean covered;
+        do
+        {
+            Arrays.fill(arcSuper, -1);
+            count = 0;
+            for (int a = 0; a < m; a++)
+            {
+                nextArc[a] = interior[head[a]] ? continuation(a) : -1;
+            }
+            for (int v = 0; v < n; v++)
+            {
+                if (!interior[v])
+                {
+                    for (int a = firstOut[v]; a < firstOut[v + 1]; a++)
+                    {
+                        for (int b = a; b >= 0 && arcSuper[b] < 0; b = nextArc[b])
+                        {
+                            arcSuper[b] = count;
+                        }
+                        count++;
+                    }
+                }
+            }
+            covered = true;
+            for (int a = 0; a < m; a++)
+            {
+                if (arcSuper[a] < 0)
+                {
+                    interior[tail[a]] = false;
+                    covered = false;
+                }
+            }
+        } while (!covered);
+
+        superCount = count;
+        firstSuper = new int[n + 1];
+        superHead = new int[count];
+        superTail = new int[count];
+        superStart = new int[count + 1];
+        superArcs = new int[m];
+        arcPosition = new int[m];
+        superCost = new double[count];
+
+        int s = 0, position = 0;
+        for (int v = 0; v < n; v++)
+        {
+            firstSuper[v] = s;
+            if (interior[v])
+            {
+                continue;
+            }
+            for (int a = firstOut[v]; a < firstOut[v + 1]; a++)
+            {
+                superStart[s] = position;
+                superTail[s] = v;
+                int last = a;
+                for (int b = a; b >= 0; b = nextArc[b])
+                {
+                    arcSuper[b] = s;
+                    arcPosition[b] = position;
+                    superArcs[position++] = b;
+                    last = b;
+                }
+                superHead[s] = head[last];
+                s++;
+            }
+        }
+        firstSuper[n] = s;
+        superStart[count] = position;
+        sync();
+    }
+
+
+    /**
+     * @return whether v only joins two neighbours, with each arc in leading
+     * on to the other
+     */
+    boolean isChainNode(int v)
+    {
+        final int[] firstIn = graph.firstIn, inArc = graph.inArc, tail = graph.tail;
+        int first = -1, second = -1;
+        for (int a = graph.firstOut[v]; a < graph.firstOut[v + 1]; a++)
+        {
+            int w = graph.head[a];
+            if (w == v)
+            {
+                return false;
+            }
+            if (first < 0 || first == w)
+            {
+                first = w;
+            } else if (second < 0 || second == w)
+            {
+                second = w;
+            } else
+            {
+                return false;
+            }
+        }
+        for (int i = firstIn[v]; i < firstIn[v + 1]; i++)
+        {
+            int u = tail[inArc[i]];
+            if (u == v)
+            {
+                return false;
+            }
+            if (first < 0 || first == u)
+            {
+                first = u;
+            } else if (second < 0 || second == u)
+            {
+                second = u;
+            } else
+            {
+                return false;
+            }
+        }
+        if (second < 0)
+        {
+            return false;
+        }
+        for (int i = firstIn[v]; i < firstIn[v + 1]; i++)
+        {
+            if (continuation(inArc[i]) < 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @return the one arc out of a's head that does not turn back to a's
+     * tail, or -1 if there is none or more than one
+     */
+    int continuation(int a)
+    {
+        int v = graph.head[a], u = graph.tail[a];
+        int found = -1;
+        for (int b = graph.firstOut[v]; b < graph.firstOut[v + 1]; b++)
+        {
+            if (graph.head[b] != u)
+            {
+                if (found >= 0)
+                {
+                    return -1;
+                }
+                found = b;
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Re-sums every super-edge if the graph has published new costs since
+     * they were last summed
+     */
+    public void sync()
+    {
+        double[] cost = graph.cost;
+        if (cost == costSource)
+        {
+            return;
+        }
+        for (int s = 0; s < superCount; s++)
+        {
+            superCost[s] = sum(cost, s);
+        }
+        costSource = cost;
+    }
+
+
+    /**
+     * Re-sums the super-edges holding the given arcs, after their costs
+     * have changed in place, e.g. when a road closes or opens
+     * @param arcs the changed arcs
+     * @param count how many of them there are
+     */
+    public void update(int[] arcs, int count)
+    {
+        if (graph.cost != costSource)
+        {
+            sync();
+            return;
+        }
+        for (int i = 0; i < count; i++)
+        {
+            int s = arcSuper[arcs[i]];
+            superCost[s] = sum(costSource, s);
+        }
+    }
+
+
+    double sum(double[] cost, int s)
+    {
+        double total = 0;
+        for (int i = superStart[s]; i < superStart[s + 1]; i++)
+        {
+            total += cost[superArcs[i]];
+        }
+        return total;
+    }
+
+
+    public boolean isInterior(int node)
+    {
+        return interior[node];
+    }
+
+
+    /**
+     * @return the number of nodes that are not interior to a chain
+     */
+    public int getJunctionCount()
+    {
+        int count = 0;
+        for (boolean i : interior)
+        {
+            count += i ? 0 : 1;
+        }
+        return count;
+    }
+
+
+    public int getSuperEdgeCount()
+    {
+        return superCount;
+    }
+
+
+    /**
+     * @return the number of arcs in super-edge s
+     */
+    public int getArcCount(int s)
+    {
+        return superStart[s + 1] - superStart[s];
+    }
+
+
+    /**
+     * @return the i'th arc of super-edge s
+     */
+    public int getArc(int s, int i)
+    {
+        return superArcs[superStart[s] + i];
+    }
+}
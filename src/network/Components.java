@@ -0,0 +1,312 @@
+package network;
+
+import java.util.Arrays;
+
+/**
+ * Weakly and strongly connected component labels for the nodes of a
+ * RoutingGraph, worked out once when the network is built.
+ *
+ * Two nodes in different weak components can never be joined, and a node
+ * cannot reach one in another strong component of the same weak component
+ * unless the one-way arcs between them allow it. The strong components are
+ * numbered in reverse topological order of the graph they condense to, so
+ * most one-way dead ends are ruled out by comparing two labels; otherwise
+ * the condensed graph, with far fewer nodes than the network, is searched
+ * from the source's component. Either way this is much less than the full
+ * search it takes A* to find that no path exists.
+ *
+ * The labels are computed over every arc, open or closed. Closing roads can
+ * only disconnect nodes further, so "unreachable" answers stay true; a
+ * "reachable" answer still has to be confirmed by the search.
+ *
+ * mayReach reuses its own search arrays, so an instance is not safe for
+ * concurrent queries; RoutePlanner only asks from one thread.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class Components
+{
+
+    final RoutingGraph graph;
+    final int[] weak;
+    final int[] strong;
+    final int weakCount;
+    final int strongCount;
+    // number of nodes in each weak component
+    final int[] weakSize;
+
+    // arcs between strong components in CSR form: the components reached
+    // directly from c are condensed[firstCondensed[c]] ..
+    // condensed[firstCondensed[c + 1] - 1]
+    final int[] firstCondensed;
+    final int[] condensed;
+    // search state for mayReach
+    final int[] seen;
+    final int[] stack;
+    int stamp = 0;
+
+
+    public Components(RoutingGraph graph)
+    {
+        this.graph = graph;
+        int n = graph.nodeCount;
+        weak = new int[n];
+        strong = new int[n];
+
+        weakCount = labelWeak();
+        weakSize = new int[weakCount];
+        for (int v = 0; v < n; v++)
+        {
+            weakSize[weak[v]]++;
+        }
+        strongCount = labelStrong();
+
+        firstCondensed = new int[strongCount + 1];
+        for (int a = 0; a < graph.arcCount; a++)
+        {
+            int from = strong[graph.tail[a]];
+            if (from != strong[graph.head[a]])
+            {
+                firstCondensed[from + 1]++;
+            }
+        }
+        for (int c = 0; c < strongCount; c++)
+        {
+            firstCondensed[c + 1] += firstCondensed[c];
+        }
+        condensed = new int[firstCondensed[strongCount]];
+        int[] fill = Arrays.copyOf(firstCondensed, strongCount);
+        for (int a = 0; a < graph.arcCount; a++)
+        {
+            int from = strong[graph.tail[a]], to = strong[graph.head[a]];
+            if (from != to)
+            {
+                condensed[fill[from]++] = to;
+            }
+        }
+        seen = new int[strongCount];
+        stack = new int[strongCount];
+    }
+
+
+    /**
+     * Union-find over the arcs, ignoring their direction
+     * @return the number of components
+     */
+    int labelWeak()
+    {
+        int n = graph.nodeCount;
+        int[] parent = new int[n];
+        for (int v = 0; v < n; v++)
+        {
+            parent[v] = v;
+        }
+        for (int a = 0; a < graph.arcCount; a++)
+        {
+            int u = find(parent, graph.tail[a]), w = find(parent, graph.head[a]);
+            if (u != w)
+            {
+                // keep the smaller index as the root so labels are stable
+                parent[Math.max(u, w)] = Math.min(u, w);
+            }
+        }
+        int count = 0;
+        Arrays.fill(weak, -1);
+        for (int v = 0; v < n; v++)
+        {
+            int root = find(parent, v);
+            if (weak[root] < 0)
+            {
+                weak[root] = count++;
+            }
+            weak[v] = weak[root];
+        }
+        return count;
+    }
+
+
+    static int find(int[] parent, int v)
+    {
+        while (parent[v] != v)
+        {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+
+    /**
+     * Tarjan's algorithm, with an explicit stack so that long chains of
+     * roads cannot overflow the call stack
+     * @return the number of components
+     */
+    int labelStrong()
+    {
+        int n = graph.nodeCount;
+        final int[] firstOut = graph.firstOut, head = graph.head;
+        int[] index = new int[n];
+        int[] low = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int stackSize = 0;
+        // the depth-first path: a node and the next of its arcs to explore
+        int[] callNode = new int[n];
+        int[] callArc = new int[n];
+        Arrays.fill(index, -1);
+        int counter = 0, count = 0;
+
+        for (int root = 0; root < n; root++)
+        {
+            if (index[root] >= 0)
+            {
+                continue;
+            }
+            int depth = 0;
+            callNode[0] = root;
+            callArc[0] = firstOut[root];
+            index[root] = low[root] = counter++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+
+            while (depth >= 0)
+            {
+                int v = callNode[depth];
+                if (callArc[depth] < firstOut[v + 1])
+                {
+                    int w = head[callArc[depth]++];
+                    if (index[w] < 0)
+                    {
+                        index[w] = low[w] = counter++;
+                        stack[stackSize++] = w;
+                        onStack[w] = true;
+                        depth++;
+                        callNode[depth] = w;
+                        callArc[depth] = firstOut[w];
+                    } else if (onStack[w])
+                    {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+
+                // all of v's arcs done: close its component if it is the root
+                if (low[v] == index[v])
+                {
+                    int w;
+                    do
+                    {
+                        w = stack[--stackSize];
+                        onStack[w] = false;
+                        strong[w] = count;
+                    } while (w != v);
+                    count++;
+                }
+                depth--;
+                if (depth >= 0)
+                {
+                    int parent = callNode[depth];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * @return false if there can be no path from s to t, true if there may be
+     */
+    public boolean mayReach(int s, int t)
+    {
+        int from = strong[s], to = strong[t];
+        if (from == to)
+        {
+            return true;
+        }
+        // Tarjan closes a component only after every component it leads
+        // to, so arcs between components always go to lower labels
+        if (weak[s] != weak[t] || from < to)
+        {
+            return false;
+        }
+
+        // search the condensed graph, skipping components numbered below
+        // the target's, which cannot lead back up to it
+        if (stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(seen, 0);
+            stamp = 0;
+        }
+        int current = ++stamp;
+        int size = 0;
+        stack[size++] = from;
+        seen[from] = current;
+        while (size > 0)
+        {
+            int c = stack[--size];
+            for (int i = firstCondensed[c]; i < firstCondensed[c + 1]; i++)
+            {
+                int d = condensed[i];
+                if (d == to)
+                {
+                    return true;
+                }
+                if (d > to && seen[d] != current)
+                {
+                    seen[d] = current;
+                    stack[size++] = d;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    public int getWeak(int v)
+    {
+        return weak[v];
+    }
+
+
+    public int getStrong(int v)
+    {
+        return strong[v];
+    }
+
+
+    public int getWeakCount()
+    {
+        return weakCount;
+    }
+
+
+    public int getStrongCount()
+    {
+        return strongCount;
+    }
+
+
+    /**
+     * @return the number of nodes in the weak component holding v
+     */
+    public int getWeakSize(int v)
+    {
+        return weakSize[weak[v]];
+    }
+
+
+    /**
+     * @return the number of nodes in the largest weak component
+     */
+    public int getLargestWeakSize()
+    {
+        int largest = 0;
+        for (int size : weakSize)
+        {
+            largest = Math.max(largest, size);
+        }
+        return largest;
+    }
+}
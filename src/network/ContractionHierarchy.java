@@ -0,0 +1,483 @@
+package network;
+
+import sim.util.geo.GeomPlanarGraphDirectedEdge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * A contraction hierarchy over a RoutingGraph, built so that edge costs can be
+ * changed cheaply after preprocessing.
+ *
+ * Preprocessing only looks at the shape of the network. Nodes are contracted
+ * in minimum degree order and every shortcut the contraction could need is
+ * kept, whatever the costs. This gives the upward graph: each node knows its
+ * neighbours that were contracted after it.
+ *
+ * Customization then fills in the costs. It visits each triangle of the
+ * upward graph once, bottom up, and sets every shortcut to the cheapest way
+ * round. Costs are read from the graph's current cost array, so after a road
+ * is closed or reopened a call to customize() brings the hierarchy up to date
+ * in a fraction of the preprocessing time.
+ *
+ * Queries run Dijkstra upwards from both ends and meet at the highest node of
+ * the shortest path. Shortcuts are then unpacked back into planargraph edges.
+ *
+ * An instance is not safe for concurrent queries.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class ContractionHierarchy
+{
+
+    final RoutingGraph graph;
+    final int nodeCount;
+
+    // position of each node in the contraction order, and its inverse
+    final int[] rank;
+    final int[] order;
+
+    // upward arcs in CSR form, sorted by head node id within each node
+    final int[] firstUp;
+    final int[] upHead;
+    final int[] upTail;
+
+    // customized costs of going up (tail to head) and down (head to tail)
+    final double[] upCost;
+    final double[] downCost;
+    // the cheapest original arc in each direction, or -1
+    final int[] upArc;
+    final int[] downArc;
+    // the lower node the cheapest way round passes through, or -1 if the
+    // original arc is cheapest
+    final int[] upVia;
+    final int[] downVia;
+
+    // query state, stamped as in GraphAStar
+    final double[] forwardDist, backwardDist;
+    final int[] forwardParent, backwardParent;
+    final int[] forwardSeen, backwardSeen;
+    int stamp = 0;
+    final IndexedMinHeap forwardQueue, backwardQueue;
+
+    // arcs of the last path found, from start to goal
+    int[] path = new int[64];
+    int pathLength = 0;
+    int[] stack = new int[64];
+
+
+    /**
+     * Contracts the graph and customizes it with the graph's current costs
+     * @param graph
+     */
+    public ContractionHierarchy(RoutingGraph graph)
+    {
+        this.graph = graph;
+        nodeCount = graph.nodeCount;
+        rank = new int[nodeCount];
+        order = new int[nodeCount];
+
+        // contract, recording the upward neighbours of each node
+        int[][] up = contract();
+
+        firstUp = new int[nodeCount + 1];
+        for (int v = 0; v < nodeCount; v++)
+        {
+            firstUp[v + 1] = firstUp[v] + up[v].length;
+        }
+        int upCount = firstUp[nodeCount];
+        upHead = new int[upCount];
+        upTail = new int[upCount];
+        for (int v = 0; v < nodeCount; v++)
+        {
+            System.arraycopy(up[v], 0, upHead, firstUp[v], up[v].length);
+            Arrays.fill(upTail, firstUp[v], firstUp[v + 1], v);
+        }
+
+        upCost = new double[upCount];
+        downCost = new double[upCount];
+        upArc = new int[upCount];
+        downArc = new int[upCount];
+        upVia = new int[upCount];
+        downVia = new int[upCount];
+
+        forwardDist = new double[nodeCount];
+        backwardDist = new double[nodeCount];
+        forwardParent = new int[nodeCount];
+        backwardParent = new int[nodeCount];
+        forwardSeen = new int[nodeCount];
+        backwardSeen = new int[nodeCount];
+        forwardQueue = new IndexedMinHeap(nodeCount);
+        backwardQueue = new IndexedMinHeap(nodeCount);
+
+        customize();
+    }
+
+
+    /**
+     * Eliminates nodes in minimum degree order, adding fill-in edges between
+     * the remaining neighbours of each eliminated node.
+     * @return the sorted upward neighbours of every node
+     */
+    int[][] contract()
+    {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        HashSet<Integer>[] neighbours = new HashSet[nodeCount];
+        for (int v = 0; v < nodeCount; v++)
+        {
+            neighbours[v] = new HashSet<Integer>();
+        }
+        for (int a = 0; a < graph.arcCount; a++)
+        {
+            int u = graph.tail[a], v = graph.head[a];
+            if (u != v)
+            {
+                neighbours[u].add(v);
+                neighbours[v].add(u);
+            }
+        }
+
+        IndexedMinHeap queue = new IndexedMinHeap(nodeCount);
+        for (int v = 0; v < nodeCount; v++)
+        {
+            queue.insertOrUpdate(v, neighbours[v].size());
+        }
+
+        int[][] up = new int[nodeCount][];
+        int next = 0;
+        while (!queue.isEmpty())
+        {
+            int x = queue.poll();
+            rank[x] = next;
+            order[next++] = x;
+
+            int[] remaining = new int[neighbours[x].size()];
+            int i = 0;
+            for (int v : neighbours[x])
+            {
+                remaining[i++] = v;
+            }
+            Arrays.sort(remaining);
+            up[x] = remaining;
+
+            // the remaining neighbours become a clique
+            for (int v : remaining)
+            {
+                neighbours[v].remove(x);
+            }
+            for (int j = 0; j < remaining.length; j++)
+            {
+                for (int k = j + 1; k < remaining.length; k++)
+                {
+                    neighbours[remaining[j]].add(remaining[k]);
+                    neighbours[remaining[k]].add(remaining[j]);
+                }
+            }
+            for (int v : remaining)
+            {
+                queue.insertOrUpdate(v, neighbours[v].size());
+            }
+            neighbours[x] = null;
+        }
+        return up;
+    }
+
+
+    /**
+     * Recomputes every shortcut cost from the graph's current arc costs. Call
+     * this after roads have been closed or reopened.
+     */
+    public void customize()
+    {
+        Arrays.fill(upCost, Double.POSITIVE_INFINITY);
+        Arrays.fill(downCost, Double.POSITIVE_INFINITY);
+        Arrays.fill(upArc, -1);
+        Arrays.fill(downArc, -1);
+        Arrays.fill(upVia, -1);
+        Arrays.fill(downVia, -1);
+
+        // the original arcs
+        final double[] cost = graph.cost;
+        for (int a = 0; a < graph.arcCount; a++)
+        {
+            int u = graph.tail[a], v = graph.head[a];
+            if (u == v)
+            {
+                continue;
+            }
+            double c = cost[a];
+            if (rank[u] < rank[v])
+            {
+                int k = findArc(u, v);
+                if (c < upCost[k] || upArc[k] < 0)
+                {
+                    upCost[k] = c;
+                    upArc[k] = a;
+                }
+            } else
+            {
+                int k = findArc(v, u);
+                if (c < downCost[k] || downArc[k] < 0)
+                {
+                    downCost[k] = c;
+                    downArc[k] = a;
+                }
+            }
+        }
+
+        // lower triangles, bottom up: for z below a below b, the way from a
+        // to b through z is a->z (down z-a) then z->b (up z-b)
+        for (int r = 0; r < nodeCount; r++)
+        {
+            int z = order[r];
+            for (int i = firstUp[z], end = firstUp[z + 1]; i < end; i++)
+            {
+                for (int j = firstUp[z]; j < end; j++)
+                {
+                    if (i == j)
+                    {
+                        continue;
+                    }
+                    int a = upHead[i], b = upHead[j];
+                    if (rank[a] > rank[b])
+                    {
+                        continue;
+                    }
+                    int k = findArc(a, b);
+                    double viaUp = downCost[i] + upCost[j];
+                    if (viaUp < upCost[k])
+                    {
+                        upCost[k] = viaUp;
+                        upVia[k] = z;
+                    }
+                    double viaDown = downCost[j] + upCost[i];
+                    if (viaDown < downCost[k])
+                    {
+                        downCost[k] = viaDown;
+                        downVia[k] = z;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the index of the upward arc from lower to higher
+     */
+    int findArc(int lower, int higher)
+    {
+        return Arrays.binarySearch(upHead, firstUp[lower], firstUp[lower + 1], higher);
+    }
+
+
+    /**
+     * Finds the shortest path between two node ids. The path can then be read
+     * with getPathLength() and getPathArc().
+     * @return the number of arcs on the path, or -1 if t cannot be reached
+     */
+    public int search(int s, int t)
+    {
+        pathLength = 0;
+        if (s == t)
+        {
+            return 0;
+        }
+        if (stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(forwardSeen, 0);
+            Arrays.fill(backwardSeen, 0);
+            stamp = 0;
+        }
+        int current = ++stamp;
+        forwardQueue.clear();
+        backwardQueue.clear();
+
+        forwardDist[s] = 0;
+        forwardParent[s] = -1;
+        forwardSeen[s] = current;
+        forwardQueue.insertOrUpdate(s, 0);
+        backwardDist[t] = 0;
+        backwardParent[t] = -1;
+        backwardSeen[t] = current;
+        backwardQueue.insertOrUpdate(t, 0);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        boolean forward = true;
+        while (true)
+        {
+            boolean forwardLive = !forwardQueue.isEmpty() && forwardQueue.peekKey() < best;
+            boolean backwardLive = !backwardQueue.isEmpty() && backwardQueue.peekKey() < best;
+            if (!forwardLive && !backwardLive)
+            {
+                break;
+            }
+            if (!forwardLive)
+            {
+                forward = false;
+            } else if (!backwardLive)
+            {
+                forward = true;
+            }
+
+            IndexedMinHeap queue = forward ? forwardQueue : backwardQueue;
+            double[] dist = forward ? forwardDist : backwardDist;
+            int[] parent = forward ? forwardParent : backwardParent;
+            int[] seen = forward ? forwardSeen : backwardSeen;
+            double[] cost = forward ? upCost : downCost;
+            double[] otherDist = forward ? backwardDist : forwardDist;
+            int[] otherSeen = forward ? backwardSeen : forwardSeen;
+
+            int v = queue.poll();
+            double dv = dist[v];
+            if (otherSeen[v] == current && dv + otherDist[v] < best)
+            {
+                best = dv + otherDist[v];
+                meeting = v;
+            }
+            for (int k = firstUp[v], end = firstUp[v + 1]; k < end; k++)
+            {
+                double c = cost[k];
+                if (c == Double.POSITIVE_INFINITY)
+                {
+                    continue;
+                }
+                int w = upHead[k];
+                double dw = dv + c;
+                if (seen[w] != current || dw < dist[w])
+                {
+                    seen[w] = current;
+                    dist[w] = dw;
+                    parent[w] = k;
+                    queue.insertOrUpdate(w, dw);
+                }
+            }
+            forward = !forward;
+        }
+
+        if (meeting < 0)
+        {
+            return -1;
+        }
+        unpackPath(s, t, meeting);
+        return pathLength;
+    }
+
+
+    /**
+     * Expands the upward arcs on both sides of the meeting node into the
+     * original arcs, in order from s to t
+     */
+    void unpackPath(int s, int t, int meeting)
+    {
+        // forward half: collect the upward arcs from s to the meeting node
+        int depth = 0;
+        for (int v = meeting; v != s; v = upTail[forwardParent[v]])
+        {
+            depth++;
+        }
+        int[] chain = new int[depth];
+        int i = depth;
+        for (int v = meeting; v != s; v = upTail[forwardParent[v]])
+        {
+            chain[--i] = forwardParent[v];
+        }
+        for (int k : chain)
+        {
+            unpack(k, true);
+        }
+
+        // backward half: from the meeting node down to t
+        for (int v = meeting; v != t; v = upTail[backwardParent[v]])
+        {
+            unpack(backwardParent[v], false);
+        }
+    }
+
+
+    /**
+     * Appends the original arcs of an upward arc to the path, travelling up
+     * (lower to higher end) or down
+     */
+    void unpack(int arc, boolean up)
+    {
+        int top = 0;
+        stack = ensure(stack, 1);
+        stack[top++] = up ? 2 * arc : 2 * arc + 1;
+        while (top > 0)
+        {
+            int item = stack[--top];
+            int k = item >>> 1;
+            boolean goingUp = (item & 1) == 0;
+            int via = goingUp ? upVia[k] : downVia[k];
+            if (via < 0)
+            {
+                path = ensure(path, pathLength + 1);
+                path[pathLength++] = goingUp ? upArc[k] : downArc[k];
+                continue;
+            }
+            int lower = upTail[k], higher = upHead[k];
+            int toLower = findArc(via, lower), toHigher = findArc(via, higher);
+            // push in reverse so the first half comes off the stack first
+            stack = ensure(stack, top + 2);
+            if (goingUp)
+            {
+                // lower -> via -> higher
+                stack[top++] = 2 * toHigher;
+                stack[top++] = 2 * toLower + 1;
+            } else
+            {
+                // higher -> via -> lower
+                stack[top++] = 2 * toLower;
+                stack[top++] = 2 * toHigher + 1;
+            }
+        }
+    }
+
+
+    static int[] ensure(int[] array, int size)
+    {
+        return array.length >= size ? array : Arrays.copyOf(array, Math.max(size, 2 * array.length));
+    }
+
+
+    public int getPathLength()
+    {
+        return pathLength;
+    }
+
+
+    public int getPathArc(int i)
+    {
+        return path[i];
+    }
+
+
+    /**
+     * @return the number of upward arcs, original and shortcut
+     */
+    public int getUpwardArcCount()
+    {
+        return upHead.length;
+    }
+
+
+    /**
+     * Finds a path between two node ids as planargraph edges
+     * @return the directed edges from s to t, or an empty list
+     */
+    public ArrayList<GeomPlanarGraphDirectedEdge> path(int s, int t)
+    {
+        ArrayList<GeomPlanarGraphDirectedEdge> result =
+            new ArrayList<GeomPlanarGraphDirectedEdge>();
+        int count = search(s, t);
+        for (int i = 0; i < count; i++)
+        {
+            result.add(graph.arcs[path[i]]);
+        }
+        return result;
+    }
+}
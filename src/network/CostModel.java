@@ -0,0 +1,192 @@
+package network;
+
+import sim.field.network.Edge;
+import sim.util.geo.GeomPlanarGraphEdge;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compiles what it costs to use each road into one weight per arc of a
+ * RoutingGraph, so that routers read a single array rather than measuring
+ * geometry or looking edges up in sets as they search.
+ *
+ * The weight of an arc is its length along the road multiplied by three
+ * factors held per road:
+ *
+ *     road class   - e.g. slower for minor roads
+ *     flood        - a penalty for roads in or near a flood zone
+ *     congestion   - refreshed from traffic counts as the run goes on
+ *
+ * Factors are never less than one, so a weight is never less than the
+ * length and the straight-line and landmark heuristics stay admissible.
+ *
+ * Changing a factor only changes the model. compile() turns it into a fresh
+ * weight array, which RoutePlanner.applyCosts() publishes to the graph in
+ * one swap between ticks.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class CostModel
+{
+
+    final RoutingGraph graph;
+
+    // factors per undirected edge
+    final double[] classFactor;
+    final double[] floodFactor;
+    final double[] congestionFactor;
+
+    // the weights last compiled, per arc
+    double[] weights = null;
+    // number of times compile() has been called
+    int version = 0;
+
+
+    /**
+     * A model with every factor set to one, i.e. weights equal to lengths
+     * @param graph
+     */
+    public CostModel(RoutingGraph graph)
+    {
+        this.graph = graph;
+        int edges = graph.getEdgeCount();
+        classFactor = new double[edges];
+        floodFactor = new double[edges];
+        congestionFactor = new double[edges];
+        Arrays.fill(classFactor, 1);
+        Arrays.fill(floodFactor, 1);
+        Arrays.fill(congestionFactor, 1);
+    }
+
+
+    /**
+     * Sets every road's class factor from one of its attributes
+     * @param attribute the road attribute naming its class
+     * @param factors the factor for each class; roads of other classes, or
+     * with no such attribute, get 1
+     */
+    public void setRoadClassFactors(String attribute, Map<String, Double> factors)
+    {
+        for (int e = 0; e < classFactor.length; e++)
+        {
+            GeomPlanarGraphEdge edge = graph.edges[e];
+            Double factor = null;
+            if (edge.hasAttribute(attribute))
+            {
+                factor = factors.get(edge.getStringAttribute(attribute));
+            }
+            classFactor[e] = factor == null ? 1 : atLeastOne(factor);
+        }
+    }
+
+
+    public void setRoadClassFactor(int edge, double factor)
+    {
+        classFactor[edge] = atLeastOne(factor);
+    }
+
+
+    public void setFloodFactor(int edge, double factor)
+    {
+        floodFactor[edge] = atLeastOne(factor);
+    }
+
+
+    /**
+     * Removes all flood penalties
+     */
+    public void clearFloodFactors()
+    {
+        Arrays.fill(floodFactor, 1);
+    }
+
+
+    public void setCongestionFactor(int edge, double factor)
+    {
+        congestionFactor[edge] = atLeastOne(factor);
+    }
+
+
+    /**
+     * Removes all congestion penalties
+     */
+    public void clearCongestionFactors()
+    {
+        Arrays.fill(congestionFactor, 1);
+    }
+
+
+    static double atLeastOne(double factor)
+    {
+        return factor > 1 ? factor : 1;
+    }
+
+
+    /**
+     * @return the product of a road's factors
+     */
+    public double edgeFactor(int edge)
+    {
+        return classFactor[edge] * floodFactor[edge] * congestionFactor[edge];
+    }
+
+
+    /**
+     * Turns the current factors into a new weight per arc. The array
+     * returned is not changed again by the model.
+     */
+    public double[] compile()
+    {
+        double[] next = new double[graph.arcCount];
+        for (int a = 0; a < next.length; a++)
+        {
+            int e = graph.arcEdge[a];
+            next[a] = e < 0 ? graph.length[a] : graph.length[a] * edgeFactor(e);
+        }
+        weights = next;
+        version++;
+        return next;
+    }
+
+
+    /**
+     * @return the number of times the model has been compiled
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+
+    /**
+     * The compiled weight of a road, for routers over a MASON Network whose
+     * edges carry the GeomPlanarGraphEdge they were built from as their info
+     * @param e
+     * @return the smaller weight of the road's two directions, or -1 if the
+     * edge is not one of the graph's roads or nothing has been compiled
+     */
+    public double weight(Edge e)
+    {
+        if (weights == null || !(e.info instanceof GeomPlanarGraphEdge))
+        {
+            return -1;
+        }
+        int id = graph.edgeId((GeomPlanarGraphEdge) e.info);
+        if (id < 0)
+        {
+            return -1;
+        }
+        double w = Double.POSITIVE_INFINITY;
+        for (int slot = 2 * id; slot < 2 * id + 2; slot++)
+        {
+            int a = graph.edgeArcs[slot];
+            if (a >= 0)
+            {
+                w = Math.min(w, weights[a]);
+            }
+        }
+        return w;
+    }
+}
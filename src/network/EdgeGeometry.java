@@ -0,0 +1,181 @@
+package network;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+import java.util.Arrays;
+
+/**
+ * The polyline of every road, flattened into arrays once when the network is
+ * loaded, for placing agents along roads as they move.
+ *
+ * Placing a point with a LengthIndexedLine walks the line from its start and
+ * allocates a Coordinate each time, which adds up on long rural roads with
+ * many vertices, every agent, every tick. Here each road's vertices are kept
+ * with the distance along the road at which each falls, so locate() finds the
+ * segment by binary search and writes the point into a buffer the caller
+ * owns.
+ *
+ * Roads are indexed by RoutingGraph edge id, and distances run from the
+ * start of each road's line, as LengthIndexedLine's do.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class EdgeGeometry
+{
+
+    // the vertices of road e are firstPoint[e] .. firstPoint[e + 1] - 1
+    final int[] firstPoint;
+    final double[] x, y;
+    // distance along its road of each vertex
+    final double[] along;
+
+
+    /**
+     * @param graph the roads to cache, by edge id
+     */
+    public EdgeGeometry(RoutingGraph graph)
+    {
+        this(lines(graph));
+    }
+
+
+    /**
+     * @param lines the line of each road, by road id
+     */
+    public EdgeGeometry(LineString[] lines)
+    {
+        int total = 0;
+        for (LineString line : lines)
+        {
+            total += line.getNumPoints();
+        }
+        firstPoint = new int[lines.length + 1];
+        x = new double[total];
+        y = new double[total];
+        along = new double[total];
+
+        int p = 0;
+        for (int e = 0; e < lines.length; e++)
+        {
+            firstPoint[e] = p;
+            Coordinate[] coordinates = lines[e].getCoordinates();
+            double distance = 0;
+            for (int k = 0; k < coordinates.length; k++, p++)
+            {
+                x[p] = coordinates[k].x;
+                y[p] = coordinates[k].y;
+                if (k > 0)
+                {
+                    distance += Math.hypot(x[p] - x[p - 1], y[p] - y[p - 1]);
+                }
+                along[p] = distance;
+            }
+        }
+        firstPoint[lines.length] = p;
+    }
+
+
+    static LineString[] lines(RoutingGraph graph)
+    {
+        LineString[] lines = new LineString[graph.getEdgeCount()];
+        for (int e = 0; e < lines.length; e++)
+        {
+            lines[e] = graph.edge(e).getLine();
+        }
+        return lines;
+    }
+
+
+    public int getEdgeCount()
+    {
+        return firstPoint.length - 1;
+    }
+
+
+    /**
+     * @return the length of road e
+     */
+    public double length(int e)
+    {
+        int last = firstPoint[e + 1] - 1;
+        return last < firstPoint[e] ? 0 : along[last];
+    }
+
+
+    /**
+     * Finds the point a given distance along road e
+     * @param e the road
+     * @param distance how far along it, clamped to the road's ends
+     * @param into receives the point
+     */
+    public void locate(int e, double distance, Coordinate into)
+    {
+        int first = firstPoint[e], last = firstPoint[e + 1] - 1;
+        if (distance <= 0 || first == last)
+        {
+            into.x = x[first];
+            into.y = y[first];
+            return;
+        }
+        if (distance >= along[last])
+        {
+            into.x = x[last];
+            into.y = y[last];
+            return;
+        }
+        // the vertex that ends the segment holding the point
+        int k = Arrays.binarySearch(along, first + 1, last + 1, distance);
+        if (k >= 0)
+        {
+            into.x = x[k];
+            into.y = y[k];
+            return;
+        }
+        k = -k - 1;
+        double span = along[k] - along[k - 1];
+        double t = span > 0 ? (distance - along[k - 1]) / span : 0;
+        into.x = x[k - 1] + t * (x[k] - x[k - 1]);
+        into.y = y[k - 1] + t * (y[k] - y[k - 1]);
+    }
+
+
+    /**
+     * @return how far along road e the point on it nearest (px, py) lies
+     */
+    public double project(int e, double px, double py)
+    {
+        int first = firstPoint[e], last = firstPoint[e + 1] - 1;
+        double best = Double.POSITIVE_INFINITY, bestAlong = 0;
+        for (int k = first; k < last; k++)
+        {
+            double dx = x[k + 1] - x[k], dy = y[k + 1] - y[k];
+            double span = dx * dx + dy * dy;
+            double t = span > 0 ? ((px - x[k]) * dx + (py - y[k]) * dy) / span : 0;
+            t = Math.max(0, Math.min(1, t));
+            double qx = x[k] + t * dx - px, qy = y[k] + t * dy - py;
+            double d = qx * qx + qy * qy;
+            if (d < best)
+            {
+                best = d;
+                bestAlong = along[k] + t * (along[k + 1] - along[k]);
+            }
+        }
+        return bestAlong;
+    }
+
+
+    /**
+     * @return whether the line runs the same way between the same ends as
+     * the cached road e, so distances along one are distances along the other
+     */
+    public boolean matches(int e, LineString line)
+    {
+        int first = firstPoint[e], last = firstPoint[e + 1] - 1;
+        int n = line.getNumPoints();
+        return n == last - first + 1
+            && line.getCoordinateN(0).x == x[first] && line.getCoordinateN(0).y == y[first]
+            && line.getCoordinateN(n - 1).x == x[last] && line.getCoordinateN(n - 1).y == y[last];
+    }
+}
@@ -0,0 +1,106 @@
+package network;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import utilities.KdTree;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * A set of goal GeoNodes for searches that may end at any of them, such as
+ * finding the nearest of many rest centres.
+ *
+ * Membership is a hash lookup, and the heuristic - the straight-line
+ * distance to the nearest goal - comes from a KdTree over the goal
+ * coordinates, so neither grows with the number of goals.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class GoalSet
+{
+
+    final GeoNode[] goals;
+    final HashMap<GeoNode, Integer> index;
+    final KdTree tree;
+
+
+    /**
+     * @param goals the goal nodes; duplicates are ignored
+     */
+    public GoalSet(Collection<GeoNode> goals)
+    {
+        index = new HashMap<GeoNode, Integer>(2 * goals.size());
+        for (GeoNode n : goals)
+        {
+            if (!index.containsKey(n))
+            {
+                index.put(n, index.size());
+            }
+        }
+        this.goals = new GeoNode[index.size()];
+        double[] x = new double[this.goals.length], y = new double[this.goals.length];
+        for (GeoNode n : index.keySet())
+        {
+            int i = index.get(n);
+            this.goals[i] = n;
+            Coordinate c = n.geometry.getCoordinate();
+            x[i] = c.x;
+            y[i] = c.y;
+        }
+        tree = new KdTree(x, y);
+    }
+
+
+    public boolean contains(GeoNode n)
+    {
+        return index.containsKey(n);
+    }
+
+
+    /**
+     * @return the position of the goal in this set, or -1 if n is not a goal
+     */
+    public int indexOf(GeoNode n)
+    {
+        Integer i = index.get(n);
+        return i == null ? -1 : i;
+    }
+
+
+    public GeoNode get(int i)
+    {
+        return goals[i];
+    }
+
+
+    public int size()
+    {
+        return goals.length;
+    }
+
+
+    public boolean isEmpty()
+    {
+        return goals.length == 0;
+    }
+
+
+    /**
+     * @return the straight-line distance from c to the nearest goal
+     */
+    public double distanceToNearest(Coordinate c)
+    {
+        return tree.nearestDistance(c.x, c.y);
+    }
+
+
+    /**
+     * @return the goal nearest to c in a straight line
+     */
+    public GeoNode nearestTo(Coordinate c)
+    {
+        int i = tree.nearest(c.x, c.y);
+        return i < 0 ? null : goals[i];
+    }
+}
@@ -0,0 +1,254 @@
+package network;
+
+import com.vividsolutions.jts.planargraph.Node;
+import sim.util.geo.GeomPlanarGraphDirectedEdge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A* over a RoutingGraph.
+ *
+ * All search state lives in arrays sized to the graph and allocated once, so
+ * a query allocates nothing beyond the list it hands back. Arrays are not
+ * cleared between queries: each query takes a new stamp, and a node's labels
+ * are only trusted if its stamp matches.
+ *
+ * An instance is not safe for concurrent use; give each thread its own.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class GraphAStar
+{
+
+    final RoutingGraph graph;
+
+    // per-node search state
+    final double[] gx;
+    final int[] parentArc;
+    final int[] seen;
+    final int[] closed;
+    int stamp = 0;
+
+    final IndexedMinHeap openSet;
+
+    // arcs of the last path found, from start to goal
+    int[] path;
+    int pathLength = 0;
+
+    // optional landmark lower bounds and bookkeeping
+    Landmarks landmarks = null;
+    SearchStats stats = null;
+
+
+    public GraphAStar(RoutingGraph graph)
+    {
+        this.graph = graph;
+        int n = graph.nodeCount;
+        gx = new double[n];
+        parentArc = new int[n];
+        seen = new int[n];
+        closed = new int[n];
+        openSet = new IndexedMinHeap(n);
+        path = new int[16];
+    }
+
+
+    /**
+     * @param landmarks landmark distances to tighten the heuristic with, or
+     * null for straight-line distance alone
+     */
+    public void setLandmarks(Landmarks landmarks)
+    {
+        this.landmarks = landmarks;
+    }
+
+
+    /**
+     * @param stats where to record the nodes settled by each query, or null
+     */
+    public void setStats(SearchStats stats)
+    {
+        this.stats = stats;
+    }
+
+
+    /**
+     * Finds a path between two planargraph Nodes
+     * @param start
+     * @param goal
+     * @return the directed edges leading from start to goal, or an empty list
+     * if no such path exists
+     */
+    public ArrayList<GeomPlanarGraphDirectedEdge> astarPath(Node start, Node goal)
+    {
+        ArrayList<GeomPlanarGraphDirectedEdge> result =
+            new ArrayList<GeomPlanarGraphDirectedEdge>();
+        int s = graph.nodeId(start), t = graph.nodeId(goal);
+        if (s < 0 || t < 0)
+        {
+            System.out.println("Error: invalid node provided to AStar");
+            return result;
+        }
+        if (search(s, t) < 0)
+        {
+            return result;
+        }
+        result.ensureCapacity(pathLength);
+        for (int i = 0; i < pathLength; i++)
+        {
+            result.add(graph.arcs[path[i]]);
+        }
+        return result;
+    }
+
+
+    /**
+     * Runs the search between two node ids. The path can then be read with
+     * getPathLength() and getPathArc().
+     * @param s start node id
+     * @param t goal node id
+     * @return the number of arcs on the path, or -1 if t cannot be reached
+     */
+    public int search(int s, int t)
+    {
+        return search(s, t, graph.cost);
+    }
+
+
+    /**
+     * As search(s, t), but with arc costs other than the graph's own, e.g.
+     * with penalties added. No cost may be less than its arc's length or the
+     * heuristic will no longer be admissible.
+     * @param cost one cost per arc, infinite for arcs that may not be used
+     */
+    public int search(int s, int t, final double[] cost)
+    {
+        pathLength = 0;
+        if (stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(seen, 0);
+            Arrays.fill(closed, 0);
+            stamp = 0;
+        }
+        int current = ++stamp;
+        openSet.clear();
+
+        gx[s] = 0;
+        parentArc[s] = -1;
+        seen[s] = current;
+        openSet.insertOrUpdate(s, heuristic(s, t));
+
+        final int[] firstOut = graph.firstOut, head = graph.head;
+        int settled = 0;
+
+        while (!openSet.isEmpty())
+        {
+            int v = openSet.poll();
+            settled++;
+            if (v == t)
+            {
+                record(settled);
+                return tracePath(t);
+            }
+            closed[v] = current;
+            double gv = gx[v];
+
+            for (int a = firstOut[v], end = firstOut[v + 1]; a < end; a++)
+            {
+                int w = head[a];
+                if (closed[w] == current)
+                {
+                    continue;
+                }
+                if (cost[a] == Double.POSITIVE_INFINITY)
+                {
+                    continue; // closed
+                }
+                double tentative = gv + cost[a];
+                if (seen[w] != current)
+                {
+                    seen[w] = current;
+                } else if (tentative >= gx[w])
+                {
+                    continue;
+                }
+                gx[w] = tentative;
+                parentArc[w] = a;
+                openSet.insertOrUpdate(w, tentative + heuristic(w, t));
+            }
+        }
+        record(settled);
+        return -1;
+    }
+
+
+    void record(int settled)
+    {
+        if (stats != null)
+        {
+            stats.record(settled);
+        }
+    }
+
+
+    /**
+     * Walks the parent arcs back from t and stores them in start-to-goal order
+     */
+    int tracePath(int t)
+    {
+        int count = 0;
+        for (int v = t; parentArc[v] >= 0; v = graph.tail[parentArc[v]])
+        {
+            count++;
+        }
+        if (path.length < count)
+        {
+            path = new int[Math.max(count, 2 * path.length)];
+        }
+        int i = count;
+        for (int v = t; parentArc[v] >= 0; v = graph.tail[parentArc[v]])
+        {
+            path[--i] = parentArc[v];
+        }
+        pathLength = count;
+        return count;
+    }
+
+
+    /**
+     * Straight-line distance between two nodes, as in AStar, or the landmark
+     * bound if that is larger
+     */
+    double heuristic(int v, int t)
+    {
+        double h = graph.distance(v, t);
+        if (landmarks != null)
+        {
+            h = Math.max(h, landmarks.lowerBound(v, t));
+        }
+        return h;
+    }
+
+
+    public int getPathLength()
+    {
+        return pathLength;
+    }
+
+
+    public int getPathArc(int i)
+    {
+        return path[i];
+    }
+
+
+    /**
+     * @return the cost of the last path found
+     */
+    public double getPathCost()
+    {
+        return pathLength == 0 ? 0 : gx[graph.head[path[pathLength - 1]]];
+    }
+}
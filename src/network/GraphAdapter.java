@@ -0,0 +1,46 @@
+package network;
+
+/**
+ * A view of a RoutingGraph through another graph representation agents move
+ * over, e.g. a MASON Network, so that they are routed by the same
+ * RoutePlanner over the same compact graph. The JTS planargraph needs no
+ * adapter: a Route is already a List of its directed edges, and the
+ * RoutingGraph translates its Nodes itself.
+ *
+ * An adapter only translates: its node objects to and from the graph's node
+ * ids, and the graph's arcs to the edge objects an agent follows. Routes
+ * come back from the planner as Routes of arc ids, which Route.edges() and
+ * Route.edgesFromGoal() present as lists of the adapter's edges.
+ *
+ * @param <N> the representation's node type
+ * @param <E> the representation's edge type
+ *
+ * @author KJGarbutt
+ *
+ */
+public interface GraphAdapter<N, E>
+{
+
+    /**
+     * @return the compact graph behind this view
+     */
+    RoutingGraph getGraph();
+
+
+    /**
+     * @return the id of the given node, or -1 if it is not on the graph
+     */
+    int nodeId(N node);
+
+
+    /**
+     * @return the node with the given id
+     */
+    N node(int id);
+
+
+    /**
+     * @return the edge an agent travels to follow the given arc
+     */
+    E edge(int arc);
+}
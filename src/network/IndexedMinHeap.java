@@ -0,0 +1,252 @@
+package network;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap over integer items (node ids) keyed by a double value,
+ * with an index from item to heap slot so that keys can be decreased in
+ * place and membership tested in constant time.
+ *
+ * The heap grows on demand, so callers that do not know the number of items
+ * in advance can simply hand out increasing ids as they discover nodes.
+ * Calling clear() makes the heap reusable without reallocating.
+ */
+public class IndexedMinHeap
+{
+
+    // heap of item ids, ordered by keys
+    int[] heap;
+    // position of each item in the heap, or -1 if it is not queued
+    int[] position;
+    // current key of each item
+    double[] keys;
+    int size = 0;
+
+
+    public IndexedMinHeap()
+    {
+        this(64);
+    }
+
+
+    public IndexedMinHeap(int capacity)
+    {
+        capacity = Math.max(1, capacity);
+        heap = new int[capacity];
+        position = new int[capacity];
+        keys = new double[capacity];
+        Arrays.fill(position, -1);
+    }
+
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    public int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * @param item
+     * @return whether the item is currently waiting in the heap
+     */
+    public boolean contains(int item)
+    {
+        return item < position.length && position[item] >= 0;
+    }
+
+
+    /**
+     * @param item
+     * @return the key with which the item is queued
+     */
+    public double key(int item)
+    {
+        return keys[item];
+    }
+
+
+    /**
+     * @return the key of the minimum item without removing it
+     */
+    public double peekKey()
+    {
+        return keys[heap[0]];
+    }
+
+
+    /**
+     * @return the minimum item without removing it
+     */
+    public int peek()
+    {
+        return heap[0];
+    }
+
+
+    /**
+     * Adds the item with the given key, or updates its key if it is already
+     * queued. Keys may move in either direction.
+     * @param item
+     * @param key
+     */
+    public void insertOrUpdate(int item, double key)
+    {
+        ensureItem(item);
+        int slot = position[item];
+        if (slot < 0)
+        {
+            if (size == heap.length)
+            {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            keys[item] = key;
+            heap[size] = item;
+            position[item] = size;
+            siftUp(size++);
+        } else
+        {
+            double old = keys[item];
+            keys[item] = key;
+            if (key < old)
+            {
+                siftUp(slot);
+            } else
+            {
+                siftDown(slot);
+            }
+        }
+    }
+
+
+    /**
+     * Lowers the key of a queued item.
+     * @param item
+     * @param key must not be greater than the item's current key
+     */
+    public void decreaseKey(int item, double key)
+    {
+        keys[item] = key;
+        siftUp(position[item]);
+    }
+
+
+    /**
+     * Removes and returns the item with the smallest key
+     */
+    public int poll()
+    {
+        int min = heap[0];
+        position[min] = -1;
+        size--;
+        if (size > 0)
+        {
+            heap[0] = heap[size];
+            position[heap[0]] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+
+
+    /**
+     * Takes an item out of the heap wherever it is
+     * @param item
+     */
+    public void remove(int item)
+    {
+        int slot = position[item];
+        if (slot < 0)
+        {
+            return;
+        }
+        position[item] = -1;
+        size--;
+        if (slot < size)
+        {
+            heap[slot] = heap[size];
+            position[heap[slot]] = slot;
+            siftDown(slot);
+            siftUp(position[heap[slot]]);
+        }
+    }
+
+
+    /**
+     * Empties the heap. Only the queued items are touched, so this is cheap
+     * after a search that stopped early.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            position[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+
+    void ensureItem(int item)
+    {
+        if (item >= position.length)
+        {
+            int capacity = Math.max(item + 1, position.length * 2);
+            int old = position.length;
+            position = Arrays.copyOf(position, capacity);
+            Arrays.fill(position, old, capacity, -1);
+            keys = Arrays.copyOf(keys, capacity);
+        }
+    }
+
+
+    void siftUp(int slot)
+    {
+        int item = heap[slot];
+        double key = keys[item];
+        while (slot > 0)
+        {
+            int parent = (slot - 1) >>> 1;
+            int p = heap[parent];
+            if (keys[p] <= key)
+            {
+                break;
+            }
+            heap[slot] = p;
+            position[p] = slot;
+            slot = parent;
+        }
+        heap[slot] = item;
+        position[item] = slot;
+    }
+
+
+    void siftDown(int slot)
+    {
+        int item = heap[slot];
+        double key = keys[item];
+        int half = size >>> 1;
+        while (slot < half)
+        {
+            int child = 2 * slot + 1;
+            int right = child + 1;
+            if (right < size && keys[heap[right]] < keys[heap[child]])
+            {
+                child = right;
+            }
+            if (key <= keys[heap[child]])
+            {
+                break;
+            }
+            heap[slot] = heap[child];
+            position[heap[slot]] = slot;
+            slot = child;
+        }
+        heap[slot] = item;
+        position[item] = slot;
+    }
+}
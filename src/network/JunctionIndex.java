@@ -0,0 +1,185 @@
+package network;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.planargraph.Node;
+import utilities.KdTree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the junction at, or nearest to, a coordinate.
+ *
+ * Coordinates are rounded to a grid of cells quantum wide and hashed, so a
+ * point that is a junction - give or take rounding error - is found with one
+ * hash lookup. Anything else, such as a household or rest centre to be
+ * snapped to the road network, is found with a KdTree over the junctions.
+ *
+ * The index never changes once built, so any number of threads may query it
+ * at once; nearest(Coordinate[], double) does so for large batches.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class JunctionIndex
+{
+
+    // batches smaller than this are not worth splitting between threads
+    static final int BATCH_THRESHOLD = 1024;
+
+    final Node[] nodes;
+    final double quantum;
+    // junction index by quantized coordinate
+    final HashMap<Long, Integer> cells;
+    final KdTree tree;
+
+
+    /**
+     * @param nodeIterator the junctions, e.g. GeomPlanarGraph.nodeIterator()
+     * @param quantum how far apart, in map units, two points may be and still
+     * count as the same junction
+     */
+    public JunctionIndex(Iterator<?> nodeIterator, double quantum)
+    {
+        this.quantum = quantum;
+        ArrayList<Node> found = new ArrayList<Node>();
+        while (nodeIterator.hasNext())
+        {
+            found.add((Node) nodeIterator.next());
+        }
+        nodes = found.toArray(new Node[found.size()]);
+        cells = new HashMap<Long, Integer>(2 * nodes.length);
+        double[] x = new double[nodes.length], y = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+        {
+            Coordinate c = nodes[i].getCoordinate();
+            x[i] = c.x;
+            y[i] = c.y;
+            Long key = cell(c);
+            if (!cells.containsKey(key))
+            {
+                cells.put(key, i);
+            }
+        }
+        tree = new KdTree(x, y);
+    }
+
+
+    long cell(Coordinate c)
+    {
+        long cx = Math.round(c.x / quantum), cy = Math.round(c.y / quantum);
+        return (cx << 32) ^ (cy & 0xffffffffL);
+    }
+
+
+    public int size()
+    {
+        return nodes.length;
+    }
+
+
+    /**
+     * @return the junction within quantum of c, or null if there is none
+     */
+    public Node find(Coordinate c)
+    {
+        Integer i = cells.get(cell(c));
+        if (i != null && nodes[i].getCoordinate().distance(c) <= quantum)
+        {
+            return nodes[i];
+        }
+        // c may have rounded into the cell next to its junction's
+        Node nearest = nearest(c);
+        return nearest != null && nearest.getCoordinate().distance(c) <= quantum ? nearest : null;
+    }
+
+
+    /**
+     * @return the junction nearest to c, or null if there are none
+     */
+    public Node nearest(Coordinate c)
+    {
+        int i = tree.nearest(c.x, c.y);
+        return i < 0 ? null : nodes[i];
+    }
+
+
+    /**
+     * @param maxDistance how far from c the junction may be
+     * @return the junction nearest to c, or null if none is within
+     * maxDistance
+     */
+    public Node nearest(Coordinate c, double maxDistance)
+    {
+        Node n = nearest(c);
+        return n != null && n.getCoordinate().distance(c) <= maxDistance ? n : null;
+    }
+
+
+    /**
+     * Snaps many points to their nearest junctions at once, sharing the work
+     * between the common fork-join pool's threads
+     * @param points the points to snap
+     * @param maxDistance how far from its point a junction may be
+     * @return the junction nearest each point, or null where none is within
+     * maxDistance
+     */
+    public Node[] nearest(Coordinate[] points, double maxDistance)
+    {
+        Node[] result = new Node[points.length];
+        BatchLookup lookup = new BatchLookup(points, maxDistance, result, 0, points.length);
+        if (points.length < BATCH_THRESHOLD)
+        {
+            lookup.compute();
+        } else
+        {
+            ForkJoinPool.commonPool().invoke(lookup);
+        }
+        return result;
+    }
+
+
+    /**
+     * Looks up one range of a batch, halving it until it is small enough to
+     * do directly
+     */
+    class BatchLookup extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        final Coordinate[] points;
+        final double maxDistance;
+        final Node[] result;
+        final int from, to;
+
+
+        BatchLookup(Coordinate[] points, double maxDistance, Node[] result, int from, int to)
+        {
+            this.points = points;
+            this.maxDistance = maxDistance;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= BATCH_THRESHOLD)
+            {
+                for (int i = from; i < to; i++)
+                {
+                    result[i] = nearest(points[i], maxDistance);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BatchLookup(points, maxDistance, result, from, mid),
+                new BatchLookup(points, maxDistance, result, mid, to));
+        }
+    }
+}
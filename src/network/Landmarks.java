@@ -0,0 +1,246 @@
+package network;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Landmark distances for the ALT (A*, Landmarks, Triangle inequality) lower
+ * bound.
+ *
+ * A handful of landmark nodes are chosen and the shortest distance from each
+ * landmark to every node, and from every node to each landmark, is stored.
+ * By the triangle inequality, for any landmark L
+ *
+ *     d(v, t) >= d(L, t) - d(L, v)   and   d(v, t) >= d(v, L) - d(t, L)
+ *
+ * and the largest of these bounds is a far tighter estimate than the
+ * straight line on networks where the roads have to go round water.
+ *
+ * Distances are computed with arc lengths, not current costs. Closures only
+ * make routes longer, so the bounds stay valid while roads open and close.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class Landmarks
+{
+
+    /**
+     * How landmarks are picked
+     */
+    public enum Selection
+    {
+        // uniformly at random
+        RANDOM,
+        // each new landmark as far as possible from those already chosen
+        FARTHEST,
+        // the farthest node from the centre in each of equal angular sectors,
+        // which places landmarks round the edge of the study area
+        PLANAR
+    }
+
+    final RoutingGraph graph;
+    final int[] landmarks;
+    // fromLandmark[i][v] = d(landmark i, v); toLandmark[i][v] = d(v, landmark i)
+    final double[][] fromLandmark;
+    final double[][] toLandmark;
+
+
+    /**
+     * Chooses the landmarks and computes their distance arrays
+     * @param graph
+     * @param count number of landmarks
+     * @param selection how to pick them
+     * @param seed for random choices
+     */
+    public Landmarks(RoutingGraph graph, int count, Selection selection, long seed)
+    {
+        this.graph = graph;
+        count = Math.max(1, Math.min(count, graph.nodeCount));
+        landmarks = new int[count];
+        fromLandmark = new double[count][];
+        toLandmark = new double[count][];
+
+        Random random = new Random(seed);
+        if (selection == Selection.PLANAR)
+        {
+            selectPlanar(count, random);
+        } else if (selection == Selection.FARTHEST)
+        {
+            selectFarthest(count, random);
+        } else
+        {
+            for (int i = 0; i < count; i++)
+            {
+                landmarks[i] = random.nextInt(graph.nodeCount);
+                computeDistances(i);
+            }
+        }
+    }
+
+
+    void selectFarthest(int count, Random random)
+    {
+        // start from the node farthest from a random one
+        double[] start = dijkstra(random.nextInt(graph.nodeCount), true);
+        double[] nearest = new double[graph.nodeCount];
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        int next = farthest(start);
+        for (int i = 0; i < count; i++)
+        {
+            landmarks[i] = next;
+            computeDistances(i);
+            for (int v = 0; v < graph.nodeCount; v++)
+            {
+                double d = fromLandmark[i][v];
+                if (d < nearest[v])
+                {
+                    nearest[v] = d;
+                }
+            }
+            next = farthest(nearest);
+        }
+    }
+
+
+    void selectPlanar(int count, Random random)
+    {
+        double cx = 0, cy = 0;
+        for (int v = 0; v < graph.nodeCount; v++)
+        {
+            cx += graph.x[v];
+            cy += graph.y[v];
+        }
+        cx /= graph.nodeCount;
+        cy /= graph.nodeCount;
+
+        int[] best = new int[count];
+        double[] bestDistance = new double[count];
+        Arrays.fill(best, -1);
+        for (int v = 0; v < graph.nodeCount; v++)
+        {
+            double dx = graph.x[v] - cx, dy = graph.y[v] - cy;
+            double angle = Math.atan2(dy, dx) + Math.PI;
+            int sector = Math.min(count - 1, (int) (angle / (2 * Math.PI) * count));
+            double d = dx * dx + dy * dy;
+            if (best[sector] < 0 || d > bestDistance[sector])
+            {
+                best[sector] = v;
+                bestDistance[sector] = d;
+            }
+        }
+        for (int i = 0; i < count; i++)
+        {
+            // an empty sector gets a random landmark instead
+            landmarks[i] = best[i] >= 0 ? best[i] : random.nextInt(graph.nodeCount);
+            computeDistances(i);
+        }
+    }
+
+
+    /**
+     * @return the reachable node with the largest finite value
+     */
+    int farthest(double[] distance)
+    {
+        int far = 0;
+        double max = -1;
+        for (int v = 0; v < distance.length; v++)
+        {
+            if (distance[v] != Double.POSITIVE_INFINITY && distance[v] > max)
+            {
+                max = distance[v];
+                far = v;
+            }
+        }
+        return far;
+    }
+
+
+    void computeDistances(int i)
+    {
+        fromLandmark[i] = dijkstra(landmarks[i], true);
+        toLandmark[i] = dijkstra(landmarks[i], false);
+    }
+
+
+    /**
+     * Shortest distances from (forward) or to (backward) a node, by length
+     */
+    double[] dijkstra(int source, boolean forward)
+    {
+        double[] distance = new double[graph.nodeCount];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        boolean[] settled = new boolean[graph.nodeCount];
+        IndexedMinHeap queue = new IndexedMinHeap(graph.nodeCount);
+        distance[source] = 0;
+        queue.insertOrUpdate(source, 0);
+        while (!queue.isEmpty())
+        {
+            int u = queue.poll();
+            settled[u] = true;
+            int begin = forward ? graph.firstOut[u] : graph.firstIn[u];
+            int end = forward ? graph.firstOut[u + 1] : graph.firstIn[u + 1];
+            for (int i = begin; i < end; i++)
+            {
+                int a = forward ? i : graph.inArc[i];
+                int w = forward ? graph.head[a] : graph.tail[a];
+                if (settled[w])
+                {
+                    continue;
+                }
+                double d = distance[u] + graph.length[a];
+                if (d < distance[w])
+                {
+                    distance[w] = d;
+                    queue.insertOrUpdate(w, d);
+                }
+            }
+        }
+        return distance;
+    }
+
+
+    /**
+     * @return a lower bound on the length of the shortest path from v to t
+     */
+    public double lowerBound(int v, int t)
+    {
+        double bound = 0;
+        for (int i = 0; i < landmarks.length; i++)
+        {
+            double[] from = fromLandmark[i], to = toLandmark[i];
+            double lt = from[t], lv = from[v];
+            if (lt != Double.POSITIVE_INFINITY && lv != Double.POSITIVE_INFINITY
+                && lt - lv > bound)
+            {
+                bound = lt - lv;
+            }
+            double vl = to[v], tl = to[t];
+            if (vl != Double.POSITIVE_INFINITY && tl != Double.POSITIVE_INFINITY
+                && vl - tl > bound)
+            {
+                bound = vl - tl;
+            }
+        }
+        return bound;
+    }
+
+
+    public int getCount()
+    {
+        return landmarks.length;
+    }
+
+
+    public int getLandmark(int i)
+    {
+        return landmarks[i];
+    }
+
+
+    public RoutingGraph getGraph()
+    {
+        return graph;
+    }
+}
@@ -0,0 +1,275 @@
+package network;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import sim.field.network.Edge;
+import sim.field.network.Network;
+import sim.util.geo.GeomPlanarGraphEdge;
+import sim.util.geo.MasonGeometry;
+
+import java.util.IdentityHashMap;
+
+/**
+ * A MASON Network of GeoNodes over a RoutingGraph, as a GraphAdapter, so
+ * that AStar_SWise and the MobileAgents route through the same RoutePlanner
+ * as the planargraph agents instead of searching a second copy of the roads.
+ *
+ * The Network is undirected, with one Edge per road. Its nodes and edges are
+ * numbered as the graph's nodes and roads, so translating either way is an
+ * array lookup or a single hash. An adapter either builds its own Network
+ * from the graph, with build(), or wraps one built elsewhere, matching its
+ * GeoNodes to the graph's nodes by coordinate.
+ *
+ * Each Edge's info is a MasonGeometry of the road's line, running from the
+ * Edge's from() node to its to() node, with the "open" attribute
+ * TrafficAgent checks; syncClosures() brings that up to date with the roads
+ * closed on the graph.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class NetworkAdapter implements GraphAdapter<GeoNode, Edge>
+{
+
+    final RoutingGraph graph;
+    final Network network;
+    // by node id, and by road (edge id); null where the Network has none
+    final GeoNode[] nodes;
+    final Edge[] edges;
+    final IdentityHashMap<Object, Integer> nodeIds;
+    final IdentityHashMap<Edge, Integer> edgeIds;
+
+
+    NetworkAdapter(RoutingGraph graph, Network network)
+    {
+        this.graph = graph;
+        this.network = network;
+        nodes = new GeoNode[graph.nodeCount];
+        edges = new Edge[graph.getEdgeCount()];
+        nodeIds = new IdentityHashMap<Object, Integer>(2 * graph.nodeCount);
+        edgeIds = new IdentityHashMap<Edge, Integer>(2 * edges.length);
+    }
+
+
+    /**
+     * Builds a Network of the graph's roads
+     * @param graph the shared graph
+     * @return the adapter over the new Network
+     */
+    public static NetworkAdapter build(RoutingGraph graph)
+    {
+        NetworkAdapter adapter = new NetworkAdapter(graph, new Network(false));
+        GeometryFactory factory = new GeometryFactory();
+        for (int v = 0; v < graph.nodeCount; v++)
+        {
+            GeoNode node = new GeoNode(factory.createPoint(new Coordinate(graph.x[v], graph.y[v])));
+            adapter.network.addNode(node);
+            adapter.nodes[v] = node;
+            adapter.nodeIds.put(node, v);
+        }
+        for (int e = 0; e < adapter.edges.length; e++)
+        {
+            int a = graph.edgeArcs[2 * e];
+            if (a < 0)
+            {
+                continue;
+            }
+            GeomPlanarGraphEdge road = graph.edges[e];
+            LineString line = road.getLine();
+            // the Edge runs the way its line does, which MobileAgent relies
+            // on to tell which way along the line it is travelling
+            int from = graph.tail[a], to = graph.head[a];
+            if (!line.getCoordinateN(0).equals2D(graph.nodes[from].getCoordinate()))
+            {
+                from = graph.head[a];
+                to = graph.tail[a];
+            }
+            MasonGeometry info = new MasonGeometry(line);
+            if (road.hasAttribute("ROAD_ID"))
+            {
+                info.addAttribute("ROAD_ID", road.getAttribute("ROAD_ID"));
+            }
+            info.addStringAttribute("open", graph.closedEdges[e] ? "CLOSED" : "OPEN");
+            info.setUserData(road);
+            Edge edge = new Edge(adapter.nodes[from], adapter.nodes[to], info);
+            adapter.network.addEdge(edge);
+            adapter.edges[e] = edge;
+            adapter.edgeIds.put(edge, e);
+        }
+        return adapter;
+    }
+
+
+    /**
+     * Wraps a Network of GeoNodes built elsewhere over the same roads.
+     * GeoNodes are matched to the graph's nodes by coordinate, and Edges to
+     * roads by the GeomPlanarGraphEdge in or behind their info, or else by
+     * their end nodes. Anything not on the graph is left out.
+     * @param graph the shared graph
+     * @param network the Network to wrap
+     * @return the adapter over it
+     */
+    public static NetworkAdapter wrap(RoutingGraph graph, Network network)
+    {
+        NetworkAdapter adapter = new NetworkAdapter(graph, network);
+        for (Object o : network.getAllNodes())
+        {
+            GeoNode node = (GeoNode) o;
+            int v = graph.nodeAt(node.geometry.getCoordinate());
+            if (v >= 0 && adapter.nodes[v] == null)
+            {
+                adapter.nodes[v] = node;
+                adapter.nodeIds.put(node, v);
+            }
+        }
+        for (Object o : network.getAllNodes())
+        {
+            for (Object p : network.getEdgesOut(o))
+            {
+                Edge edge = (Edge) p;
+                int e = adapter.matchRoad(edge);
+                if (e >= 0 && adapter.edges[e] == null)
+                {
+                    adapter.edges[e] = edge;
+                    adapter.edgeIds.put(edge, e);
+                }
+            }
+        }
+        return adapter;
+    }
+
+
+    /**
+     * @return the road an Edge of a wrapped Network lies along, or -1
+     */
+    int matchRoad(Edge edge)
+    {
+        Object info = edge.info;
+        if (info instanceof MasonGeometry && ((MasonGeometry) info).getUserData() != null)
+        {
+            info = ((MasonGeometry) info).getUserData();
+        }
+        if (info instanceof GeomPlanarGraphEdge)
+        {
+            return graph.edgeId((GeomPlanarGraphEdge) info);
+        }
+        Integer from = nodeIds.get(edge.from()), to = nodeIds.get(edge.to());
+        if (from == null || to == null)
+        {
+            return -1;
+        }
+        for (int a = graph.firstOut[from]; a < graph.firstOut[from + 1]; a++)
+        {
+            if (graph.head[a] == to && graph.arcEdge[a] >= 0)
+            {
+                return graph.arcEdge[a];
+            }
+        }
+        for (int a = graph.firstOut[to]; a < graph.firstOut[to + 1]; a++)
+        {
+            if (graph.head[a] == from && graph.arcEdge[a] >= 0)
+            {
+                return graph.arcEdge[a];
+            }
+        }
+        return -1;
+    }
+
+
+    public RoutingGraph getGraph()
+    {
+        return graph;
+    }
+
+
+    public Network getNetwork()
+    {
+        return network;
+    }
+
+
+    public int nodeId(GeoNode node)
+    {
+        Integer id = nodeIds.get(node);
+        return id == null ? -1 : id;
+    }
+
+
+    public GeoNode node(int id)
+    {
+        return nodes[id];
+    }
+
+
+    /**
+     * @return the Edge along the arc's road; an agent crossing it from
+     * either end follows it with getOtherNode()
+     */
+    public Edge edge(int arc)
+    {
+        int e = graph.arcEdge[arc];
+        return e < 0 ? null : edges[e];
+    }
+
+
+    /**
+     * @return the road an Edge of the Network lies along, or -1
+     */
+    public int edgeId(Edge edge)
+    {
+        Integer id = edgeIds.get(edge);
+        return id == null ? -1 : id;
+    }
+
+
+    /**
+     * @return the cheapest current cost of crossing the Edge's road either
+     * way, or -1 if it is not on the graph
+     */
+    public double cost(Edge edge)
+    {
+        int e = edgeId(edge);
+        if (e < 0)
+        {
+            return -1;
+        }
+        return roadCost(e);
+    }
+
+
+    /**
+     * @return the cheapest current cost of crossing the road either way
+     */
+    public double roadCost(int e)
+    {
+        double[] cost = graph.cost;
+        double c = Double.POSITIVE_INFINITY;
+        for (int slot = 2 * e; slot < 2 * e + 2; slot++)
+        {
+            int a = graph.edgeArcs[slot];
+            if (a >= 0)
+            {
+                c = Math.min(c, cost[a]);
+            }
+        }
+        return c;
+    }
+
+
+    /**
+     * Marks each Edge "OPEN" or "CLOSED" as its road is on the graph, after
+     * roads have been closed or reopened through the RoutePlanner
+     */
+    public void syncClosures()
+    {
+        for (int e = 0; e < edges.length; e++)
+        {
+            if (edges[e] != null && edges[e].info instanceof MasonGeometry)
+            {
+                ((MasonGeometry) edges[e].info).addStringAttribute("open",
+                    graph.closedEdges[e] ? "CLOSED" : "OPEN");
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package network;
+
+import sim.util.geo.GeomPlanarGraphDirectedEdge;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable route over a RoutingGraph, held as the ids of its arcs.
+ *
+ * Routes are shared: RoutePlanner interns them, so every agent following the
+ * same route holds the same object and keeps only its own index into it. An
+ * int per arc is half the size of a reference, and nothing is copied when an
+ * agent turns round - it just walks its index the other way. The distance
+ * from the route's start to each arc is summed once, so an agent can keep a
+ * single distance along its whole route and look its arc up from that.
+ *
+ * A Route is also a read-only List of the directed edges, for code written
+ * against the planargraph, and can be viewed as a List of the edges of any
+ * other GraphAdapter, e.g. a MASON Network.
+ *
+ * @author KJGarbutt
+ *
+ */
+public final class Route extends AbstractList<GeomPlanarGraphDirectedEdge>
+    implements RandomAccess
+{
+
+    /** The route with no arcs, e.g. when no route exists */
+    public static final Route EMPTY = new Route(null, new int[0]);
+
+    final RoutingGraph graph;
+    final int[] arcs;
+    final int hash;
+    // distance from the route's start to the start of each arc, and to its
+    // end; summed on first use, by whichever thread gets there first
+    volatile double[] distances = null;
+
+
+    /**
+     * @param graph the graph the arc ids refer to
+     * @param arcs the arc ids, which the route takes ownership of
+     */
+    Route(RoutingGraph graph, int[] arcs)
+    {
+        this.graph = graph;
+        this.arcs = arcs;
+        // the List hash, so that it agrees with equals() against other Lists
+        this.hash = super.hashCode();
+    }
+
+
+    @Override
+    public int size()
+    {
+        return arcs.length;
+    }
+
+
+    @Override
+    public GeomPlanarGraphDirectedEdge get(int i)
+    {
+        return graph.arcs[arcs[i]];
+    }
+
+
+    /**
+     * @return the id of the i'th arc
+     */
+    public int arc(int i)
+    {
+        return arcs[i];
+    }
+
+
+    /**
+     * @return the id of the undirected edge under the i'th arc
+     */
+    public int edgeId(int i)
+    {
+        return graph.arcEdge[arcs[i]];
+    }
+
+
+    /**
+     * @return the arc running the other way along the same road as the i'th
+     * arc, or the arc itself if the road is one way
+     */
+    public int reverseArc(int i)
+    {
+        return graph.reverse(arcs[i]);
+    }
+
+
+    /**
+     * @return the distance along the route from its start to the start of
+     * the i'th arc; size() gives the length of the whole route
+     */
+    public double distanceTo(int i)
+    {
+        return distances()[i];
+    }
+
+
+    /**
+     * @return the length of the whole route
+     */
+    public double getLength()
+    {
+        return arcs.length == 0 ? 0 : distances()[arcs.length];
+    }
+
+
+    /**
+     * Finds the arc a given distance along the route, by binary search. A
+     * distance that falls on a junction is taken to be on the arc by which
+     * the junction is reached, so it depends which way the route is walked.
+     * @param distance how far along the route, from its start
+     * @param backwards whether the route is walked towards its start
+     * @return the index of the arc
+     */
+    public int indexAt(double distance, boolean backwards)
+    {
+        double[] d = distances();
+        int low = 0, high = arcs.length - 1;
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+            if (d[mid] < distance || (backwards && d[mid] == distance))
+            {
+                low = mid;
+            } else
+            {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+
+    double[] distances()
+    {
+        double[] d = distances;
+        if (d == null)
+        {
+            d = new double[arcs.length + 1];
+            for (int i = 0; i < arcs.length; i++)
+            {
+                d[i + 1] = d[i] + graph.length[arcs[i]];
+            }
+            distances = d;
+        }
+        return d;
+    }
+
+
+    /**
+     * @return the route's edges in the adapter's representation, from start
+     * to goal. The list is a view; nothing is copied.
+     */
+    public <E> List<E> edges(GraphAdapter<?, E> adapter)
+    {
+        return new View<E>(this, adapter, false);
+    }
+
+
+    /**
+     * @return the route's edges in the adapter's representation, from goal
+     * back to start: the order AStar_SWise returns paths in, and MobileAgent
+     * takes them from the end of
+     */
+    public <E> List<E> edgesFromGoal(GraphAdapter<?, E> adapter)
+    {
+        return new View<E>(this, adapter, true);
+    }
+
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (o == this)
+        {
+            return true;
+        }
+        if (o instanceof Route)
+        {
+            Route r = (Route) o;
+            return r.hash == hash && r.graph == graph && Arrays.equals(r.arcs, arcs);
+        }
+        return super.equals(o);
+    }
+
+
+    /**
+     * A Route's arcs as another representation's edges
+     */
+    static final class View<E> extends AbstractList<E> implements RandomAccess
+    {
+        final Route route;
+        final GraphAdapter<?, E> adapter;
+        final boolean reversed;
+
+
+        View(Route route, GraphAdapter<?, E> adapter, boolean reversed)
+        {
+            this.route = route;
+            this.adapter = adapter;
+            this.reversed = reversed;
+        }
+
+
+        @Override
+        public int size()
+        {
+            return route.arcs.length;
+        }
+
+
+        @Override
+        public E get(int i)
+        {
+            int[] arcs = route.arcs;
+            return adapter.edge(arcs[reversed ? arcs.length - 1 - i : i]);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package network;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of routes keyed by origin node, destination node and the
+ * version of the edge costs the route was computed with.
+ *
+ * Cached routes are immutable and are handed out to every agent that asks
+ * for the same trip. Entries
+ * are evicted least recently used first once either the number of routes or
+ * the total number of edges they hold exceeds its limit. Closing an edge
+ * removes exactly the routes that use it; routes that avoid it stay optimal.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class RouteCache
+{
+
+    final RoutingGraph graph;
+    final int maxEntries;
+    final long maxArcs;
+
+    final LinkedHashMap<Key, Route> entries =
+        new LinkedHashMap<Key, Route>(256, 0.75f, true);
+    // the keys of the cached routes that use each undirected edge
+    final HashMap<Integer, HashSet<Key>> routesByEdge =
+        new HashMap<Integer, HashSet<Key>>();
+    long storedArcs = 0;
+
+    long hits = 0, misses = 0, evictions = 0, invalidations = 0;
+
+
+    /**
+     * @param graph the graph the routes run over
+     * @param maxEntries most routes to keep
+     * @param maxArcs most edges to keep across all routes
+     */
+    public RouteCache(RoutingGraph graph, int maxEntries, long maxArcs)
+    {
+        this.graph = graph;
+        this.maxEntries = maxEntries;
+        this.maxArcs = maxArcs;
+    }
+
+
+    /**
+     * @return the cached path, or null if the trip is not cached. An empty
+     * list means the trip is known to be impossible.
+     */
+    public Route get(int from, int to, int version)
+    {
+        Route route = entries.get(new Key(from, to, version));
+        if (route == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return route;
+    }
+
+
+    /**
+     * Stores a route
+     * @param from origin node id
+     * @param to destination node id
+     * @param version version of the costs the route was found with
+     * @param route the route, which may be empty if none exists
+     * @return the route
+     */
+    public Route put(int from, int to, int version, Route route)
+    {
+        Key key = new Key(from, to, version);
+        remove(key);
+
+        entries.put(key, route);
+        storedArcs += route.size();
+        for (int i = 0; i < route.size(); i++)
+        {
+            int e = route.edgeId(i);
+            HashSet<Key> keys = routesByEdge.get(e);
+            if (keys == null)
+            {
+                keys = new HashSet<Key>();
+                routesByEdge.put(e, keys);
+            }
+            keys.add(key);
+        }
+
+        // evict the least recently used routes until we are within bounds
+        Iterator<Map.Entry<Key, Route>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || storedArcs > maxArcs) && it.hasNext())
+        {
+            Map.Entry<Key, Route> eldest = it.next();
+            if (eldest.getKey().equals(key))
+            {
+                continue; // never evict what we just stored
+            }
+            it.remove();
+            unindex(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+        return route;
+    }
+
+
+    /**
+     * Drops every cached route that uses the given undirected edge
+     * @param edgeId
+     */
+    public void invalidateEdge(int edgeId)
+    {
+        HashSet<Key> keys = routesByEdge.remove(edgeId);
+        if (keys == null)
+        {
+            return;
+        }
+        for (Key key : keys)
+        {
+            if (remove(key))
+            {
+                invalidations++;
+            }
+        }
+    }
+
+
+    /**
+     * Drops every cached route
+     */
+    public void clear()
+    {
+        entries.clear();
+        routesByEdge.clear();
+        storedArcs = 0;
+    }
+
+
+    boolean remove(Key key)
+    {
+        Route route = entries.remove(key);
+        if (route == null)
+        {
+            return false;
+        }
+        unindex(key, route);
+        return true;
+    }
+
+
+    void unindex(Key key, Route route)
+    {
+        storedArcs -= route.size();
+        for (int i = 0; i < route.size(); i++)
+        {
+            int e = route.edgeId(i);
+            HashSet<Key> keys = routesByEdge.get(e);
+            if (keys != null)
+            {
+                keys.remove(key);
+                if (keys.isEmpty())
+                {
+                    routesByEdge.remove(e);
+                }
+            }
+        }
+    }
+
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+
+    public long getHits()
+    {
+        return hits;
+    }
+
+
+    public long getMisses()
+    {
+        return misses;
+    }
+
+
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+
+    public long getInvalidations()
+    {
+        return invalidations;
+    }
+
+
+    public String toString()
+    {
+        return "RouteCache: " + entries.size() + " routes, " + storedArcs + " edges, "
+            + hits + " hits, " + misses + " misses, " + evictions + " evicted, "
+            + invalidations + " invalidated";
+    }
+
+
+    /**
+     * Identifies a trip under a particular version of the edge costs
+     */
+    static final class Key
+    {
+        final int from, to, version;
+
+
+        Key(int from, int to, int version)
+        {
+            this.from = from;
+            this.to = to;
+            this.version = version;
+        }
+
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key k = (Key) o;
+            return k.from == from && k.to == to && k.version == version;
+        }
+
+
+        public int hashCode()
+        {
+            return (from * 31 + to) * 31 + version;
+        }
+    }
+}
@@ -0,0 +1,1010 @@
+package network;
+
+import com.vividsolutions.jts.planargraph.Node;
+import sim.util.geo.GeomPlanarGraphEdge;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The single place agents ask for routes over the road network.
+ *
+ * By default a route to a goal is read off a reverse shortest path tree for
+ * that goal. Trees are built the first time a goal is asked for, so loading a
+ * population costs one search per distinct destination rather than one per
+ * agent. Once maxGoalTrees trees exist, further goals fall back to A*.
+ *
+ * On large networks a ContractionHierarchy can be switched on instead; it is
+ * preprocessed once and re-customized, not rebuilt, when roads close. Where
+ * no preprocessing can be afforded, the A* fallback can be made
+ * bidirectional, or can run over a ChainGraph so that it skips the nodes
+ * that merely join one link of a road to the next.
+ *
+ * Every route found goes into a RouteCache, and every Route handed out is
+ * interned, so agents following the same route share one immutable Route. Closing a road drops the cached routes that
+ * depend on it and repairs the goal trees in place; agents notice the change
+ * through getRouteVersion() and look up the rest of their route again.
+ *
+ * New agents can instead be given routes through assignPath(), which spreads
+ * agents making the same trip across several alternative routes.
+ *
+ * The trips handed out while recording is on can be saved to a RouteStore,
+ * and a store saved by an earlier run of the same scenario answers trips
+ * before any search is made.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class RoutePlanner
+{
+
+    final RoutingGraph graph;
+    // lets requests between disconnected parts of the network fail at once
+    final Components components;
+    final GraphAStar astar;
+    final BidirectionalAStar bidirectional;
+    // answer searches with bidirectional rather than plain A*
+    boolean useBidirectionalSearch = false;
+
+    // trees of shortest paths, keyed by goal node id
+    final HashMap<Integer, ShortestPathTree> goalTrees =
+        new HashMap<Integer, ShortestPathTree>();
+    boolean useGoalTrees = true;
+    int maxGoalTrees = 64;
+
+    ContractionHierarchy hierarchy = null;
+    // set when edge costs have changed since the hierarchy was customized
+    boolean hierarchyStale = false;
+
+    // degree-2 chains collapsed, for the A* fallback
+    ChainGraph chains = null;
+    ChainAStar chainSearch = null;
+
+    Landmarks landmarks = null;
+    // nodes settled by the A* fallback, to measure heuristics by
+    final SearchStats stats = new SearchStats();
+    // goal tree repairs after cost changes, and the nodes they settled
+    long treeRepairs = 0, repairedNodes = 0;
+
+    final RouteCache cache;
+    // every route handed out, so that equal routes are one object
+    final WeakHashMap<Route, WeakReference<Route>> interned =
+        new WeakHashMap<Route, WeakReference<Route>>();
+    // bumped whenever edge costs change wholesale, retiring cached routes
+    int costVersion = 0;
+
+    // scratch space for the arcs of the route being looked up
+    int[] arcBuffer = new int[64];
+    // and for the arcs of roads opened or closed together
+    int[] changedArcs = new int[16];
+    // bumped whenever any road opens or closes
+    int routeVersion = 0;
+
+    // alternative routes per trip, handed out in turn to agents making it
+    AlternativeRoutes alternatives = null;
+    int alternativeCount = 1;
+    final HashMap<Long, RouteChoice> routeChoices = new HashMap<Long, RouteChoice>();
+
+    // routes saved by an earlier run, valid while costVersion is unchanged
+    RouteStore store = null;
+    int storeCostVersion = 0;
+    long storeHits = 0, storeMisses = 0;
+    // the routes handed out for each trip while recording, to be saved
+    LinkedHashMap<Long, Route[]> recordedTrips = null;
+    int recordCostVersion = 0;
+
+
+    public RoutePlanner(RoutingGraph graph)
+    {
+        this.graph = graph;
+        this.components = new Components(graph);
+        this.astar = new GraphAStar(graph);
+        this.astar.setStats(stats);
+        this.bidirectional = new BidirectionalAStar(graph);
+        this.bidirectional.setStats(stats);
+        this.cache = new RouteCache(graph, 20000, 4000000L);
+    }
+
+
+    public RoutingGraph getGraph()
+    {
+        return graph;
+    }
+
+
+    public void setUseGoalTrees(boolean useGoalTrees)
+    {
+        this.useGoalTrees = useGoalTrees;
+    }
+
+
+    public boolean getUseGoalTrees()
+    {
+        return useGoalTrees;
+    }
+
+
+    public void setUseBidirectionalSearch(boolean useBidirectionalSearch)
+    {
+        this.useBidirectionalSearch = useBidirectionalSearch;
+    }
+
+
+    public boolean getUseBidirectionalSearch()
+    {
+        return useBidirectionalSearch;
+    }
+
+
+    /**
+     * @param maxGoalTrees the most goal trees to keep; each costs a double
+     * and an int per node
+     */
+    public void setMaxGoalTrees(int maxGoalTrees)
+    {
+        this.maxGoalTrees = maxGoalTrees;
+    }
+
+
+    public int getGoalTreeCount()
+    {
+        return goalTrees.size();
+    }
+
+
+    /**
+     * Preprocesses a contraction hierarchy and answers all further route
+     * requests with it
+     */
+    public void enableContractionHierarchy()
+    {
+        long start = System.currentTimeMillis();
+        hierarchy = new ContractionHierarchy(graph);
+        hierarchyStale = false;
+        System.out.println("Contraction hierarchy: " +hierarchy.getUpwardArcCount()
+            + " upward arcs in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+    /**
+     * Collapses chains of roads joined end to end into single super-edges,
+     * so that the A* fallback settles only real junctions
+     */
+    public void enableChainContraction()
+    {
+        long start = System.currentTimeMillis();
+        chains = new ChainGraph(graph);
+        chainSearch = new ChainAStar(chains);
+        chainSearch.setStats(stats);
+        chainSearch.setLandmarks(landmarks);
+        System.out.println("Chain contraction: " +chains.getJunctionCount() + " of "
+            + graph.nodeCount + " nodes are junctions, " +chains.getSuperEdgeCount()
+            + " super-edges in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+    public ChainGraph getChains()
+    {
+        return chains;
+    }
+
+
+    /**
+     * Computes landmark distances and uses them to guide A*
+     * @param count number of landmarks
+     * @param selection how to place them
+     */
+    public void enableLandmarks(int count, Landmarks.Selection selection)
+    {
+        long start = System.currentTimeMillis();
+        landmarks = new Landmarks(graph, count, selection, 1L);
+        astar.setLandmarks(landmarks);
+        bidirectional.setLandmarks(landmarks);
+        if (chainSearch != null)
+        {
+            chainSearch.setLandmarks(landmarks);
+        }
+        if (alternatives != null)
+        {
+            alternatives.setLandmarks(landmarks);
+        }
+        System.out.println("Landmarks: " +landmarks.getCount() + " (" + selection + ") in "
+            + (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+    public Landmarks getLandmarks()
+    {
+        return landmarks;
+    }
+
+
+    public Components getComponents()
+    {
+        return components;
+    }
+
+
+    /**
+     * @return false if no route can exist between the two nodes, without
+     * searching; true if one may
+     */
+    public boolean mayReach(Node start, Node goal)
+    {
+        int s = graph.nodeId(start), t = graph.nodeId(goal);
+        return s >= 0 && t >= 0 && components.mayReach(s, t);
+    }
+
+
+    public SearchStats getStats()
+    {
+        return stats;
+    }
+
+
+    public RouteCache getCache()
+    {
+        return cache;
+    }
+
+
+    /**
+     * Finds the shortest path between two planargraph Nodes
+     * @param start
+     * @param goal
+     * @return the route from start to goal, empty if no such route exists.
+     * The route is shared with every other agent making the same trip.
+     */
+    public Route findPath(Node start, Node goal)
+    {
+        return findPath(graph.nodeId(start), graph.nodeId(goal));
+    }
+
+
+    /**
+     * Finds the shortest path between two node ids, e.g. those of a
+     * GraphAdapter's nodes
+     * @param s start node id
+     * @param t goal node id
+     * @return the route from s to t, empty if no such route exists
+     */
+    public Route findPath(int s, int t)
+    {
+        if (s < 0 || t < 0)
+        {
+            System.out.println("Error: invalid node provided to RoutePlanner");
+            return Route.EMPTY;
+        }
+        if (!components.mayReach(s, t))
+        {
+            return Route.EMPTY;
+        }
+
+        Route cached = cache.get(s, t, costVersion);
+        if (cached != null)
+        {
+            record(s, t, cached);
+            return cached;
+        }
+        Route[] stored = storedRoutes(s, t);
+        Route route;
+        if (stored != null)
+        {
+            route = stored.length == 0 ? Route.EMPTY : stored[0];
+        } else
+        {
+            int count = route(s, t);
+            route = intern(arcBuffer, 0, Math.max(count, 0));
+        }
+        record(s, t, route);
+        return cache.put(s, t, costVersion, route);
+    }
+
+
+    void record(int s, int t, Route route)
+    {
+        if (recordedTrips != null)
+        {
+            recordedTrips.put(RouteStore.key(s, t),
+                route.isEmpty() ? new Route[0] : new Route[] { route });
+        }
+    }
+
+
+    /**
+     * @return the shared Route with the given arcs, creating it if no agent
+     * holds one already
+     */
+    Route intern(int[] arcs, int from, int to)
+    {
+        if (to <= from)
+        {
+            return Route.EMPTY;
+        }
+        Route route = new Route(graph, Arrays.copyOfRange(arcs, from, to));
+        WeakReference<Route> ref = interned.get(route);
+        Route shared = ref == null ? null : ref.get();
+        if (shared != null)
+        {
+            return shared;
+        }
+        interned.put(route, new WeakReference<Route>(route));
+        return route;
+    }
+
+
+    /**
+     * @return the number of distinct routes held by agents or the cache
+     */
+    public int getInternedRouteCount()
+    {
+        return interned.size();
+    }
+
+
+    /**
+     * Replaces everything after the first keep arcs of a route, e.g. when an
+     * agent heading for the route's end finds a better way on from a junction
+     * @param path the route being followed
+     * @param keep how many of its arcs to keep
+     * @param rest the new route on from the end of those arcs
+     * @return the joined route
+     */
+    public Route replaceAfter(Route path, int keep, Route rest)
+    {
+        int[] arcs = new int[keep + rest.size()];
+        System.arraycopy(path.arcs, 0, arcs, 0, keep);
+        System.arraycopy(rest.arcs, 0, arcs, keep, rest.size());
+        return intern(arcs, 0, arcs.length);
+    }
+
+
+    /**
+     * Replaces everything before arc from of a route, for an agent walking
+     * the route backwards to its start
+     * @param path the route being followed
+     * @param from the first of its arcs to keep
+     * @param rest the new route from the start of that arc back to the start
+     * of path, which is reversed to run the same way as path
+     * @return the joined route
+     */
+    public Route replaceBefore(Route path, int from, Route rest)
+    {
+        int n = rest.size();
+        int[] arcs = new int[n + path.size() - from];
+        for (int i = 0; i < n; i++)
+        {
+            arcs[i] = rest.reverseArc(n - 1 - i);
+        }
+        System.arraycopy(path.arcs, from, arcs, n, path.size() - from);
+        return intern(arcs, 0, arcs.length);
+    }
+
+
+    /**
+     * Spreads agents making the same trip over up to count different routes,
+     * rather than sending them all down the shortest one. See
+     * AlternativeRoutes for what counts as different.
+     * @param count the most routes per trip; 1 to always use the shortest
+     */
+    public void setAlternativeRoutes(int count)
+    {
+        alternativeCount = Math.max(1, count);
+        if (alternativeCount > 1 && alternatives == null)
+        {
+            alternatives = new AlternativeRoutes(graph);
+            alternatives.setLandmarks(landmarks);
+        }
+        routeChoices.clear();
+    }
+
+
+    public AlternativeRoutes getAlternatives()
+    {
+        return alternatives;
+    }
+
+
+    /**
+     * @return the number of trips alternative routes have been found for
+     */
+    public int getRouteChoiceCount()
+    {
+        return routeChoices.size();
+    }
+
+
+    /**
+     * Finds a route for a new agent. With alternative routes switched on,
+     * successive calls for the same trip take its alternatives in turn;
+     * otherwise this is findPath.
+     * @param start
+     * @param goal
+     * @return the route from start to goal, empty if no such route exists.
+     * The route is shared with every other agent given it.
+     */
+    public Route assignPath(Node start, Node goal)
+    {
+        if (alternativeCount <= 1)
+        {
+            return findPath(start, goal);
+        }
+        int s = graph.nodeId(start), t = graph.nodeId(goal);
+        if (s < 0 || t < 0 || s == t || !components.mayReach(s, t))
+        {
+            return findPath(start, goal);
+        }
+
+        Long key = (long) s * graph.nodeCount + t;
+        RouteChoice choice = routeChoices.get(key);
+        if (choice == null || choice.costVersion != costVersion
+            || choice.routeVersion != routeVersion)
+        {
+            Route[] stored = storedRoutes(s, t);
+            choice = stored != null ? new RouteChoice(stored)
+                : new RouteChoice(alternatives.find(s, t, alternativeCount));
+            routeChoices.put(key, choice);
+        }
+        if (recordedTrips != null)
+        {
+            recordedTrips.put(RouteStore.key(s, t),
+                choice.routes.toArray(new Route[choice.routes.size()]));
+        }
+        if (choice.routes.isEmpty())
+        {
+            return Route.EMPTY;
+        }
+        return choice.routes.get(choice.next++ % choice.routes.size());
+    }
+
+
+    /**
+     * The alternative routes for one trip, and which is to be handed out next
+     */
+    class RouteChoice
+    {
+
+        final ArrayList<Route> routes;
+        final int costVersion = RoutePlanner.this.costVersion;
+        final int routeVersion = RoutePlanner.this.routeVersion;
+        int next = 0;
+
+
+        RouteChoice(ArrayList<int[]> arcs)
+        {
+            routes = new ArrayList<Route>(arcs.size());
+            for (int[] route : arcs)
+            {
+                routes.add(intern(route, 0, route.length));
+            }
+        }
+
+
+        RouteChoice(Route[] stored)
+        {
+            routes = new ArrayList<Route>(Arrays.asList(stored));
+        }
+    }
+
+
+    /**
+     * Answers trips from routes saved by an earlier run, provided they were
+     * found over the same network with the same weights. Roads closed since
+     * then only rule out the trips whose routes use them, as every other
+     * route is still the best; a road open now that was closed then might
+     * improve any route, so the store is not used at all.
+     * @param store a store loaded with RouteStore.load()
+     * @return whether the store applies
+     */
+    public boolean useRouteStore(RouteStore store)
+    {
+        this.store = null;
+        if (store.networkFingerprint != graph.fingerprint()
+            || store.weightFingerprint != graph.weightFingerprint())
+        {
+            return false;
+        }
+        for (int e : store.closedEdges)
+        {
+            if (e >= graph.getEdgeCount() || !graph.closedEdges[e])
+            {
+                return false;
+            }
+        }
+        this.store = store;
+        storeCostVersion = costVersion;
+        return true;
+    }
+
+
+    /**
+     * @return the routes saved for a trip, or null if there is no store, the
+     * costs have changed since it was attached, the trip is not in it, or
+     * one of its routes runs over a road closed since it was saved
+     */
+    Route[] storedRoutes(int s, int t)
+    {
+        if (store == null || storeCostVersion != costVersion)
+        {
+            return null;
+        }
+        int[][] arcs = store.get(s, t);
+        if (arcs == null || !passable(arcs))
+        {
+            storeMisses++;
+            return null;
+        }
+        storeHits++;
+        Route[] routes = new Route[arcs.length];
+        for (int i = 0; i < arcs.length; i++)
+        {
+            routes[i] = intern(arcs[i], 0, arcs[i].length);
+        }
+        return routes;
+    }
+
+
+    /**
+     * @return whether none of the routes uses a closed arc
+     */
+    boolean passable(int[][] routes)
+    {
+        final double[] cost = graph.cost;
+        for (int[] arcs : routes)
+        {
+            for (int a : arcs)
+            {
+                if (a < 0 || a >= graph.arcCount || cost[a] == Double.POSITIVE_INFINITY)
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @return the number of times a goal tree has been repaired after road
+     * costs changed
+     */
+    public long getTreeRepairs()
+    {
+        return treeRepairs;
+    }
+
+
+    /**
+     * @return the number of nodes settled repairing goal trees
+     */
+    public long getRepairedNodes()
+    {
+        return repairedNodes;
+    }
+
+
+    public long getStoreHits()
+    {
+        return storeHits;
+    }
+
+
+    /**
+     * @return the number of trips the store was asked for but could not
+     * answer
+     */
+    public long getStoreMisses()
+    {
+        return storeMisses;
+    }
+
+
+    /**
+     * Starts or stops noting the routes handed out for each trip, e.g. while
+     * a population is loaded, for saveRoutes()
+     */
+    public void setRecordTrips(boolean record)
+    {
+        if (!record)
+        {
+            recordedTrips = null;
+        } else if (recordedTrips == null)
+        {
+            recordedTrips = new LinkedHashMap<Long, Route[]>();
+            recordCostVersion = costVersion;
+        }
+    }
+
+
+    /**
+     * Saves the trips recorded so far, together with any trips in the store
+     * in use that still apply, for a later run to load. Trips whose routes
+     * have since been closed are left out, as are all those recorded if the
+     * costs have changed since recording started. The store in use is let
+     * go once its trips are read, as the saved one supersedes it; even so
+     * its file may stay mapped until it is collected, so file should not be
+     * the file it was loaded from.
+     * @param file where to write the store
+     * @param demandFingerprint identifies the population and goals
+     * @return the number of trips saved
+     */
+    public int saveRoutes(File file, long demandFingerprint) throws IOException
+    {
+        LinkedHashMap<Long, int[][]> trips = new LinkedHashMap<Long, int[][]>();
+        if (store != null && storeCostVersion == costVersion)
+        {
+            LinkedHashMap<Long, int[][]> old = new LinkedHashMap<Long, int[][]>();
+            store.readAll(old);
+            store = null;
+            for (Map.Entry<Long, int[][]> trip : old.entrySet())
+            {
+                if (passable(trip.getValue()))
+                {
+                    trips.put(trip.getKey(), trip.getValue());
+                }
+            }
+        }
+        if (recordedTrips != null && recordCostVersion == costVersion)
+        {
+            for (Map.Entry<Long, Route[]> trip : recordedTrips.entrySet())
+            {
+                Route[] routes = trip.getValue();
+                int[][] arcs = new int[routes.length][];
+                for (int i = 0; i < routes.length; i++)
+                {
+                    arcs[i] = routes[i].arcs;
+                }
+                if (passable(arcs))
+                {
+                    trips.put(trip.getKey(), arcs);
+                }
+            }
+        }
+
+        int closedCount = 0;
+        for (boolean closed : graph.closedEdges)
+        {
+            closedCount += closed ? 1 : 0;
+        }
+        int[] closed = new int[closedCount];
+        for (int e = 0, i = 0; e < graph.closedEdges.length; e++)
+        {
+            if (graph.closedEdges[e])
+            {
+                closed[i++] = e;
+            }
+        }
+        RouteStore.write(file, graph.fingerprint(), demandFingerprint,
+            graph.weightFingerprint(), closed, trips);
+        return trips.size();
+    }
+
+
+    /**
+     * Finds the route between two node ids and leaves its arcs in arcBuffer
+     * @return the number of arcs, or -1 if there is no route
+     */
+    int route(int s, int t)
+    {
+        if (hierarchy != null)
+        {
+            if (hierarchyStale)
+            {
+                hierarchy.customize();
+                hierarchyStale = false;
+            }
+            int count = hierarchy.search(s, t);
+            if (count > 0)
+            {
+                ensureBuffer(count);
+                for (int i = 0; i < count; i++)
+                {
+                    arcBuffer[i] = hierarchy.getPathArc(i);
+                }
+            }
+            return count;
+        }
+
+        ShortestPathTree tree = useGoalTrees ? treeFor(t) : null;
+        if (tree != null)
+        {
+            int count = tree.hops(s);
+            if (count > 0)
+            {
+                ensureBuffer(count);
+                tree.copyPath(s, arcBuffer);
+            }
+            return count;
+        }
+
+        if (useBidirectionalSearch)
+        {
+            int count = bidirectional.search(s, t);
+            if (count > 0)
+            {
+                ensureBuffer(count);
+                for (int i = 0; i < count; i++)
+                {
+                    arcBuffer[i] = bidirectional.getPathArc(i);
+                }
+            }
+            return count;
+        }
+
+        if (chainSearch != null)
+        {
+            int count = chainSearch.search(s, t);
+            if (count > 0)
+            {
+                ensureBuffer(count);
+                for (int i = 0; i < count; i++)
+                {
+                    arcBuffer[i] = chainSearch.getPathArc(i);
+                }
+            }
+            return count;
+        }
+
+        int count = astar.search(s, t);
+        if (count > 0)
+        {
+            ensureBuffer(count);
+            for (int i = 0; i < count; i++)
+            {
+                arcBuffer[i] = astar.getPathArc(i);
+            }
+        }
+        return count;
+    }
+
+
+    void ensureBuffer(int count)
+    {
+        if (arcBuffer.length < count)
+        {
+            arcBuffer = new int[Math.max(count, 2 * arcBuffer.length)];
+        }
+    }
+
+
+    /**
+     * Makes a road impassable. Cached routes over it are dropped; all others
+     * remain the best available.
+     * @param edge the closed road
+     */
+    public void closeEdge(GeomPlanarGraphEdge edge)
+    {
+        closeEdges(Collections.singletonList(edge));
+    }
+
+
+    /**
+     * Makes a set of roads impassable at once, e.g. those under a flood zone,
+     * repairing each goal tree once for the lot
+     * @param edges the closed roads
+     */
+    public void closeEdges(Collection<GeomPlanarGraphEdge> edges)
+    {
+        int count = 0;
+        for (GeomPlanarGraphEdge edge : edges)
+        {
+            int e = graph.edgeId(edge);
+            if (e < 0)
+            {
+                continue;
+            }
+            graph.setEdgeClosed(e, true);
+            cache.invalidateEdge(e);
+            count = addArcs(e, count);
+        }
+        if (count > 0)
+        {
+            costsChanged(count);
+        }
+    }
+
+
+    /**
+     * Makes a closed road passable again. Any route might now improve, so
+     * the whole cache is retired.
+     * @param edge the reopened road
+     */
+    public void openEdge(GeomPlanarGraphEdge edge)
+    {
+        openEdges(Collections.singletonList(edge));
+    }
+
+
+    /**
+     * Makes a set of closed roads passable again
+     * @param edges the reopened roads
+     */
+    public void openEdges(Collection<GeomPlanarGraphEdge> edges)
+    {
+        int count = 0;
+        for (GeomPlanarGraphEdge edge : edges)
+        {
+            int e = graph.edgeId(edge);
+            if (e < 0)
+            {
+                continue;
+            }
+            graph.setEdgeClosed(e, false);
+            count = addArcs(e, count);
+        }
+        if (count > 0)
+        {
+            costVersion++;
+            cache.clear();
+            costsChanged(count);
+        }
+    }
+
+
+    /**
+     * Publishes the weights compiled from a cost model, e.g. after flood or
+     * congestion factors have changed. Goal trees are repaired if only a few
+     * roads changed and rebuilt on demand otherwise.
+     * @param model a model built over this planner's graph
+     */
+    public void applyCosts(CostModel model)
+    {
+        applyCosts(model, true);
+    }
+
+
+    /**
+     * As applyCosts(model), optionally without telling every agent that its
+     * route may be out of date. Congestion changes all the time, so rather
+     * than send everyone looking at once the caller chooses who should.
+     * @param model a model built over this planner's graph
+     * @param rerouteAll whether to change the route version
+     * @return the number of arcs whose cost changed
+     */
+    public int applyCosts(CostModel model, boolean rerouteAll)
+    {
+        int[] changed = graph.setWeights(model.compile());
+        if (changed.length == 0)
+        {
+            return 0;
+        }
+        costVersion++;
+        cache.clear();
+        if (changed.length > graph.arcCount / 10)
+        {
+            clearGoalTrees();
+            hierarchyStale = true;
+        } else
+        {
+            if (changedArcs.length < changed.length)
+            {
+                changedArcs = new int[changed.length];
+            }
+            System.arraycopy(changed, 0, changedArcs, 0, changed.length);
+            repairTrees(changed.length);
+        }
+        if (rerouteAll)
+        {
+            routeVersion++;
+        }
+        return changed.length;
+    }
+
+
+    /**
+     * The current cost of part of a path, for comparing an agent's route
+     * against a new one
+     * @param path a route as returned by findPath
+     * @param from index of the first arc to count
+     * @param to index after the last arc to count
+     * @param backwards whether the arcs are travelled against their direction
+     * @return the sum of the arcs' costs, infinite if any is closed
+     */
+    public double pathCost(Route path, int from, int to, boolean backwards)
+    {
+        final double[] cost = graph.cost;
+        double total = 0;
+        for (int i = from; i < to; i++)
+        {
+            total += cost[backwards ? path.reverseArc(i) : path.arc(i)];
+        }
+        return total;
+    }
+
+
+    /**
+     * Appends the arcs of an edge to changedArcs
+     * @return the new number of changed arcs
+     */
+    int addArcs(int edge, int count)
+    {
+        if (changedArcs.length < count + 2)
+        {
+            changedArcs = Arrays.copyOf(changedArcs, 2 * (count + 2));
+        }
+        for (int side = 0; side < 2; side++)
+        {
+            int a = graph.edgeArcs[2 * edge + side];
+            if (a >= 0)
+            {
+                changedArcs[count++] = a;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Repairs the goal trees after the costs of the first count changedArcs
+     * have changed, and tells agents their routes may be out of date
+     */
+    void costsChanged(int count)
+    {
+        repairTrees(count);
+        routeVersion++;
+    }
+
+
+    /**
+     * Repairs the goal trees, and marks the hierarchy for customisation,
+     * after the costs of the first count changedArcs have changed
+     */
+    void repairTrees(int count)
+    {
+        if (chains != null)
+        {
+            chains.update(changedArcs, count);
+        }
+        for (ShortestPathTree tree : goalTrees.values())
+        {
+            repairedNodes += tree.repair(changedArcs, count);
+            treeRepairs++;
+        }
+        hierarchyStale = true;
+    }
+
+
+    /**
+     * @return a number that changes whenever roads open or close, so that
+     * agents can tell when to look their routes up again
+     */
+    public int getRouteVersion()
+    {
+        return routeVersion;
+    }
+
+
+    /**
+     * @param goal goal node id
+     * @return the shortest path tree for the goal, building it if there is
+     * still room, or null if the limit on trees has been reached
+     */
+    ShortestPathTree treeFor(int goal)
+    {
+        ShortestPathTree tree = goalTrees.get(goal);
+        if (tree == null && goalTrees.size() < maxGoalTrees)
+        {
+            tree = new ShortestPathTree(graph, goal);
+            goalTrees.put(goal, tree);
+        }
+        return tree;
+    }
+
+
+    /**
+     * Drops all goal trees, e.g. after the network has changed
+     */
+    public void clearGoalTrees()
+    {
+        goalTrees.clear();
+    }
+}
@@ -0,0 +1,290 @@
+package network;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routes saved to disk by one run for the next to reuse, so that starting
+ * the same scenario again does not search for every agent's route.
+ *
+ * A store holds, for each trip - an origin and destination node id - the
+ * routes that were handed out for it: the shortest, or several alternatives.
+ * Its header records the fingerprints of the network, of the demand (the
+ * population files and goals) and of the arc weights the routes were found
+ * with, and which roads were closed at the time. Everything after the header
+ * is ints and is memory mapped, so opening a store reads only its trip
+ * index; a trip's arcs are read when it is first asked for.
+ *
+ * RoutePlanner.useRouteStore() decides whether a store still applies, and
+ * drops the trips whose routes use roads closed since it was written.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class RouteStore
+{
+
+    // "RST1"
+    static final int MAGIC = 0x52535431;
+    // magic, three fingerprints
+    static final int HEADER_BYTES = 4 + 3 * 8;
+
+    final File file;
+    final long networkFingerprint;
+    final long demandFingerprint;
+    final long weightFingerprint;
+    // roads closed when the store was written, ascending
+    final int[] closedEdges;
+
+    // the mapped ints after the header
+    final IntBuffer data;
+    // trip index by key(from, to)
+    final HashMap<Long, Integer> trips;
+    // where in data each part starts
+    final int tripTable, routeTable, arcTable;
+
+
+    RouteStore(File file, long networkFingerprint, long demandFingerprint,
+        long weightFingerprint, IntBuffer data)
+    {
+        this.file = file;
+        this.networkFingerprint = networkFingerprint;
+        this.demandFingerprint = demandFingerprint;
+        this.weightFingerprint = weightFingerprint;
+        this.data = data;
+
+        int closedCount = data.get(0), tripCount = data.get(1), routeCount = data.get(2);
+        closedEdges = new int[closedCount];
+        for (int i = 0; i < closedCount; i++)
+        {
+            closedEdges[i] = data.get(4 + i);
+        }
+        tripTable = 4 + closedCount;
+        routeTable = tripTable + 4 * tripCount;
+        arcTable = routeTable + routeCount + 1;
+
+        trips = new HashMap<Long, Integer>(2 * tripCount);
+        for (int i = 0; i < tripCount; i++)
+        {
+            int slot = tripTable + 4 * i;
+            trips.put(key(data.get(slot), data.get(slot + 1)), i);
+        }
+    }
+
+
+    static long key(int from, int to)
+    {
+        return ((long) from << 32) | (to & 0xffffffffL);
+    }
+
+
+    /**
+     * Maps a store written by write()
+     * @param file the store file
+     * @return the store, backed by the file
+     * @throws IOException if the file cannot be read or is not a route store
+     */
+    public static RouteStore load(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            if (raf.length() < HEADER_BYTES + 16 || raf.readInt() != MAGIC)
+            {
+                throw new IOException(file + " is not a route store");
+            }
+            long network = raf.readLong();
+            long demand = raf.readLong();
+            long weights = raf.readLong();
+            IntBuffer data = raf.getChannel()
+                .map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, raf.length() - HEADER_BYTES)
+                .asIntBuffer();
+            // closed roads, trips, routes, arcs
+            long expected = 4L + data.get(0) + 4L * data.get(1) + data.get(2) + 1 + data.get(3);
+            if (data.get(0) < 0 || data.get(1) < 0 || data.get(2) < 0 || data.get(3) < 0
+                || expected != data.capacity())
+            {
+                throw new IOException(file + " is truncated");
+            }
+            return new RouteStore(file, network, demand, weights, data);
+        } finally
+        {
+            // the mapping stays valid once the file is closed
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Writes a store, first to a temporary file which is then moved into
+     * place, so an interrupted write never leaves a broken store behind
+     * @param file where to write it
+     * @param networkFingerprint RoutingGraph.fingerprint() of the network
+     * @param demandFingerprint identifies the population and goals
+     * @param weightFingerprint RoutingGraph.weightFingerprint() when the
+     * routes were found
+     * @param closedEdges the roads closed when the routes were found
+     * @param trips the routes for each trip, by key(from, to); an empty array
+     * for a trip known to be impossible
+     */
+    static void write(File file, long networkFingerprint, long demandFingerprint,
+        long weightFingerprint, int[] closedEdges, Map<Long, int[][]> trips) throws IOException
+    {
+        int routeCount = 0;
+        long arcCount = 0;
+        for (int[][] routes : trips.values())
+        {
+            routeCount += routes.length;
+            for (int[] arcs : routes)
+            {
+                arcCount += arcs.length;
+            }
+        }
+        if (arcCount > Integer.MAX_VALUE / 2)
+        {
+            throw new IOException("too many routes to store: " + arcCount + " arcs");
+        }
+
+        File partial = new File(file.getPath() + ".part");
+        boolean written = false;
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(partial), 1 << 16)))
+            {
+                out.writeInt(MAGIC);
+                out.writeLong(networkFingerprint);
+                out.writeLong(demandFingerprint);
+                out.writeLong(weightFingerprint);
+                out.writeInt(closedEdges.length);
+                out.writeInt(trips.size());
+                out.writeInt(routeCount);
+                out.writeInt((int) arcCount);
+                for (int e : closedEdges)
+                {
+                    out.writeInt(e);
+                }
+
+                // trips: from, to, first route, route count
+                int route = 0;
+                for (Map.Entry<Long, int[][]> trip : trips.entrySet())
+                {
+                    long k = trip.getKey();
+                    out.writeInt((int) (k >>> 32));
+                    out.writeInt((int) k);
+                    out.writeInt(route);
+                    out.writeInt(trip.getValue().length);
+                    route += trip.getValue().length;
+                }
+                // routes: where each starts in the arcs, plus where the last ends
+                int arc = 0;
+                for (int[][] routes : trips.values())
+                {
+                    for (int[] arcs : routes)
+                    {
+                        out.writeInt(arc);
+                        arc += arcs.length;
+                    }
+                }
+                out.writeInt(arc);
+                for (int[][] routes : trips.values())
+                {
+                    for (int[] arcs : routes)
+                    {
+                        for (int a : arcs)
+                        {
+                            out.writeInt(a);
+                        }
+                    }
+                }
+            }
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            written = true;
+        } finally
+        {
+            // whatever went wrong, leave no half-written file behind
+            if (!written)
+            {
+                partial.delete();
+            }
+        }
+    }
+
+
+    public File getFile()
+    {
+        return file;
+    }
+
+
+    public long getNetworkFingerprint()
+    {
+        return networkFingerprint;
+    }
+
+
+    public long getDemandFingerprint()
+    {
+        return demandFingerprint;
+    }
+
+
+    public int getTripCount()
+    {
+        return trips.size();
+    }
+
+
+    /**
+     * @return the arcs of each route stored for the trip, none if the trip is
+     * known to be impossible, or null if the trip is not in the store
+     */
+    public int[][] get(int from, int to)
+    {
+        Integer trip = trips.get(key(from, to));
+        return trip == null ? null : routes(trip);
+    }
+
+
+    int[][] routes(int trip)
+    {
+        int slot = tripTable + 4 * trip;
+        int first = data.get(slot + 2), count = data.get(slot + 3);
+        int[][] routes = new int[count][];
+        for (int r = 0; r < count; r++)
+        {
+            int start = data.get(routeTable + first + r);
+            int end = data.get(routeTable + first + r + 1);
+            int[] arcs = new int[end - start];
+            for (int i = 0; i < arcs.length; i++)
+            {
+                arcs[i] = data.get(arcTable + start + i);
+            }
+            routes[r] = arcs;
+        }
+        return routes;
+    }
+
+
+    /**
+     * Reads every trip, for merging into a new store
+     * @param into receives the routes of each trip, by key(from, to)
+     */
+    void readAll(Map<Long, int[][]> into)
+    {
+        for (Map.Entry<Long, Integer> trip : trips.entrySet())
+        {
+            into.put(trip.getKey(), routes(trip.getValue()));
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package network;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.planargraph.Node;
+import sim.util.geo.GeomPlanarGraph;
+import sim.util.geo.GeomPlanarGraphDirectedEdge;
+import sim.util.geo.GeomPlanarGraphEdge;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A compact, read-only snapshot of a GeomPlanarGraph for routing.
+ *
+ * Nodes and directed edges ("arcs") are numbered densely. Outgoing arcs are
+ * stored in compressed sparse row form: the arcs leaving node v are
+ * firstOut[v] .. firstOut[v + 1] - 1, and every arc has its head node and
+ * a precomputed cost. Searches over the snapshot only touch primitive arrays;
+ * the planargraph objects are kept solely to translate ids back into
+ * GeomPlanarGraphDirectedEdges when a path is handed to an agent.
+ *
+ * Arc costs start as road lengths. A CostModel can compile other weights,
+ * which setWeights() publishes by swapping in a whole new cost array, so a
+ * search that has already read the array carries on with a consistent set
+ * of costs.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class RoutingGraph
+{
+
+    final int nodeCount;
+    final int arcCount;
+
+    // node coordinates, for heuristics
+    final double[] x, y;
+
+    // outgoing arcs in CSR form
+    final int[] firstOut;
+    final int[] head;
+    final int[] tail;
+
+    // incoming arcs in CSR form: the arcs entering node v are
+    // inArc[firstIn[v]] .. inArc[firstIn[v + 1] - 1]
+    final int[] firstIn;
+    final int[] inArc;
+
+    // length of each arc along its road
+    final double[] length;
+
+    // weight of each arc from the cost model, never less than its length
+    double[] weight;
+    // current routing cost of each arc: its weight, or infinity while the
+    // road is closed. Replaced wholesale when new weights are published.
+    volatile double[] cost;
+    // bumped each time new weights are published
+    int costVersion = 0;
+
+    // the undirected edge each arc belongs to, and the (up to two) arcs of
+    // each undirected edge, -1 where absent
+    final int[] arcEdge;
+    final int[] edgeArcs;
+    // undirected edges currently closed
+    final boolean[] closedEdges;
+
+    // mapping back to the planargraph
+    final Node[] nodes;
+    final GeomPlanarGraphDirectedEdge[] arcs;
+    final GeomPlanarGraphEdge[] edges;
+    final HashMap<Node, Integer> nodeIds;
+    final HashMap<GeomPlanarGraphEdge, Integer> edgeIds;
+    // node ids by coordinate, built on first use
+    HashMap<Coordinate, Integer> coordinateIds = null;
+
+
+    /**
+     * Builds the snapshot from the given network
+     * @param network a network built with createFromGeomField
+     * @return the compact routing graph
+     */
+    public static RoutingGraph build(GeomPlanarGraph network)
+    {
+        return new RoutingGraph(network);
+    }
+
+
+    RoutingGraph(GeomPlanarGraph network)
+    {
+        nodeCount = network.getNodes().size();
+        nodes = new Node[nodeCount];
+        nodeIds = new HashMap<Node, Integer>(2 * nodeCount);
+        x = new double[nodeCount];
+        y = new double[nodeCount];
+
+        int n = 0;
+        int arcTotal = 0;
+        for (Iterator<?> it = network.nodeIterator(); it.hasNext();)
+        {
+            Node node = (Node) it.next();
+            Coordinate c = node.getCoordinate();
+            nodes[n] = node;
+            nodeIds.put(node, n);
+            x[n] = c.x;
+            y[n] = c.y;
+            arcTotal += node.getOutEdges().getDegree();
+            n++;
+        }
+
+        // number the edges as their arcs are met rather than in the
+        // network's (hashed) order, so the same roads get the same ids each
+        // time they are loaded
+        int edgeCount = network.getEdges().size();
+        edges = new GeomPlanarGraphEdge[edgeCount];
+        edgeIds = new HashMap<GeomPlanarGraphEdge, Integer>(2 * edgeCount);
+        int e = 0;
+        for (int v = 0; v < nodeCount; v++)
+        {
+            for (Object o : nodes[v].getOutEdges().getEdges())
+            {
+                GeomPlanarGraphEdge edge =
+                    (GeomPlanarGraphEdge) ((GeomPlanarGraphDirectedEdge) o).getEdge();
+                if (edge != null && !edgeIds.containsKey(edge))
+                {
+                    edges[e] = edge;
+                    edgeIds.put(edge, e);
+                    e++;
+                }
+            }
+        }
+        for (Object o : network.getEdges())
+        {
+            GeomPlanarGraphEdge edge = (GeomPlanarGraphEdge) o;
+            if (!edgeIds.containsKey(edge))
+            {
+                edges[e] = edge;
+                edgeIds.put(edge, e);
+                e++;
+            }
+        }
+
+        arcCount = arcTotal;
+        firstOut = new int[nodeCount + 1];
+        head = new int[arcCount];
+        tail = new int[arcCount];
+        length = new double[arcCount];
+        arcEdge = new int[arcCount];
+        edgeArcs = new int[2 * edgeCount];
+        Arrays.fill(edgeArcs, -1);
+        closedEdges = new boolean[edgeCount];
+        arcs = new GeomPlanarGraphDirectedEdge[arcCount];
+
+        int a = 0;
+        for (int v = 0; v < nodeCount; v++)
+        {
+            firstOut[v] = a;
+            for (Object o : nodes[v].getOutEdges().getEdges())
+            {
+                GeomPlanarGraphDirectedEdge de = (GeomPlanarGraphDirectedEdge) o;
+                int to = nodeIds.get(de.getToNode());
+                arcs[a] = de;
+                tail[a] = v;
+                head[a] = to;
+                Integer edgeId = edgeIds.get(de.getEdge());
+                // the road's own length where it has one; it can be no
+                // shorter than the straight line the heuristics assume
+                length[a] = edgeId == null ? distance(v, to)
+                    : Math.max(distance(v, to), edges[edgeId].getLine().getLength());
+                arcEdge[a] = edgeId == null ? -1 : edgeId;
+                if (edgeId != null)
+                {
+                    int slot = edgeArcs[2 * edgeId] < 0 ? 2 * edgeId : 2 * edgeId + 1;
+                    edgeArcs[slot] = a;
+                }
+                a++;
+            }
+        }
+        firstOut[nodeCount] = a;
+        weight = Arrays.copyOf(length, arcCount);
+        cost = Arrays.copyOf(length, arcCount);
+
+        // reverse adjacency, for searches that run backwards from a goal
+        firstIn = new int[nodeCount + 1];
+        inArc = new int[arcCount];
+        for (int i = 0; i < arcCount; i++)
+        {
+            firstIn[head[i] + 1]++;
+        }
+        for (int v = 0; v < nodeCount; v++)
+        {
+            firstIn[v + 1] += firstIn[v];
+        }
+        int[] fill = Arrays.copyOf(firstIn, nodeCount);
+        for (int i = 0; i < arcCount; i++)
+        {
+            inArc[fill[head[i]]++] = i;
+        }
+    }
+
+
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+
+    public int getArcCount()
+    {
+        return arcCount;
+    }
+
+
+    public int getEdgeCount()
+    {
+        return edges.length;
+    }
+
+
+    /**
+     * @param node
+     * @return the id of the given planargraph Node, or -1 if it is not part
+     * of the snapshot
+     */
+    public int nodeId(Node node)
+    {
+        Integer id = nodeIds.get(node);
+        return id == null ? -1 : id;
+    }
+
+
+    /**
+     * @param c
+     * @return the id of the node at exactly the given coordinate, or -1 if
+     * there is none
+     */
+    public int nodeAt(Coordinate c)
+    {
+        if (coordinateIds == null)
+        {
+            HashMap<Coordinate, Integer> ids = new HashMap<Coordinate, Integer>(2 * nodeCount);
+            for (int v = 0; v < nodeCount; v++)
+            {
+                ids.put(nodes[v].getCoordinate(), v);
+            }
+            coordinateIds = ids;
+        }
+        Integer id = coordinateIds.get(c);
+        return id == null ? -1 : id;
+    }
+
+
+    /**
+     * @param edge
+     * @return the id of the given undirected edge, or -1 if it is not part
+     * of the snapshot
+     */
+    public int edgeId(GeomPlanarGraphEdge edge)
+    {
+        Integer id = edgeIds.get(edge);
+        return id == null ? -1 : id;
+    }
+
+
+    public Node node(int id)
+    {
+        return nodes[id];
+    }
+
+
+    public GeomPlanarGraphDirectedEdge arc(int arc)
+    {
+        return arcs[arc];
+    }
+
+
+    public GeomPlanarGraphEdge edge(int edge)
+    {
+        return edges[edge];
+    }
+
+
+    public int arcHead(int arc)
+    {
+        return head[arc];
+    }
+
+
+    public int arcTail(int arc)
+    {
+        return tail[arc];
+    }
+
+
+    public double arcLength(int arc)
+    {
+        return length[arc];
+    }
+
+
+    public double arcCost(int arc)
+    {
+        return cost[arc];
+    }
+
+
+    public double arcWeight(int arc)
+    {
+        return weight[arc];
+    }
+
+
+    /**
+     * @param de
+     * @return the arc id of the given directed edge, or -1 if it is not part
+     * of the snapshot
+     */
+    public int arcId(GeomPlanarGraphDirectedEdge de)
+    {
+        Integer e = edgeIds.get(de.getEdge());
+        if (e == null)
+        {
+            return -1;
+        }
+        for (int slot = 2 * e; slot < 2 * e + 2; slot++)
+        {
+            if (edgeArcs[slot] >= 0 && arcs[edgeArcs[slot]] == de)
+            {
+                return edgeArcs[slot];
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return a number that changes each time new weights are published
+     */
+    public int getCostVersion()
+    {
+        return costVersion;
+    }
+
+
+    public boolean isEdgeClosed(int edge)
+    {
+        return closedEdges[edge];
+    }
+
+
+    /**
+     * @return the undirected edge the arc belongs to
+     */
+    public int arcEdge(int arc)
+    {
+        return arcEdge[arc];
+    }
+
+
+    /**
+     * @return the arc running the other way along the same road, or the arc
+     * itself if there is none
+     */
+    public int reverse(int arc)
+    {
+        int e = arcEdge[arc];
+        if (e < 0)
+        {
+            return arc;
+        }
+        int other = edgeArcs[2 * e] == arc ? edgeArcs[2 * e + 1] : edgeArcs[2 * e];
+        return other >= 0 ? other : arc;
+    }
+
+
+    /**
+     * Sets the routing cost of both directions of an undirected edge
+     * @param edge undirected edge id
+     * @param closed whether the edge is impassable
+     */
+    void setEdgeClosed(int edge, boolean closed)
+    {
+        closedEdges[edge] = closed;
+        double[] current = cost;
+        for (int slot = 2 * edge; slot < 2 * edge + 2; slot++)
+        {
+            int a = edgeArcs[slot];
+            if (a >= 0)
+            {
+                current[a] = closed ? Double.POSITIVE_INFINITY : weight[a];
+            }
+        }
+    }
+
+
+    /**
+     * Publishes a new set of arc weights. Closed roads stay closed. The new
+     * cost array replaces the old one in a single write, so this should be
+     * called between ticks rather than while agents are being routed.
+     * @param weights one weight per arc, each at least the arc's length
+     * @return the ids of the arcs whose cost changed
+     */
+    int[] setWeights(double[] weights)
+    {
+        double[] current = cost;
+        double[] next = new double[arcCount];
+        int changed = 0;
+        for (int a = 0; a < arcCount; a++)
+        {
+            int e = arcEdge[a];
+            next[a] = e >= 0 && closedEdges[e] ? Double.POSITIVE_INFINITY : weights[a];
+            if (next[a] != current[a])
+            {
+                changed++;
+            }
+        }
+        int[] changedArcs = new int[changed];
+        int i = 0;
+        for (int a = 0; a < arcCount; a++)
+        {
+            if (next[a] != current[a])
+            {
+                changedArcs[i++] = a;
+            }
+        }
+        weight = weights;
+        cost = next;
+        costVersion++;
+        return changedArcs;
+    }
+
+
+    /**
+     * @return a hash of the network's layout - junction positions, which
+     * junctions each arc joins, its road and its length - that is the same
+     * each time the same roads are loaded, whatever they cost at the moment
+     */
+    public long fingerprint()
+    {
+        long h = mix(FNV_OFFSET, nodeCount);
+        h = mix(h, arcCount);
+        for (int v = 0; v < nodeCount; v++)
+        {
+            h = mix(h, Double.doubleToLongBits(x[v]));
+            h = mix(h, Double.doubleToLongBits(y[v]));
+        }
+        for (int a = 0; a < arcCount; a++)
+        {
+            h = mix(h, ((long) tail[a] << 32) | (head[a] & 0xffffffffL));
+            h = mix(h, arcEdge[a]);
+            h = mix(h, Double.doubleToLongBits(length[a]));
+        }
+        return h;
+    }
+
+
+    /**
+     * @return a hash of the current arc costs, which changes with closures,
+     * flood penalties and congestion
+     */
+    public long costFingerprint()
+    {
+        return fingerprint(cost);
+    }
+
+
+    /**
+     * @return a hash of the arc weights, which changes with flood penalties
+     * and congestion but not with closures
+     */
+    public long weightFingerprint()
+    {
+        return fingerprint(weight);
+    }
+
+
+    static long fingerprint(double[] values)
+    {
+        long h = mix(FNV_OFFSET, values.length);
+        for (double v : values)
+        {
+            h = mix(h, Double.doubleToLongBits(v));
+        }
+        return h;
+    }
+
+
+    static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    static final long FNV_PRIME = 0x100000001b3L;
+
+
+    /**
+     * Folds the eight bytes of value into hash h, FNV-1a style
+     */
+    static long mix(long h, long value)
+    {
+        for (int i = 0; i < 64; i += 8)
+        {
+            h ^= (value >>> i) & 0xff;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+
+    /**
+     * @return Euclidean distance between two nodes
+     */
+    public double distance(int from, int to)
+    {
+        double dx = x[from] - x[to];
+        double dy = y[from] - y[to];
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
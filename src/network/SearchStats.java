@@ -0,0 +1,76 @@
+package network;
+
+/**
+ * Running totals of how much work path searches are doing, so different
+ * routers and heuristics can be compared on the same queries.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class SearchStats
+{
+
+    long queries = 0;
+    long settled = 0;
+    int lastSettled = 0;
+    int maxSettled = 0;
+
+
+    /**
+     * Records one finished query
+     * @param nodesSettled number of nodes taken off the open set
+     */
+    public void record(int nodesSettled)
+    {
+        queries++;
+        settled += nodesSettled;
+        lastSettled = nodesSettled;
+        maxSettled = Math.max(maxSettled, nodesSettled);
+    }
+
+
+    public void reset()
+    {
+        queries = 0;
+        settled = 0;
+        lastSettled = 0;
+        maxSettled = 0;
+    }
+
+
+    public long getQueries()
+    {
+        return queries;
+    }
+
+
+    public long getSettled()
+    {
+        return settled;
+    }
+
+
+    public int getLastSettled()
+    {
+        return lastSettled;
+    }
+
+
+    public int getMaxSettled()
+    {
+        return maxSettled;
+    }
+
+
+    public double getAverageSettled()
+    {
+        return queries == 0 ? 0 : settled / (double) queries;
+    }
+
+
+    public String toString()
+    {
+        return queries + " queries, " + String.format("%.1f", getAverageSettled())
+            + " nodes settled on average, " + maxSettled + " at most";
+    }
+}
@@ -0,0 +1,141 @@
+package network;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * What can be reached from one facility within a time limit, as found by
+ * ServiceAreas: the junctions reached, the roads that can be driven end to
+ * end, and the time each takes to reach, plus optional outline polygons for
+ * each time band.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class ServiceArea
+{
+
+    final String name;
+    final double maxMinutes;
+
+    // junctions reached, nearest first, and minutes to reach each
+    final int[] nodes;
+    final double[] nodeMinutes;
+    // roads that can be driven end to end, and minutes to reach the far end
+    final int[] edges;
+    final double[] edgeMinutes;
+
+    // outline of the roads within each band, or null if not drawn
+    final double[] bands;
+    final Geometry[] hulls;
+
+
+    ServiceArea(String name, double maxMinutes, int[] nodes, double[] nodeMinutes,
+        int[] edges, double[] edgeMinutes, double[] bands, Geometry[] hulls)
+    {
+        this.name = name;
+        this.maxMinutes = maxMinutes;
+        this.nodes = nodes;
+        this.nodeMinutes = nodeMinutes;
+        this.edges = edges;
+        this.edgeMinutes = edgeMinutes;
+        this.bands = bands;
+        this.hulls = hulls;
+    }
+
+
+    public String getName()
+    {
+        return name;
+    }
+
+
+    public double getMaxMinutes()
+    {
+        return maxMinutes;
+    }
+
+
+    public int getNodeCount()
+    {
+        return nodes.length;
+    }
+
+
+    /**
+     * @return the id of the i'th junction reached, in order of travel time
+     */
+    public int getNode(int i)
+    {
+        return nodes[i];
+    }
+
+
+    public double getNodeMinutes(int i)
+    {
+        return nodeMinutes[i];
+    }
+
+
+    public int getEdgeCount()
+    {
+        return edges.length;
+    }
+
+
+    /**
+     * @return the id of the i'th road that can be driven end to end
+     */
+    public int getEdge(int i)
+    {
+        return edges[i];
+    }
+
+
+    public double getEdgeMinutes(int i)
+    {
+        return edgeMinutes[i];
+    }
+
+
+    /**
+     * @return the number of roads that can be driven end to end within the
+     * given number of minutes
+     */
+    public int countEdgesWithin(double minutes)
+    {
+        int count = 0;
+        for (double m : edgeMinutes)
+        {
+            if (m <= minutes)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    public int getBandCount()
+    {
+        return bands.length;
+    }
+
+
+    /**
+     * @return the upper limit of the i'th time band, in minutes
+     */
+    public double getBand(int i)
+    {
+        return bands[i];
+    }
+
+
+    /**
+     * @return the outline of the roads reachable within the i'th band, or
+     * null if outlines were not drawn
+     */
+    public Geometry getHull(int band)
+    {
+        return hulls == null ? null : hulls[band];
+    }
+}
@@ -0,0 +1,297 @@
+package network;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+import sim.field.geo.GeomVectorField;
+import sim.util.geo.MasonGeometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Works out what can be reached from each response facility - hospitals,
+ * fire stations and so on - within a series of time bands, e.g. 10, 20 and
+ * 30 minutes.
+ *
+ * Each facility is a bounded Dijkstra search from all of its access
+ * junctions at once, over the current arc costs, so closed roads are avoided
+ * and flood penalties slow the spread. The search stops at the last band,
+ * which keeps it to the part of the network that matters. Facilities are
+ * independent, so computeAll() runs one task per facility on the common
+ * fork-join pool.
+ *
+ * Outlines are drawn by buffering the roads reachable in each band by
+ * hullWidth and merging them, which gives a concave shape that follows the
+ * roads rather than a convex hull spanning the gaps between them.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class ServiceAreas
+{
+
+    final RoutingGraph graph;
+    // map units travelled per minute, e.g. 500 for 30 km/h in metres
+    final double unitsPerMinute;
+    // upper limits of the time bands, in minutes, ascending
+    final double[] bands;
+    // how far either side of a road its outline reaches; 0 for no outlines
+    double hullWidth = 0;
+    final GeometryFactory factory = new GeometryFactory();
+
+
+    /**
+     * @param graph the network to search
+     * @param unitsPerMinute travel speed in map units per minute
+     * @param bands the time bands in minutes, e.g. {10, 20, 30}
+     */
+    public ServiceAreas(RoutingGraph graph, double unitsPerMinute, double[] bands)
+    {
+        this.graph = graph;
+        this.unitsPerMinute = unitsPerMinute;
+        this.bands = bands.clone();
+        Arrays.sort(this.bands);
+    }
+
+
+    /**
+     * @param hullWidth how far either side of a road its outline reaches, in
+     * map units; 0 to skip outlines
+     */
+    public void setHullWidth(double hullWidth)
+    {
+        this.hullWidth = hullWidth;
+    }
+
+
+    /**
+     * Finds the service areas of many facilities in parallel
+     * @param names a name for each facility
+     * @param sources the junctions each facility is reached from
+     * @return the areas, in the same order as names; null for any facility
+     * whose area could not be computed
+     */
+    public ArrayList<ServiceArea> computeAll(List<String> names, List<int[]> sources)
+    {
+        ArrayList<Callable<ServiceArea>> tasks = new ArrayList<Callable<ServiceArea>>();
+        for (int i = 0; i < names.size(); i++)
+        {
+            final String name = names.get(i);
+            final int[] from = sources.get(i);
+            tasks.add(new Callable<ServiceArea>()
+            {
+                public ServiceArea call()
+                {
+                    return compute(name, from);
+                }
+            });
+        }
+
+        ArrayList<ServiceArea> areas = new ArrayList<ServiceArea>(tasks.size());
+        for (Future<ServiceArea> result : ForkJoinPool.commonPool().invokeAll(tasks))
+        {
+            ServiceArea area = null;
+            try
+            {
+                area = result.get();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e)
+            {
+                System.out.println("Error: service area failed: " + e.getCause());
+            }
+            // keep each area at its facility's index, even if it failed
+            areas.add(area);
+        }
+        return areas;
+    }
+
+
+    /**
+     * Finds the service area of one facility
+     * @param name the facility's name
+     * @param sources the junctions the facility is reached from
+     */
+    public ServiceArea compute(String name, int[] sources)
+    {
+        int n = graph.nodeCount;
+        final int[] firstOut = graph.firstOut, head = graph.head, arcEdge = graph.arcEdge;
+        final double[] cost = graph.cost;
+        double maxMinutes = bands.length == 0 ? 0 : bands[bands.length - 1];
+        double limit = maxMinutes * unitsPerMinute;
+
+        double[] distance = new double[n];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        IndexedMinHeap queue = new IndexedMinHeap(n);
+        for (int s : sources)
+        {
+            if (s >= 0)
+            {
+                distance[s] = 0;
+                queue.insertOrUpdate(s, 0);
+            }
+        }
+
+        int[] settled = new int[64];
+        int settledCount = 0;
+        while (!queue.isEmpty())
+        {
+            int v = queue.poll();
+            if (settledCount == settled.length)
+            {
+                settled = Arrays.copyOf(settled, 2 * settledCount);
+            }
+            settled[settledCount++] = v;
+            double dv = distance[v];
+            for (int a = firstOut[v], end = firstOut[v + 1]; a < end; a++)
+            {
+                double d = dv + cost[a];
+                int w = head[a];
+                if (d <= limit && d < distance[w])
+                {
+                    distance[w] = d;
+                    queue.insertOrUpdate(w, d);
+                }
+            }
+        }
+
+        // the roads that can be driven end to end, by their quicker direction
+        double[] edgeDistance = new double[graph.getEdgeCount()];
+        Arrays.fill(edgeDistance, Double.POSITIVE_INFINITY);
+        int[] reached = new int[64];
+        int reachedCount = 0;
+        int[] nodes = new int[settledCount];
+        double[] nodeMinutes = new double[settledCount];
+        for (int i = 0; i < settledCount; i++)
+        {
+            int v = settled[i];
+            nodes[i] = v;
+            nodeMinutes[i] = distance[v] / unitsPerMinute;
+            for (int a = firstOut[v], end = firstOut[v + 1]; a < end; a++)
+            {
+                int e = arcEdge[a];
+                double d = distance[v] + cost[a];
+                if (e < 0 || d > limit)
+                {
+                    continue;
+                }
+                if (edgeDistance[e] == Double.POSITIVE_INFINITY)
+                {
+                    if (reachedCount == reached.length)
+                    {
+                        reached = Arrays.copyOf(reached, 2 * reachedCount);
+                    }
+                    reached[reachedCount++] = e;
+                }
+                edgeDistance[e] = Math.min(edgeDistance[e], d);
+            }
+        }
+        int[] edges = Arrays.copyOf(reached, reachedCount);
+        double[] edgeMinutes = new double[reachedCount];
+        for (int i = 0; i < reachedCount; i++)
+        {
+            edgeMinutes[i] = edgeDistance[edges[i]] / unitsPerMinute;
+        }
+
+        Geometry[] hulls = hullWidth > 0 ? outline(edges, edgeMinutes) : null;
+        return new ServiceArea(name, maxMinutes, nodes, nodeMinutes, edges, edgeMinutes,
+            bands, hulls);
+    }
+
+
+    /**
+     * @return for each band, the roads reachable within it buffered and merged
+     */
+    Geometry[] outline(int[] edges, double[] edgeMinutes)
+    {
+        // each band's outline is the one inside it plus the roads in between,
+        // so no road is buffered or merged more than once
+        Geometry[] hulls = new Geometry[bands.length];
+        Geometry inner = null;
+        for (int b = 0; b < bands.length; b++)
+        {
+            double lower = b == 0 ? Double.NEGATIVE_INFINITY : bands[b - 1];
+            ArrayList<Geometry> parts = new ArrayList<Geometry>();
+            if (inner != null)
+            {
+                parts.add(inner);
+            }
+            for (int i = 0; i < edges.length; i++)
+            {
+                if (edgeMinutes[i] > lower && edgeMinutes[i] <= bands[b])
+                {
+                    // few segments per quarter circle: the outline is for display
+                    parts.add(graph.edges[edges[i]].getLine().buffer(hullWidth, 2));
+                }
+            }
+            inner = parts.isEmpty() ? factory.createPolygon(null, null)
+                : CascadedPolygonUnion.union(parts);
+            hulls[b] = inner;
+        }
+        return hulls;
+    }
+
+
+    /**
+     * Adds service areas to fields for display. Each road gets FACILITY,
+     * MINUTES and BAND attributes; each outline gets FACILITY and BAND.
+     * @param areas the areas to draw
+     * @param roads receives the reachable roads, or null
+     * @param hulls receives the outlines, or null
+     */
+    public void draw(List<ServiceArea> areas, GeomVectorField roads, GeomVectorField hulls)
+    {
+        for (ServiceArea area : areas)
+        {
+            if (area == null)
+            {
+                continue;
+            }
+            if (roads != null)
+            {
+                for (int i = 0; i < area.edges.length; i++)
+                {
+                    MasonGeometry road = new MasonGeometry(graph.edges[area.edges[i]].getLine());
+                    road.addStringAttribute("FACILITY", area.name);
+                    road.addDoubleAttribute("MINUTES", area.edgeMinutes[i]);
+                    road.addDoubleAttribute("BAND", band(area.edgeMinutes[i]));
+                    roads.addGeometry(road);
+                }
+            }
+            if (hulls != null && area.hulls != null)
+            {
+                // widest first, so the nearer bands are drawn on top
+                for (int b = bands.length - 1; b >= 0; b--)
+                {
+                    MasonGeometry hull = new MasonGeometry(area.hulls[b]);
+                    hull.addStringAttribute("FACILITY", area.name);
+                    hull.addDoubleAttribute("BAND", bands[b]);
+                    hulls.addGeometry(hull);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the first band the given time falls within
+     */
+    double band(double minutes)
+    {
+        for (double b : bands)
+        {
+            if (minutes <= b)
+            {
+                return b;
+            }
+        }
+        return bands.length == 0 ? 0 : bands[bands.length - 1];
+    }
+}
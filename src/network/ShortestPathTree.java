@@ -0,0 +1,284 @@
+package network;
+
+import sim.util.geo.GeomPlanarGraphDirectedEdge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The tree of shortest paths from every node of a RoutingGraph to a single
+ * goal node, built by one Dijkstra search run backwards along incoming arcs.
+ *
+ * Once built, the path from any node is read off the tree by following
+ * nextArc, in time proportional to the length of the path. When many agents
+ * share a destination this replaces one search per agent with one search per
+ * destination.
+ *
+ * When arc costs change the tree is repaired rather than rebuilt: only the
+ * nodes whose paths ran over a dearer arc, or which can now reach the goal
+ * more cheaply, are searched again.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class ShortestPathTree
+{
+
+    final RoutingGraph graph;
+    final int goal;
+
+    // cost of the shortest path from each node to the goal
+    final double[] distance;
+    // first arc on that path, or -1 at the goal and at unreachable nodes
+    final int[] nextArc;
+
+
+    /**
+     * Builds the tree for the given goal
+     * @param graph
+     * @param goal goal node id
+     */
+    public ShortestPathTree(RoutingGraph graph, int goal)
+    {
+        this.graph = graph;
+        this.goal = goal;
+        int n = graph.nodeCount;
+        distance = new double[n];
+        nextArc = new int[n];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        Arrays.fill(nextArc, -1);
+        build();
+    }
+
+
+    void build()
+    {
+        final int[] firstIn = graph.firstIn, inArc = graph.inArc, tail = graph.tail;
+        final double[] cost = graph.cost;
+        boolean[] settled = new boolean[graph.nodeCount];
+        IndexedMinHeap queue = new IndexedMinHeap(graph.nodeCount);
+
+        distance[goal] = 0;
+        queue.insertOrUpdate(goal, 0);
+        while (!queue.isEmpty())
+        {
+            int u = queue.poll();
+            settled[u] = true;
+            double du = distance[u];
+            for (int i = firstIn[u], end = firstIn[u + 1]; i < end; i++)
+            {
+                int a = inArc[i];
+                int v = tail[a];
+                if (settled[v])
+                {
+                    continue;
+                }
+                double dv = du + cost[a];
+                if (dv < distance[v])
+                {
+                    distance[v] = dv;
+                    nextArc[v] = a;
+                    queue.insertOrUpdate(v, dv);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Brings the tree up to date after the costs of some arcs have changed.
+     *
+     * Nodes whose path to the goal used one of the arcs lose their labels,
+     * along with every node routed through them, and are labelled again from
+     * their unaffected neighbours. Nodes that one of the arcs now gives a
+     * cheaper path are lowered. A single Dijkstra pass then spreads both
+     * kinds of change as far as they go and no further.
+     *
+     * @param arcs ids of the arcs whose cost has changed
+     * @param count number of entries of arcs to read
+     * @return the number of nodes taken off the queue, a measure of the work
+     * the repair did
+     */
+    public int repair(int[] arcs, int count)
+    {
+        final int[] firstIn = graph.firstIn, inArc = graph.inArc;
+        final int[] firstOut = graph.firstOut, head = graph.head, tail = graph.tail;
+        final double[] cost = graph.cost;
+        IndexedMinHeap queue = new IndexedMinHeap(64);
+
+        // gather the nodes whose path used a changed arc, and everything
+        // upstream of them in the tree
+        int[] affected = new int[16];
+        int affectedCount = 0;
+        for (int i = 0; i < count; i++)
+        {
+            int u = tail[arcs[i]];
+            if (nextArc[u] != arcs[i])
+            {
+                continue;
+            }
+            nextArc[u] = -1;
+            distance[u] = Double.POSITIVE_INFINITY;
+            if (affectedCount == affected.length)
+            {
+                affected = Arrays.copyOf(affected, 2 * affected.length);
+            }
+            affected[affectedCount++] = u;
+        }
+        for (int k = 0; k < affectedCount; k++)
+        {
+            int v = affected[k];
+            for (int i = firstIn[v], end = firstIn[v + 1]; i < end; i++)
+            {
+                int a = inArc[i];
+                int u = tail[a];
+                if (nextArc[u] != a)
+                {
+                    continue;
+                }
+                nextArc[u] = -1;
+                distance[u] = Double.POSITIVE_INFINITY;
+                if (affectedCount == affected.length)
+                {
+                    affected = Arrays.copyOf(affected, 2 * affected.length);
+                }
+                affected[affectedCount++] = u;
+            }
+        }
+
+        // relabel them from the neighbours whose paths are still good
+        for (int k = 0; k < affectedCount; k++)
+        {
+            int u = affected[k];
+            for (int a = firstOut[u], end = firstOut[u + 1]; a < end; a++)
+            {
+                double du = cost[a] + distance[head[a]];
+                if (du < distance[u])
+                {
+                    distance[u] = du;
+                    nextArc[u] = a;
+                }
+            }
+            if (distance[u] != Double.POSITIVE_INFINITY)
+            {
+                queue.insertOrUpdate(u, distance[u]);
+            }
+        }
+
+        // and lower the nodes a changed arc now serves better
+        for (int i = 0; i < count; i++)
+        {
+            int a = arcs[i];
+            int u = tail[a];
+            double du = cost[a] + distance[head[a]];
+            if (du < distance[u])
+            {
+                distance[u] = du;
+                nextArc[u] = a;
+                queue.insertOrUpdate(u, du);
+            }
+        }
+
+        int settled = 0;
+        while (!queue.isEmpty())
+        {
+            int v = queue.poll();
+            settled++;
+            double dv = distance[v];
+            for (int i = firstIn[v], end = firstIn[v + 1]; i < end; i++)
+            {
+                int a = inArc[i];
+                int u = tail[a];
+                double du = dv + cost[a];
+                if (du < distance[u])
+                {
+                    distance[u] = du;
+                    nextArc[u] = a;
+                    queue.insertOrUpdate(u, du);
+                }
+            }
+        }
+        return settled;
+    }
+
+
+    public int getGoal()
+    {
+        return goal;
+    }
+
+
+    /**
+     * @param from node id
+     * @return whether the goal can be reached from the given node
+     */
+    public boolean reaches(int from)
+    {
+        return distance[from] != Double.POSITIVE_INFINITY;
+    }
+
+
+    /**
+     * @param from node id
+     * @return the cost of the shortest path from the node to the goal
+     */
+    public double distanceFrom(int from)
+    {
+        return distance[from];
+    }
+
+
+    /**
+     * @param from node id
+     * @return the number of arcs on the path from the node to the goal, or
+     * -1 if there is no such path
+     */
+    public int hops(int from)
+    {
+        if (!reaches(from))
+        {
+            return -1;
+        }
+        int count = 0;
+        for (int v = from; v != goal; v = graph.head[nextArc[v]])
+        {
+            count++;
+        }
+        return count;
+    }
+
+
+    /**
+     * Copies the arcs of the path from the node to the goal into out, which
+     * must have room for hops(from) entries
+     */
+    public void copyPath(int from, int[] out)
+    {
+        int i = 0;
+        for (int v = from; v != goal; v = graph.head[nextArc[v]])
+        {
+            out[i++] = nextArc[v];
+        }
+    }
+
+
+    /**
+     * @param from node id
+     * @return the directed edges leading from the given node to the goal, or
+     * an empty list if there is no such path
+     */
+    public ArrayList<GeomPlanarGraphDirectedEdge> pathFrom(int from)
+    {
+        ArrayList<GeomPlanarGraphDirectedEdge> result =
+            new ArrayList<GeomPlanarGraphDirectedEdge>();
+        if (!reaches(from))
+        {
+            return result;
+        }
+        for (int v = from; v != goal; v = graph.head[nextArc[v]])
+        {
+            result.add(graph.arcs[nextArc[v]]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,345 @@
+package network;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Travel times, in minutes, from each of a set of origins to each of a set of
+ * destinations, as found by TravelTimes. Unreachable pairs are infinite.
+ *
+ * A matrix lives in a binary file: a fixed header, then the times row by row
+ * as 4 byte floats, then the origin and destination names. The times are
+ * memory mapped rather than read in, so reloading a cached matrix costs next
+ * to nothing however large it is. The header records the fingerprints of the
+ * network and scenario the times were found for, which is how TravelTimes
+ * tells whether a cached file can be reused. No one mapping can exceed 2 GB,
+ * so the times are mapped in blocks of whole rows.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class TravelTimeMatrix
+{
+
+    // "TTM1"
+    static final int MAGIC = 0x54544d31;
+    // magic, two fingerprints, row and column counts
+    static final int HEADER_BYTES = 4 + 8 + 8 + 4 + 4;
+    // the most bytes a single mapping can hold
+    static final long MAX_MAP_BYTES = Integer.MAX_VALUE;
+
+    final File file;
+    final long networkFingerprint;
+    final long scenarioFingerprint;
+    final String[] origins;
+    final String[] destinations;
+    // the times, rowsPerBlock rows to a mapping
+    final FloatBuffer[] blocks;
+    final int rowsPerBlock;
+
+
+    TravelTimeMatrix(File file, long networkFingerprint, long scenarioFingerprint,
+        String[] origins, String[] destinations, FloatBuffer[] blocks, int rowsPerBlock)
+    {
+        this.file = file;
+        this.networkFingerprint = networkFingerprint;
+        this.scenarioFingerprint = scenarioFingerprint;
+        this.origins = origins;
+        this.destinations = destinations;
+        this.blocks = blocks;
+        this.rowsPerBlock = rowsPerBlock;
+    }
+
+
+    /**
+     * @return how many rows of the given length to map at a time
+     * @throws IOException if a single row is too long to map
+     */
+    static int rowsPerBlock(int columns) throws IOException
+    {
+        long rowBytes = 4L * columns;
+        if (rowBytes > MAX_MAP_BYTES)
+        {
+            throw new IOException(columns + " destinations are too many to map a row of");
+        }
+        return rowBytes == 0 ? Integer.MAX_VALUE : (int) (MAX_MAP_BYTES / rowBytes);
+    }
+
+
+    /**
+     * Maps a matrix file written by TravelTimes
+     * @param file the matrix file
+     * @return the matrix, backed by the file
+     * @throws IOException if the file cannot be read or is not a matrix
+     */
+    public static TravelTimeMatrix load(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            if (raf.length() < HEADER_BYTES || raf.readInt() != MAGIC)
+            {
+                throw new IOException(file + " is not a travel time matrix");
+            }
+            long network = raf.readLong();
+            long scenario = raf.readLong();
+            int rows = raf.readInt();
+            int columns = raf.readInt();
+            long timesBytes = 4L * rows * columns;
+            if (rows < 0 || columns < 0 || HEADER_BYTES + timesBytes > raf.length())
+            {
+                throw new IOException(file + " is truncated");
+            }
+
+            // the names follow the times
+            raf.seek(HEADER_BYTES + timesBytes);
+            DataInputStream in = new DataInputStream(new FileInputStream(raf.getFD()));
+            String[] origins = readNames(in, rows);
+            String[] destinations = readNames(in, columns);
+
+            int rowsPerBlock = rowsPerBlock(columns);
+            int blockCount = (int) ((rows + (long) rowsPerBlock - 1) / rowsPerBlock);
+            FloatBuffer[] blocks = new FloatBuffer[blockCount];
+            FileChannel channel = raf.getChannel();
+            for (int b = 0; b < blocks.length; b++)
+            {
+                long first = (long) b * rowsPerBlock;
+                long count = Math.min(rowsPerBlock, rows - first);
+                blocks[b] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES + 4L * columns * first, 4L * columns * count).asFloatBuffer();
+            }
+            return new TravelTimeMatrix(file, network, scenario, origins, destinations, blocks,
+                rowsPerBlock);
+        } finally
+        {
+            // the mapping stays valid once the file is closed
+            raf.close();
+        }
+    }
+
+
+    static String[] readNames(DataInputStream in, int count) throws IOException
+    {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+
+    public File getFile()
+    {
+        return file;
+    }
+
+
+    public long getNetworkFingerprint()
+    {
+        return networkFingerprint;
+    }
+
+
+    public long getScenarioFingerprint()
+    {
+        return scenarioFingerprint;
+    }
+
+
+    public int getOriginCount()
+    {
+        return origins.length;
+    }
+
+
+    public int getDestinationCount()
+    {
+        return destinations.length;
+    }
+
+
+    public String getOrigin(int i)
+    {
+        return origins[i];
+    }
+
+
+    public String getDestination(int j)
+    {
+        return destinations[j];
+    }
+
+
+    /**
+     * @return minutes from origin i to destination j, infinite if there is
+     * no way there
+     */
+    public float getMinutes(int i, int j)
+    {
+        return blocks[i / rowsPerBlock].get((i % rowsPerBlock) * destinations.length + j);
+    }
+
+
+    /**
+     * @return the destination quickest to reach from origin i, or -1 if none
+     * can be reached
+     */
+    public int nearestDestination(int i)
+    {
+        int best = -1;
+        float bestMinutes = Float.POSITIVE_INFINITY;
+        for (int j = 0; j < destinations.length; j++)
+        {
+            float m = getMinutes(i, j);
+            if (m < bestMinutes)
+            {
+                best = j;
+                bestMinutes = m;
+            }
+        }
+        return best;
+    }
+
+
+    /**
+     * Writes the matrix as CSV, one row per origin and one column per
+     * destination, with unreachable pairs left empty
+     * @param csv the file to write
+     */
+    public void writeCsv(File csv) throws IOException
+    {
+        BufferedWriter out = new BufferedWriter(new FileWriter(csv));
+        try
+        {
+            out.write("ORIGIN");
+            for (String d : destinations)
+            {
+                out.write(',');
+                out.write(quote(d));
+            }
+            out.newLine();
+            for (int i = 0; i < origins.length; i++)
+            {
+                out.write(quote(origins[i]));
+                for (int j = 0; j < destinations.length; j++)
+                {
+                    out.write(',');
+                    float m = getMinutes(i, j);
+                    if (m != Float.POSITIVE_INFINITY)
+                    {
+                        out.write(Float.toString(m));
+                    }
+                }
+                out.newLine();
+            }
+        } finally
+        {
+            out.close();
+        }
+    }
+
+
+    /**
+     * @return a name as a CSV field, in double quotes with any inside doubled
+     */
+    static String quote(String name)
+    {
+        return '"' + name.replace("\"", "\"\"") + '"';
+    }
+
+
+    /**
+     * Streams a matrix to disk a block of rows at a time. It is written to a
+     * temporary file and only moved into place by finish(), so an interrupted
+     * run never leaves a half-written matrix where the cache will find it.
+     */
+    static class Writer
+    {
+        final File file;
+        final File partial;
+        final DataOutputStream out;
+        final int rows, columns;
+        int rowsWritten = 0;
+
+
+        Writer(File file, long networkFingerprint, long scenarioFingerprint, int rows,
+            int columns) throws IOException
+        {
+            // fail before any searching if the matrix could not be mapped
+            rowsPerBlock(columns);
+            this.file = file;
+            this.partial = new File(file.getPath() + ".part");
+            this.rows = rows;
+            this.columns = columns;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial),
+                1 << 16));
+            out.writeInt(MAGIC);
+            out.writeLong(networkFingerprint);
+            out.writeLong(scenarioFingerprint);
+            out.writeInt(rows);
+            out.writeInt(columns);
+        }
+
+
+        /**
+         * Appends the next count rows, held row by row in block
+         */
+        void writeRows(float[] block, int count) throws IOException
+        {
+            for (int k = 0; k < count * columns; k++)
+            {
+                out.writeFloat(block[k]);
+            }
+            rowsWritten += count;
+        }
+
+
+        /**
+         * Writes the names, closes the file and moves it into place
+         */
+        void finish(String[] origins, String[] destinations) throws IOException
+        {
+            if (rowsWritten != rows)
+            {
+                abort();
+                throw new IOException("only " + rowsWritten + " of " + rows + " rows written");
+            }
+            for (String o : origins)
+            {
+                out.writeUTF(o);
+            }
+            for (String d : destinations)
+            {
+                out.writeUTF(d);
+            }
+            out.close();
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+
+        void abort()
+        {
+            try
+            {
+                out.close();
+            } catch (IOException e)
+            {
+                // nothing more to lose
+            }
+            partial.delete();
+        }
+    }
+}
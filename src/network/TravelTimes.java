@@ -0,0 +1,318 @@
+package network;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds travel time matrices between many origins and many destinations,
+ * e.g. every LSOA centroid to every facility.
+ *
+ * Rather than one search per pair, each origin gets a single Dijkstra search
+ * over the current arc costs, which stops once every destination has been
+ * reached. Origins are searched in blocks of rows; the rows of a block are
+ * shared between the common fork-join pool's threads and the finished block
+ * is streamed to disk before the next starts, so memory use does not grow
+ * with the number of origins.
+ *
+ * Matrices are cached in a directory, named by the fingerprint of the
+ * network and of the scenario - the arc costs, travel speed, origins and
+ * destinations. Asking for the same matrix again maps the cached file instead
+ * of searching.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class TravelTimes
+{
+
+    // rows searched and written at a time
+    static final int BLOCK_ROWS = 256;
+    // rows too few to be worth splitting between threads
+    static final int ROW_THRESHOLD = 4;
+
+    final RoutingGraph graph;
+    // map units travelled per minute, e.g. 500 for 30 km/h in metres
+    final double unitsPerMinute;
+    File cacheDirectory = new File("travel-times");
+
+
+    /**
+     * @param graph the network to search
+     * @param unitsPerMinute travel speed in map units per minute
+     */
+    public TravelTimes(RoutingGraph graph, double unitsPerMinute)
+    {
+        this.graph = graph;
+        this.unitsPerMinute = unitsPerMinute;
+    }
+
+
+    /**
+     * @param cacheDirectory where matrices are written and looked for
+     */
+    public void setCacheDirectory(File cacheDirectory)
+    {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+
+    /**
+     * Finds the travel time from every origin to every destination, or loads
+     * it from the cache if this network and scenario have been seen before.
+     * An origin or destination may be reached through several junctions,
+     * e.g. either end of a road; its time is through the quickest.
+     * @param name a name for the matrix, e.g. "lsoa-facility", used in its
+     * file name
+     * @param originNames a name for each origin
+     * @param origins the junctions each origin is left from; an empty array
+     * where the origin is not on the network
+     * @param destinationNames a name for each destination
+     * @param destinations the junctions each destination is reached through
+     * @return the matrix
+     * @throws IOException if the matrix cannot be written or read
+     */
+    public TravelTimeMatrix matrix(String name, List<String> originNames, List<int[]> origins,
+        List<String> destinationNames, List<int[]> destinations) throws IOException
+    {
+        int[][] from = origins.toArray(new int[origins.size()][]);
+        int[][] to = destinations.toArray(new int[destinations.size()][]);
+        long network = graph.fingerprint();
+        long scenario = scenarioFingerprint(originNames, from, destinationNames, to);
+
+        File file = new File(cacheDirectory, name + "-" + Long.toHexString(network) + "-"
+            + Long.toHexString(scenario) + ".ttm");
+        if (file.exists())
+        {
+            try
+            {
+                TravelTimeMatrix cached = TravelTimeMatrix.load(file);
+                if (cached.networkFingerprint == network && cached.scenarioFingerprint == scenario)
+                {
+                    return cached;
+                }
+            } catch (IOException e)
+            {
+                System.out.println("Discarding cached travel times " + file + ": " + e.getMessage());
+            }
+        }
+
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs())
+        {
+            throw new IOException("cannot create " + cacheDirectory);
+        }
+        TravelTimeMatrix.Writer writer =
+            new TravelTimeMatrix.Writer(file, network, scenario, from.length, to.length);
+        try
+        {
+            Targets targets = new Targets(to);
+            float[] block = new float[BLOCK_ROWS * to.length];
+            // searches read this array throughout, so a cost change part way
+            // through cannot mix two scenarios in one matrix
+            double[] cost = graph.cost;
+            for (int first = 0; first < from.length; first += BLOCK_ROWS)
+            {
+                int count = Math.min(BLOCK_ROWS, from.length - first);
+                RowSearch search = new RowSearch(cost, from, targets, block, first, first,
+                    first + count);
+                if (count <= ROW_THRESHOLD)
+                {
+                    search.compute();
+                } else
+                {
+                    ForkJoinPool.commonPool().invoke(search);
+                }
+                writer.writeRows(block, count);
+            }
+            writer.finish(originNames.toArray(new String[from.length]),
+                destinationNames.toArray(new String[to.length]));
+        } catch (IOException e)
+        {
+            writer.abort();
+            throw e;
+        } catch (RuntimeException e)
+        {
+            writer.abort();
+            throw e;
+        }
+        return TravelTimeMatrix.load(file);
+    }
+
+
+    /**
+     * @return a hash of everything other than the network that the times
+     * depend on
+     */
+    long scenarioFingerprint(List<String> originNames, int[][] origins,
+        List<String> destinationNames, int[][] destinations)
+    {
+        long h = RoutingGraph.mix(graph.costFingerprint(), Double.doubleToLongBits(unitsPerMinute));
+        h = mix(h, originNames, origins);
+        return mix(h, destinationNames, destinations);
+    }
+
+
+    static long mix(long h, List<String> names, int[][] places)
+    {
+        h = RoutingGraph.mix(h, places.length);
+        for (int i = 0; i < places.length; i++)
+        {
+            h = RoutingGraph.mix(h, names.get(i).hashCode());
+            h = RoutingGraph.mix(h, Arrays.hashCode(places[i]));
+        }
+        return h;
+    }
+
+
+    /**
+     * The destinations' junctions, and how many distinct junctions a search
+     * must settle before every destination has its time
+     */
+    static class Targets
+    {
+        final int[][] destinations;
+        final boolean[] isTarget;
+        final int count;
+
+
+        Targets(int[][] destinations)
+        {
+            this.destinations = destinations;
+            int found = 0;
+            int max = -1;
+            for (int[] d : destinations)
+            {
+                for (int v : d)
+                {
+                    max = Math.max(max, v);
+                }
+            }
+            isTarget = new boolean[max + 1];
+            for (int[] d : destinations)
+            {
+                for (int v : d)
+                {
+                    if (v >= 0 && !isTarget[v])
+                    {
+                        isTarget[v] = true;
+                        found++;
+                    }
+                }
+            }
+            count = found;
+        }
+
+
+        boolean contains(int v)
+        {
+            return v < isTarget.length && isTarget[v];
+        }
+    }
+
+
+    /**
+     * Searches one range of a block's rows, halving it until it is small
+     * enough to do directly. Each range has its own distances and queue.
+     */
+    class RowSearch extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        final double[] cost;
+        final int[][] origins;
+        final Targets targets;
+        final float[] block;
+        final int blockStart, from, to;
+
+
+        RowSearch(double[] cost, int[][] origins, Targets targets, float[] block,
+            int blockStart, int from, int to)
+        {
+            this.cost = cost;
+            this.origins = origins;
+            this.targets = targets;
+            this.block = block;
+            this.blockStart = blockStart;
+            this.from = from;
+            this.to = to;
+        }
+
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > ROW_THRESHOLD)
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowSearch(cost, origins, targets, block, blockStart, from, mid),
+                    new RowSearch(cost, origins, targets, block, blockStart, mid, to));
+                return;
+            }
+
+            double[] distance = new double[graph.nodeCount];
+            IndexedMinHeap queue = new IndexedMinHeap(graph.nodeCount);
+            int columns = targets.destinations.length;
+            for (int row = from; row < to; row++)
+            {
+                search(origins[row], distance, queue);
+                int offset = (row - blockStart) * columns;
+                for (int j = 0; j < columns; j++)
+                {
+                    double best = Double.POSITIVE_INFINITY;
+                    for (int v : targets.destinations[j])
+                    {
+                        if (v >= 0)
+                        {
+                            best = Math.min(best, distance[v]);
+                        }
+                    }
+                    block[offset + j] = (float) (best / unitsPerMinute);
+                }
+            }
+        }
+
+
+        /**
+         * Dijkstra from all of the sources at once, until every target
+         * junction is settled or nothing more can be reached
+         */
+        void search(int[] sources, double[] distance, IndexedMinHeap queue)
+        {
+            final int[] firstOut = graph.firstOut, head = graph.head;
+            Arrays.fill(distance, Double.POSITIVE_INFINITY);
+            queue.clear();
+            for (int s : sources)
+            {
+                if (s >= 0)
+                {
+                    distance[s] = 0;
+                    queue.insertOrUpdate(s, 0);
+                }
+            }
+
+            int remaining = targets.count;
+            while (remaining > 0 && !queue.isEmpty())
+            {
+                int v = queue.poll();
+                if (targets.contains(v))
+                {
+                    remaining--;
+                }
+                double dv = distance[v];
+                for (int a = firstOut[v], end = firstOut[v + 1]; a < end; a++)
+                {
+                    double d = dv + cost[a];
+                    int w = head[a];
+                    if (d < distance[w])
+                    {
+                        distance[w] = d;
+                        queue.insertOrUpdate(w, d);
+                    }
+                }
+            }
+        }
+    }
+}
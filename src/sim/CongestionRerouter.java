@@ -0,0 +1,118 @@
+package sim;
+
+import agents.AgentStore;
+import network.RoutingGraph;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+import java.util.Arrays;
+
+/**
+ * Turns the number of agents on each road into a congestion cost, and sends
+ * some agents looking for faster routes around the busiest roads.
+ *
+ * Every congestionInterval ticks the occupancy of each road is counted and
+ * converted into the slowdown agents suffer there (see AgentStore.congestion),
+ * which becomes the road's congestion factor in the CostModel. Agents are
+ * only slowed by others of their own kind, so a road's factor is the
+ * slowdown of the kind most held up on it. Factors that have moved by less
+ * than COST_TOLERANCE are left alone, so small changes in traffic do not
+ * trigger tree repairs.
+ *
+ * Over the following cycle rerouteFraction of the agents are asked, in turn,
+ * to compare their route with the best one at their next junction. The
+ * requests are spread evenly across the ticks of the cycle so that no single
+ * tick pays for everyone's replanning. An agent only switches if the new
+ * route saves rerouteGain of the cost of its current one, which stops agents
+ * swapping back and forth between two roads as they empty and fill.
+ *
+ * @author KJGarbutt
+ *
+ */
+public class CongestionRerouter implements Steppable	{
+    private static final long serialVersionUID = 1L;
+
+    // relative change in a road's congestion factor worth publishing
+    static final double COST_TOLERANCE = 0.1;
+
+    final MK_5 world;
+    final RoutingGraph graph;
+    // every agent that can be asked to reroute, asked in index order
+    final AgentStore population;
+    // next agent to ask
+    int cursor = 0;
+    // requests still to be made in this cycle, and the ticks left to make them
+    int budget = 0;
+    int ticksLeft = 0;
+
+    // the factor last published for each road
+    final double[] published;
+
+
+    public CongestionRerouter(MK_5 world)	{
+        this.world = world;
+        this.graph = world.routingGraph;
+        this.population = world.agentStore;
+
+        published = new double[graph.getEdgeCount()];
+        Arrays.fill(published, 1);
+    }
+
+
+    @Override
+    public void step(SimState state)	{
+        if (ticksLeft <= 0)	{
+            updateCosts();
+            budget = (int) Math.ceil(world.rerouteFraction * population.size());
+            ticksLeft = Math.max(1, world.congestionInterval);
+        }
+        // this tick's share of the requests left in the cycle
+        int quota = (budget + ticksLeft - 1) / ticksLeft;
+        askNext(quota);
+        budget -= quota;
+        ticksLeft--;
+    }
+
+
+    /**
+     * Asks the next agents in turn to look for a faster route, skipping those
+     * not travelling
+     * @param quota how many agents to ask
+     * @return the number asked
+     */
+    int askNext(int quota)	{
+        int asked = 0;
+        for (int tried = 0; tried < population.size() && asked < quota; tried++)	{
+            if (cursor >= population.size())	{
+                cursor = 0;
+            }
+            if (population.requestReroute(cursor++))	{
+                asked++;
+            }
+        }
+        return asked;
+    }
+
+
+    /**
+     * Counts the agents on each road and publishes the congestion factors
+     * that have changed enough to matter
+     * @return the number of roads whose factor changed
+     */
+    int updateCosts()	{
+        int changed = 0;
+        for (int e = 0; e < published.length; e++)	{
+            double factor = population.slowdown(e);
+            if (Math.abs(factor - published[e]) > COST_TOLERANCE * published[e])	{
+                world.costModel.setCongestionFactor(e, factor);
+                published[e] = factor;
+                changed++;
+            }
+        }
+        if (changed > 0)	{
+            // the rerouter decides who replans, so do not send everyone
+            world.planner.applyCosts(world.costModel, false);
+        }
+        return changed;
+    }
+}
@@ -1,13 +1,25 @@
 package sim;
 
-import agents.LimitedActionsAgent;
-import agents.NGOAgent;
+import agents.AgentProfile;
+import agents.AgentStore;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.planargraph.Node;
 import ec.util.MersenneTwisterFast;
+import network.CostModel;
+import network.EdgeGeometry;
+import network.JunctionIndex;
+import network.Landmarks;
+import network.NetworkAdapter;
+import network.RoutePlanner;
+import network.RouteStore;
+import network.RoutingGraph;
+import network.ServiceArea;
+import network.ServiceAreas;
+import network.TravelTimeMatrix;
+import network.TravelTimes;
 import sim.engine.SimState;
 import sim.engine.Steppable;
 import sim.field.geo.GeomVectorField;
@@ -18,13 +30,19 @@ import sim.util.geo.GeomPlanarGraphEdge;
 import sim.util.geo.MasonGeometry;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.zip.CRC32;
 
 /**
  *
@@ -60,64 +78,189 @@ public class MK_5 extends SimState	{
     ////////////////////// Network ///////////////////////////////
     public GeomPlanarGraph network = new GeomPlanarGraph();	// Stores road network connections
     public GeomVectorField junctions = new GeomVectorField();	// nodes for intersections
-    
-    ///////////////////// MainAgent //////////////////////////////
-    // maps between unique edge IDs and edge structures themselves
-    HashMap<Integer, GeomPlanarGraphEdge> idsToEdges =
-        new HashMap<Integer, GeomPlanarGraphEdge>();
-    public HashMap<GeomPlanarGraphEdge, ArrayList<agents.MainAgent>> edgeTraffic =
-        new HashMap<GeomPlanarGraphEdge, ArrayList<agents.MainAgent>>();
+    public GeomVectorField serviceAreaRoads = new GeomVectorField();	// roads each facility reaches in time
+    public GeomVectorField serviceAreaHulls = new GeomVectorField();	// outlines of those roads
+    public JunctionIndex junctionIndex = null;	// finds the junction at or nearest a point
+    public RoutingGraph routingGraph = null;	// compact snapshot of network for routing
+    public EdgeGeometry edgeGeometry = null;	// every road's polyline, for placing agents
+    public RoutePlanner planner = null;	// answers agents' route requests
+    public CostModel costModel = null;	// road class, flood and congestion factors
+    NetworkAdapter roadNetwork = null;	// the roads as a MASON Network, built on first use
+    // origins that could not reach each goal, and how many agents each
+    HashMap<Node, HashMap<String, Integer>> unreachable =
+        new HashMap<Node, HashMap<String, Integer>>();
+
+    // read each agent's route off one shortest path tree per destination
+    // instead of searching once per agent
+    public boolean useGoalTrees = true;
+    public boolean getUseGoalTrees()	{
+        return useGoalTrees;
+    }
+    public void setUseGoalTrees(boolean useGoalTrees)	{
+        this.useGoalTrees = useGoalTrees;
+    }
 
-    public GeomVectorField mainagents = new GeomVectorField();
-    ArrayList<agents.MainAgent> agentList = new ArrayList<agents.MainAgent>();
-    ArrayList<Polygon> polys = new ArrayList<Polygon>();
-    
-    // Here we force the agents to go to or from work at any time
-    public boolean goToWork = true;
-    public boolean getGoToWork()	{
-        return goToWork;
+    // preprocess a contraction hierarchy for county-sized networks
+    public boolean useContractionHierarchy = false;
+    public boolean getUseContractionHierarchy()	{
+        return useContractionHierarchy;
+    }
+    public void setUseContractionHierarchy(boolean useContractionHierarchy)	{
+        this.useContractionHierarchy = useContractionHierarchy;
     }
-    
-    ///////////////////// NGOAgent //////////////////////////////
-    HashMap<Integer, GeomPlanarGraphEdge> idsToEdges1 =
-            new HashMap<Integer, GeomPlanarGraphEdge>();
-    public HashMap<GeomPlanarGraphEdge, ArrayList<NGOAgent>> edgeTraffic1 =
-            new HashMap<GeomPlanarGraphEdge, ArrayList<NGOAgent>>();
 
-    public GeomVectorField ngogents = new GeomVectorField();
-    ArrayList<NGOAgent> ngoAgentList = new ArrayList<NGOAgent>();
+    // guide A* with landmark (ALT) lower bounds instead of straight lines
+    public boolean useLandmarks = false;
+    public boolean getUseLandmarks()	{
+        return useLandmarks;
+    }
+    public void setUseLandmarks(boolean useLandmarks)	{
+        this.useLandmarks = useLandmarks;
+    }
+    public int landmarkCount = 8;
+    public int getLandmarkCount()	{
+        return landmarkCount;
+    }
+    public void setLandmarkCount(int landmarkCount)	{
+        this.landmarkCount = landmarkCount;
+    }
+    public Landmarks.Selection landmarkSelection = Landmarks.Selection.PLANAR;
+    public Landmarks.Selection getLandmarkSelection()	{
+        return landmarkSelection;
+    }
+    public void setLandmarkSelection(Landmarks.Selection landmarkSelection)	{
+        if (landmarkSelection != null)	{
+            this.landmarkSelection = landmarkSelection;
+        }
+    }
+
+    // collapse chains of links joined end to end into single super-edges, so
+    // A* settles only real junctions; only those are drawn as junctions
+    public boolean useChainContraction = false;
+    public boolean getUseChainContraction()	{
+        return useChainContraction;
+    }
+    public void setUseChainContraction(boolean useChainContraction)	{
+        this.useChainContraction = useChainContraction;
+    }
 
-    public boolean goToWork1 = true;
-    public boolean getGoToWork1()	{
-        return goToWork1;
+    // what each facility can reach within serviceAreaBands minutes at
+    // serviceAreaSpeed km/h; redrawn whenever roads close or open
+    public boolean showServiceAreas = false;
+    public boolean getShowServiceAreas()	{
+        return showServiceAreas;
     }
+    public void setShowServiceAreas(boolean showServiceAreas)	{
+        this.showServiceAreas = showServiceAreas;
+    }
+    public double serviceAreaSpeed = 30;
+    public double getServiceAreaSpeed()	{
+        return serviceAreaSpeed;
+    }
+    public void setServiceAreaSpeed(double serviceAreaSpeed)	{
+        this.serviceAreaSpeed = Math.max(1, serviceAreaSpeed);
+    }
+    double[] serviceAreaBands = {10, 20, 30};
 
-    //////////////////// ElderlyAgent ///////////////////////////
-    HashMap<Integer, GeomPlanarGraphEdge> idsToEdges2 =
-            new HashMap<Integer, GeomPlanarGraphEdge>();
-    public HashMap<GeomPlanarGraphEdge, ArrayList<agents.ElderlyAgent>> edgeTraffic2 =
-            new HashMap<GeomPlanarGraphEdge, ArrayList<agents.ElderlyAgent>>();
+    // LSOA to facility and LSOA to LSOA travel times for planning studies,
+    // at serviceAreaSpeed; cached in travelTimeDirectory by network and scenario
+    public boolean writeTravelTimes = false;
+    public boolean getWriteTravelTimes()	{
+        return writeTravelTimes;
+    }
+    public void setWriteTravelTimes(boolean writeTravelTimes)	{
+        this.writeTravelTimes = writeTravelTimes;
+    }
+    public String travelTimeDirectory = "travel-times";
+
+    // save the routes handed out at start to routeStoreDirectory, and reuse
+    // them next time the same network and population are started
+    public boolean useRouteStore = false;
+    public boolean getUseRouteStore()	{
+        return useRouteStore;
+    }
+    public void setUseRouteStore(boolean useRouteStore)	{
+        this.useRouteStore = useRouteStore;
+    }
+    public String routeStoreDirectory = "routes";
+    String lsoaCodeAttribute = "LSOA_CODE";
+    // how far an LSOA centroid may be from the junction it is snapped to
+    double maxCentroidSnap = 2000;
+
+    // spread agents with the same start and goal over up to this many
+    // different routes; 1 sends them all down the shortest
+    public int alternativeRoutes = 1;
+    public int getAlternativeRoutes()	{
+        return alternativeRoutes;
+    }
+    public void setAlternativeRoutes(int alternativeRoutes)	{
+        this.alternativeRoutes = Math.max(1, alternativeRoutes);
+    }
 
-    public GeomVectorField elderlyagent = new GeomVectorField();
-    ArrayList<agents.ElderlyAgent> elderlyAgentList = new ArrayList<agents.ElderlyAgent>();
+    // turn road occupancy into travel costs every congestionInterval ticks
+    // and ask rerouteFraction of the agents per cycle to look for a way round
+    public boolean useCongestionRerouting = false;
+    public boolean getUseCongestionRerouting()	{
+        return useCongestionRerouting;
+    }
+    public void setUseCongestionRerouting(boolean useCongestionRerouting)	{
+        this.useCongestionRerouting = useCongestionRerouting;
+    }
+    public int congestionInterval = 10;
+    public int getCongestionInterval()	{
+        return congestionInterval;
+    }
+    public void setCongestionInterval(int congestionInterval)	{
+        this.congestionInterval = Math.max(1, congestionInterval);
+    }
+    public double rerouteFraction = 0.1;
+    public double getRerouteFraction()	{
+        return rerouteFraction;
+    }
+    public void setRerouteFraction(double rerouteFraction)	{
+        this.rerouteFraction = Math.max(0, Math.min(1, rerouteFraction));
+    }
+    // how much faster, as a fraction, a new route must be to be taken
+    public double rerouteGain = 0.1;
+    public double getRerouteGain()	{
+        return rerouteGain;
+    }
+    public void setRerouteGain(double rerouteGain)	{
+        this.rerouteGain = Math.max(0, Math.min(1, rerouteGain));
+    }
 
-    public boolean goToWork2 = true;
-    public boolean getGoToWork2()	{
-        return goToWork2;
+    // move agents in two phases on this many threads; 0 moves them on the
+    // scheduler's thread. Runs match whatever the number of threads.
+    public int stepThreads = 0;
+    public int getStepThreads()	{
+        return stepThreads;
+    }
+    public void setStepThreads(int stepThreads)	{
+        this.stepThreads = Math.max(0, stepThreads);
     }
 
-    //////////////////// LimitedActionsAgent //////////////////////
-    HashMap<Integer, GeomPlanarGraphEdge> idsToEdges3 =
-            new HashMap<Integer, GeomPlanarGraphEdge>();
-    public HashMap<GeomPlanarGraphEdge, ArrayList<LimitedActionsAgent>> edgeTraffic3 =
-            new HashMap<GeomPlanarGraphEdge, ArrayList<LimitedActionsAgent>>();
+    // search from both ends at once when routes are found on the fly, for
+    // networks loaded without preprocessing
+    public boolean useBidirectionalAStar = false;
+    public boolean getUseBidirectionalAStar()	{
+        return useBidirectionalAStar;
+    }
+    public void setUseBidirectionalAStar(boolean useBidirectionalAStar)	{
+        this.useBidirectionalAStar = useBidirectionalAStar;
+    }
+    
+    ///////////////////// Agents //////////////////////////////////
+    // maps between unique edge IDs and edge structures themselves
+    HashMap<Integer, GeomPlanarGraphEdge> idsToEdges =
+        new HashMap<Integer, GeomPlanarGraphEdge>();
 
-    public GeomVectorField limitedactionsagent = new GeomVectorField();
-    ArrayList<LimitedActionsAgent> limitedActionsAgentList = new ArrayList<LimitedActionsAgent>();
+    public GeomVectorField mainagents = new GeomVectorField();
+    public AgentStore agentStore = null;	// every agent, of every profile
+    ArrayList<Polygon> polys = new ArrayList<Polygon>();
 
-    public boolean goToWork3 = true;
-    public boolean getGoToWork3()	{
-        return goToWork3;
+    // whether the agents are heading to or from work
+    public boolean getGoToWork()	{
+        return agentStore == null || agentStore.isGoingToWork(AgentProfile.MAIN);
     }
     
     //////////////////// agentGoals //////////////////////
@@ -136,6 +279,18 @@ public class MK_5 extends SimState	{
     		60708, 70353, 75417, 29565, 3715, 15816, 47794, 16561, 70035, 55437, 98, 45, 987, 345, 5643, 234, 21, 8765, 10345
     };
     
+    /**
+     * Response facilities, by ROAD_ID as above, whose service areas are drawn
+     * when showServiceAreas is on
+     */
+    Integer[] facilities =	{
+    		30250, 74858, 18081, 46728, 49307
+    };
+    String[] facilityNames =	{
+    		"Norfolk & Norwich Hospital", "James Paget Hospital", "Queen Elizabeth Hospital",
+    		"BRC Norwich Office", "Sprowston Fire Station"
+    };
+
     Integer[] goals1 =	{	// NGOAgent
     		60708, 70353, 75417, 29565, 3715, 15816, 47794, 16561, 70035, 55437
     };
@@ -282,6 +437,10 @@ public class MK_5 extends SimState	{
             
             createNetwork();
             setup();
+            redrawServiceAreas();
+            if (writeTravelTimes)	{
+                computeTravelTimes();
+            }
             
 
             //////////////////////////////////////////////
@@ -293,16 +452,39 @@ public class MK_5 extends SimState	{
             ngoagents.clear();
             elderlyagents.clear();
             limitedactionsagents.clear();
+            agentStore = new AgentStore(this);
+            agentStore.attachLayer(AgentProfile.MAIN, agents);
+            agentStore.attachLayer(AgentProfile.NGO, ngoagents);
+            agentStore.attachLayer(AgentProfile.ELDERLY, elderlyagents);
+            agentStore.attachLayer(AgentProfile.LIMITED_ACTIONS, limitedactionsagents);
 
             //////////////////////////////////////////////
             ////////////////// AGENTS ////////////////////
             //////////////////////////////////////////////
             
             // initialize agents using the following source .CSV files
+            File routeFile = useRouteStore ? openRouteStore() : null;
             populateAgent("/NorfolkITNAGENT.csv");
             populateNGO("/NorfolkITNNGO.csv");
             populateElderly("/NorfolkITNELDERLY.csv");
             populateLimitedActions("/NorfolkITNLIMITED.csv");
+            printUnreachable();
+            System.out.println("Agents: " +agentStore.size());
+            // one Steppable moves every agent
+            schedule.scheduleRepeating(agentStore);
+            if (routeFile != null)	{
+                saveRouteStore(routeFile);
+            }
+            if (useGoalTrees && !useContractionHierarchy)	{
+                System.out.println("Routes read from " +planner.getGoalTreeCount()
+                		+ " destination trees");
+            }
+            if (alternativeRoutes > 1)	{
+                System.out.println("Agents spread over alternative routes for "
+                		+ planner.getRouteChoiceCount() + " trips");
+            }
+            System.out.println(planner.getCache());
+            System.out.println("A* searches: " +planner.getStats());
             System.out.println();
             System.out.println("Starting simulation...");
 
@@ -340,69 +522,28 @@ public class MK_5 extends SimState	{
 
 					MK_5 gstate = (MK_5) state;
 
-					// checks to see if anyone has not yet reached destination
-					// turning off makes agents move to next edge then back again
-                    for (agents.MainAgent a : gstate.agentList)	{
-                        if (!a.reachedDestination)	{	// someone is still moving: let them do so
-                            return; 
-                        }
-                    }
-                    // Now send everyone back in the opposite direction
-                    boolean toWork = gstate.goToWork;
-                    gstate.goToWork = !toWork;
-                    // otherwise everyone has reached their latest destination:
-                    // turn them back
-                    // turning off means agents reach first destination and stay there.
-                    for (agents.MainAgent a : gstate.agentList) 	{
-                        a.flipPath();
-                    }
-                    
-                    
-                    // NGOAgent
-                    for (NGOAgent b : gstate.ngoAgentList)	{
-                        if (!b.reachedDestination)	{
-                            return;
-                        }
-                    }
-                    boolean toWork1 = gstate.goToWork1;
-                    gstate.goToWork1 = !toWork1;
-                    
-                    for (NGOAgent b : gstate.ngoAgentList)	{
-                        b.flipPath();
-                    }
-                    
-                    
-                    // ElderlyAgent
-                    for (agents.ElderlyAgent c : gstate.elderlyAgentList)	{
-                        if (!c.reachedDestination)	{
+					// checks to see if anyone has not yet reached destination;
+					// each kind of agent only turns back once everyone of the
+					// kinds before it has too
+                    for (AgentProfile p : AgentProfile.values())	{
+                        if (!gstate.agentStore.allArrived(p))	{	// someone is still moving: let them do so
                             return;
                         }
-                    }
-                    boolean toWork2 = gstate.goToWork2;
-                    gstate.goToWork2 = !toWork2;
-                    
-                    for (agents.ElderlyAgent c : gstate.elderlyAgentList)	{
-                        c.flipPath();
-                    }
-                    
-                    
-                    // LimitedActionsAgent
-                    for (LimitedActionsAgent d : gstate.limitedActionsAgentList)	{
-                        if (!d.reachedDestination)	{
-                            return;
-                        }
-                    }
-                    boolean toWork3 = gstate.goToWork3;
-                    gstate.goToWork3 = !toWork3;
-                    
-                    for (LimitedActionsAgent d : gstate.limitedActionsAgentList)	{
-                        d.flipPath();
+                        // otherwise everyone has reached their latest destination:
+                        // turn them back
+                        gstate.agentStore.turnBack(p);
                     }
                 }
             };
             schedule.scheduleRepeating(flipper, 10);
             // 10? Does it repeat 10 times? Appears to go on forever...
 
+            // after the agents have moved, re-cost crowded roads and send
+            // some agents round them
+            if (useCongestionRerouting)	{
+                schedule.scheduleRepeating(new CongestionRerouter(this), 1, 1.0);
+            }
+
         } catch (FileNotFoundException e)	{
             System.out.println("Error: missing required data file");
         }
@@ -416,6 +557,9 @@ public class MK_5 extends SimState	{
     	super.finish();
     	System.out.println();
     	System.out.println("Simulation ended by user.");
+        if (agentStore != null)	{
+            agentStore.setThreads(0);	// let the stepping threads go
+        }
         /*
     	System.out.println("Attempting to export agent data...");
         try	{
@@ -443,13 +587,454 @@ public class MK_5 extends SimState	{
             idsToEdges.put(e.getIntegerAttribute("ROAD_ID").intValue(), e);
             //System.out.println("idsToEdges = " +idsToEdges);
 
-            e.setData(new ArrayList<agents.MainAgent>());
         }
 
+        // points within a centimetre of a junction count as that junction
+        junctionIndex = new JunctionIndex(network.nodeIterator(), 0.01);
+
+        // build the compact routing snapshot the agents search over
+        routingGraph = RoutingGraph.build(network);
+        edgeGeometry = new EdgeGeometry(routingGraph);
+        planner = new RoutePlanner(routingGraph);
+        costModel = new CostModel(routingGraph);
+        planner.setUseGoalTrees(useGoalTrees);
+        planner.setUseBidirectionalSearch(useBidirectionalAStar);
+        planner.setAlternativeRoutes(alternativeRoutes);
+        if (useContractionHierarchy)	{
+            planner.enableContractionHierarchy();
+        }
+        if (useLandmarks)	{
+            planner.enableLandmarks(landmarkCount, landmarkSelection);
+        }
+        if (useChainContraction)	{
+            planner.enableChainContraction();
+        }
         addIntersectionNodes(network.nodeIterator(), junctions);
+        System.out.println("Routing graph: " +routingGraph.getNodeCount()
+        		+ " nodes, " +routingGraph.getArcCount() + " arcs");
+        System.out.println("Connected components: " +planner.getComponents().getWeakCount()
+        		+ " weak (largest " +planner.getComponents().getLargestWeakSize() + " nodes), "
+        		+ planner.getComponents().getStrongCount() + " strong");
     }
     
     
+    /**
+     * @return the roads as a MASON Network of GeoNodes, for agents that move
+     * over one, e.g. TrafficAgents. It is a view of the routing graph rather
+     * than a second copy of the roads, and is built the first time it is
+     * asked for.
+     */
+    public NetworkAdapter roadNetwork()	{
+        if (roadNetwork == null)	{
+            roadNetwork = NetworkAdapter.build(routingGraph);
+            System.out.println("Road Network: " +roadNetwork.getNetwork().getAllNodes().size()
+            		+ " nodes over the routing graph");
+        }
+        return roadNetwork;
+    }
+
+
+    /**
+     * Marks the Network's roads open or closed as they are on the routing
+     * graph, if the Network has been built
+     */
+    void syncRoadNetwork()	{
+        if (roadNetwork != null)	{
+            roadNetwork.syncClosures();
+        }
+    }
+
+
+    /**
+     * Closes the road with the given ROAD_ID to routing
+     * @param roadId
+     */
+    public void closeRoad(int roadId)	{
+        GeomPlanarGraphEdge edge = idsToEdges.get(roadId);
+        if (edge != null)	{
+            planner.closeEdge(edge);
+            redrawServiceAreas();
+            syncRoadNetwork();
+        }
+    }
+
+
+    /**
+     * Reopens the road with the given ROAD_ID to routing
+     * @param roadId
+     */
+    public void openRoad(int roadId)	{
+        GeomPlanarGraphEdge edge = idsToEdges.get(roadId);
+        if (edge != null)	{
+            planner.openEdge(edge);
+            redrawServiceAreas();
+            syncRoadNetwork();
+        }
+    }
+    
+    
+    /**
+     * Closes every road that crosses a flood zone, e.g. flood2 or flood3, in
+     * one go. Agents pick up the change at their next junction.
+     * @param zone polygons of the flooded area
+     * @return the number of roads closed
+     */
+    public int closeFloodedRoads(GeomVectorField zone)	{
+        HashSet<GeomPlanarGraphEdge> flooded = roadsIn(zone);
+        planner.closeEdges(flooded);
+        System.out.println("Closed " +flooded.size() + " flooded roads");
+        redrawServiceAreas();
+        syncRoadNetwork();
+        return flooded.size();
+    }
+
+
+    /**
+     * Makes every road that crosses a flood zone slower rather than closing
+     * it, e.g. for shallow water. Agents pick up the change at their next
+     * junction.
+     * @param zone polygons of the flooded area
+     * @param factor how many times longer the roads take to travel, at least 1
+     * @return the number of roads penalised
+     */
+    public int applyFloodPenalty(GeomVectorField zone, double factor)	{
+        HashSet<GeomPlanarGraphEdge> flooded = roadsIn(zone);
+        for (GeomPlanarGraphEdge edge : flooded)	{
+            int e = routingGraph.edgeId(edge);
+            if (e >= 0)	{
+                costModel.setFloodFactor(e, factor);
+            }
+        }
+        planner.applyCosts(costModel);
+        System.out.println("Slowed " +flooded.size() + " flooded roads by x" +factor);
+        redrawServiceAreas();
+        return flooded.size();
+    }
+
+
+    /**
+     * @param zone polygons, e.g. a flood zone
+     * @return the roads that cross any of the polygons
+     */
+    HashSet<GeomPlanarGraphEdge> roadsIn(GeomVectorField zone)	{
+        HashSet<GeomPlanarGraphEdge> found = new HashSet<GeomPlanarGraphEdge>();
+        Bag areas = zone.getGeometries();
+        for (int i = 0; i < areas.numObjs; i++)	{
+            MasonGeometry area = (MasonGeometry) areas.objs[i];
+            Bag hit = roads.getObjectsWithinDistance(area, 0);
+            for (int j = 0; j < hit.numObjs; j++)	{
+                MasonGeometry road = (MasonGeometry) hit.objs[j];
+                GeomPlanarGraphEdge edge =
+                    idsToEdges.get(road.getIntegerAttribute("ROAD_ID"));
+                if (edge != null)	{
+                    found.add(edge);
+                }
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Works out what each response facility can reach within each of
+     * serviceAreaBands, over the roads as they are now, and draws the results
+     * into serviceAreaRoads and serviceAreaHulls
+     * @return the service areas, one per facility on the network
+     */
+    public ArrayList<ServiceArea> computeServiceAreas()	{
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<int[]> sources = new ArrayList<int[]>();
+        facilityJunctions(names, sources);
+
+        long start = System.currentTimeMillis();
+        ServiceAreas engine = new ServiceAreas(routingGraph,
+            serviceAreaSpeed * 1000 / 60, serviceAreaBands);
+        engine.setHullWidth(50);
+        ArrayList<ServiceArea> areas = engine.computeAll(names, sources);
+        serviceAreaRoads.clear();
+        serviceAreaHulls.clear();
+        engine.draw(areas, serviceAreaRoads, serviceAreaHulls);
+        serviceAreaRoads.setMBR(roads.getMBR());
+        serviceAreaHulls.setMBR(roads.getMBR());
+        System.out.println("Service areas for " +areas.size() + " facilities in "
+        		+ (System.currentTimeMillis() - start) + " ms");
+        return areas;
+    }
+
+
+    /**
+     * Finds the junctions each response facility on the network is reached
+     * through: either end of its road
+     * @param names receives the names of the facilities on the network
+     * @param junctions receives each one's junction ids
+     */
+    void facilityJunctions(ArrayList<String> names, ArrayList<int[]> junctions)	{
+        for (int i = 0; i < facilities.length; i++)	{
+            GeomPlanarGraphEdge edge = idsToEdges.get(facilities[i]);
+            if (edge == null)	{
+                System.out.println("Facility " +facilityNames[i] + " is not on the road network");
+                continue;
+            }
+            names.add(facilityNames[i]);
+            junctions.add(new int[] {
+                routingGraph.nodeId(edge.getDirEdge(0).getFromNode()),
+                routingGraph.nodeId(edge.getDirEdge(0).getToNode())	});
+        }
+    }
+
+
+    /**
+     * Works out travel times from every LSOA centroid to every response
+     * facility and to every other LSOA, at serviceAreaSpeed over the roads as
+     * they are now. The matrices are cached in travelTimeDirectory, so a
+     * scenario that has been run before is loaded rather than searched again;
+     * the LSOA to facility times are also written out as CSV.
+     */
+    public void computeTravelTimes()	{
+        // snap each LSOA's centroid to its nearest junction
+        Bag areas = world.getGeometries();
+        ArrayList<String> lsoaNames = new ArrayList<String>();
+        Coordinate[] centroids = new Coordinate[areas.numObjs];
+        for (int i = 0; i < areas.numObjs; i++)	{
+            MasonGeometry area = (MasonGeometry) areas.objs[i];
+            centroids[i] = area.getGeometry().getCentroid().getCoordinate();
+            lsoaNames.add(area.hasAttribute(lsoaCodeAttribute)
+                ? area.getStringAttribute(lsoaCodeAttribute) : "LSOA" + i);
+        }
+        Node[] snapped = junctionIndex.nearest(centroids, maxCentroidSnap);
+        ArrayList<int[]> lsoaJunctions = new ArrayList<int[]>();
+        int offNetwork = 0;
+        for (Node n : snapped)	{
+            if (n == null)	{
+                offNetwork++;
+                lsoaJunctions.add(new int[0]);
+            }
+            else	{
+                lsoaJunctions.add(new int[] {routingGraph.nodeId(n)});
+            }
+        }
+        if (offNetwork > 0)	{
+            System.out.println(offNetwork + " LSOA centroids are more than " +maxCentroidSnap
+            		+ " from any junction");
+        }
+
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<int[]> junctions = new ArrayList<int[]>();
+        facilityJunctions(names, junctions);
+
+        TravelTimes engine = new TravelTimes(routingGraph, serviceAreaSpeed * 1000 / 60);
+        engine.setCacheDirectory(new File(travelTimeDirectory));
+        try	{
+            long start = System.currentTimeMillis();
+            TravelTimeMatrix toFacilities = engine.matrix("lsoa-facility",
+                lsoaNames, lsoaJunctions, names, junctions);
+            toFacilities.writeCsv(new File(travelTimeDirectory, "lsoa-facility.csv"));
+            TravelTimeMatrix betweenAreas = engine.matrix("lsoa-lsoa",
+                lsoaNames, lsoaJunctions, lsoaNames, lsoaJunctions);
+            System.out.println("Travel times for " +lsoaNames.size() + " LSOAs to "
+            		+ names.size() + " facilities and each other in "
+            		+ (System.currentTimeMillis() - start) + " ms: " +toFacilities.getFile()
+            		+ ", " +betweenAreas.getFile());
+        }
+        catch (IOException e)	{
+            System.out.println("Error: could not write travel times: " +e.getMessage());
+        }
+    }
+
+
+    /**
+     * @return a fingerprint of what agents' trips depend on besides the
+     * network: the population files, the goals, and how many routes each trip
+     * is spread over
+     */
+    long demandFingerprint()	{
+        CRC32 crc = new CRC32();
+        String[] files = {"/NorfolkITNAGENT.csv", "/NorfolkITNNGO.csv",
+        		"/NorfolkITNELDERLY.csv", "/NorfolkITNLIMITED.csv"};
+        byte[] buffer = new byte[1 << 16];
+        for (String file : files)	{
+            try	{
+                InputStream in = MK_5.class.getResourceAsStream(file);
+                try	{
+                    int n;
+                    while ((n = in.read(buffer)) > 0)	{
+                        crc.update(buffer, 0, n);
+                    }
+                }
+                finally	{
+                    in.close();
+                }
+            }
+            catch (Exception e)	{
+                crc.update(file.getBytes());
+            }
+        }
+        String goalList = Arrays.toString(goals) + Arrays.toString(goals1)
+        		+ Arrays.toString(goals2) + Arrays.toString(goals3) + alternativeRoutes;
+        crc.update(goalList.getBytes());
+        return crc.getValue();
+    }
+
+
+    /**
+     * Loads the routes saved by an earlier run of this network and
+     * population, if there are any that still apply, and starts recording the
+     * routes handed out so they can be saved afterwards. Each save goes to a
+     * new file, numbered on from the last, since the one loaded stays memory
+     * mapped and on some systems cannot be replaced.
+     * @return the file the routes are to be saved to
+     */
+    File openRouteStore()	{
+        String prefix = routeStorePrefix();
+        File latest = null;
+        int generation = -1;
+        File[] saved = new File(routeStoreDirectory).listFiles();
+        if (saved != null)	{
+            for (File f : saved)	{
+                int g = routeStoreGeneration(f, prefix);
+                if (g > generation)	{
+                    generation = g;
+                    latest = f;
+                }
+            }
+        }
+        if (latest != null)	{
+            try	{
+                RouteStore store = RouteStore.load(latest);
+                if (planner.useRouteStore(store))	{
+                    System.out.println("Reusing " +store.getTripCount() + " trips from " +latest);
+                }
+                else	{
+                    System.out.println("Saved routes " +latest
+                    		+ " were found with different road costs or closures");
+                }
+            }
+            catch (IOException e)	{
+                System.out.println("Error: could not read saved routes: " +e.getMessage());
+            }
+        }
+        planner.setRecordTrips(true);
+        return new File(routeStoreDirectory, prefix + "-" + (generation + 1) + ".rst");
+    }
+
+
+    /**
+     * @return the start of the names of the route stores for this network and
+     * population
+     */
+    String routeStorePrefix()	{
+        return "routes-" + Long.toHexString(routingGraph.fingerprint()) + "-"
+        		+ Long.toHexString(demandFingerprint());
+    }
+
+
+    /**
+     * @return which save of the route stores with the given prefix a file
+     * is, or -1 if it is not one of them
+     */
+    static int routeStoreGeneration(File file, String prefix)	{
+        String name = file.getName();
+        if (!name.startsWith(prefix + "-") || !name.endsWith(".rst"))	{
+            return -1;
+        }
+        try	{
+            return Integer.parseInt(name.substring(prefix.length() + 1, name.length() - 4));
+        }
+        catch (NumberFormatException e)	{
+            return -1;
+        }
+    }
+
+
+    /**
+     * Saves the routes handed out during population, unless every one of
+     * them came from the saved routes already, and clears out the earlier
+     * saves it replaces
+     */
+    void saveRouteStore(File file)	{
+        if (planner.getStoreHits() > 0 && planner.getStoreMisses() == 0)	{
+            System.out.println("All " +planner.getStoreHits() + " trips answered from saved routes");
+        }
+        else	{
+            try	{
+                if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())	{
+                    throw new IOException("cannot create " +file.getParentFile());
+                }
+                int trips = planner.saveRoutes(file, demandFingerprint());
+                System.out.println("Saved " +trips + " trips to " +file);
+                String prefix = routeStorePrefix();
+                for (File f : file.getParentFile().listFiles())	{
+                    // one still mapped is left for the next save to remove
+                    if (!f.equals(file) && routeStoreGeneration(f, prefix) >= 0)	{
+                        f.delete();
+                    }
+                }
+            }
+            catch (IOException e)	{
+                System.out.println("Error: could not save routes: " +e.getMessage());
+            }
+        }
+        planner.setRecordTrips(false);
+    }
+
+
+    void redrawServiceAreas()	{
+        if (showServiceAreas && routingGraph != null)	{
+            computeServiceAreas();
+        }
+    }
+
+
+    /**
+     * Records that an agent could not start because its goal cannot be
+     * reached from its origin; reported per goal by printUnreachable()
+     * @param goal the agent's goal node
+     * @param origin the agent's home tract
+     */
+    public void noteUnreachable(Node goal, String origin)	{
+        HashMap<String, Integer> origins = unreachable.get(goal);
+        if (origins == null)	{
+            origins = new HashMap<String, Integer>();
+            unreachable.put(goal, origins);
+        }
+        Integer count = origins.get(origin);
+        origins.put(origin, count == null ? 1 : count + 1);
+    }
+
+
+    /**
+     * Prints one line per goal that some agents could not reach, with how
+     * many agents from how many origins were dropped
+     */
+    public void printUnreachable()	{
+        for (Node goal : unreachable.keySet())	{
+            HashMap<String, Integer> origins = unreachable.get(goal);
+            int agentCount = 0;
+            for (int count : origins.values())	{
+                agentCount += count;
+            }
+            System.out.println("Goal at " +goal.getCoordinate() + " cannot be reached by "
+            		+ agentCount + " agents from " +origins.size() + " origins: "
+            		+ origins.keySet());
+        }
+        unreachable.clear();
+    }
+
+
+    /**
+     * Adds an agent travelling from the start of one road to the end of
+     * another, or notes that it cannot
+     */
+    void addAgent(AgentProfile profile, String homeTract,
+    		GeomPlanarGraphEdge startingEdge, GeomPlanarGraphEdge goalEdge)	{
+        Node homeNode = startingEdge.getDirEdge(0).getFromNode();
+        Node workNode = goalEdge.getDirEdge(0).getToNode();
+        if (agentStore.add(profile, homeNode, workNode) < 0)	{
+            noteUnreachable(workNode, homeTract);
+        }
+    }
+
+
     /**
      * Read in the population files and create appropriate populations
      * @param filename
@@ -502,29 +1087,7 @@ public class MK_5 extends SimState	{
 
                 for (int i = 0; i < pop; i++)	{
                 	//pop; i++)	{ 	// NO IDEA IF THIS MAKES A DIFFERENCE!?!
-                    agents.MainAgent a = new agents.MainAgent(this, homeTract, workTract, startingEdge, goalEdge);
-                    /*System.out.println(
-                    		"Main Agent " + i + ":	" 
-            				+ " Home: " +homeTract + ";	"
-                    		+ "	Work: " +workTract + ";	"
-                    		//+ " Starting Edge: " +startingEdge + ";"
-                    		+ "	Pop: " +pop + ";	"
-                    		+ "	id_id: " +id_id + ";	"
-                    		+ "	Road_ID: " +ROAD_ID);*/
-                    boolean successfulStart = a.start(this);
-                    //System.out.println("Starting...");
-
-                    if (!successfulStart)	{
-                    	System.out.println("Main agents added successfully!!");
-                    	continue; // DON'T ADD IT if it's bad
-                    }
-
-                    // MasonGeometry newGeometry = new MasonGeometry(a.getGeometry());
-                    MasonGeometry newGeometry = a.getGeometry();
-                    newGeometry.isMovable = true;
-                    agents.addGeometry(newGeometry);
-                    agentList.add(a);
-                    schedule.scheduleRepeating(a);
+                    addAgent(AgentProfile.MAIN, homeTract, startingEdge, goalEdge);
                 }
             }
 
@@ -579,27 +1142,7 @@ public class MK_5 extends SimState	{
 
                 for (int i = 0; i < pop; i++)	{
                 	//pop; i++)	{ 	// NO IDEA IF THIS MAKES A DIFFERENCE!?!
-                    agents.NGOAgent a = new agents.NGOAgent(this, homeTract, workTract, startingEdge, goalEdge);
-                    /*System.out.println(
-                    		"NGO Agent " + i + ":	" 
-            				+ " Home: " +homeTract + ";	"
-                    		+ "	Work: " +workTract + ";	"
-                    		//+ " Starting Edge: " +startingEdge + ";"
-                    		+ "	Pop: " +pop + ";	"
-                    		+ "	id_id: " +id_id + ";	"
-                    		+ "	Road_ID: " +ROAD_ID);*/
-                    boolean successfulStart = a.start(this);
-
-                    if (!successfulStart)	{
-                    	System.out.println("NGO agents added successfully!!");
-                    	continue; // DON'T ADD IT if it's bad
-                    }
-
-                    MasonGeometry newGeometry = a.getGeometry();
-                    newGeometry.isMovable = true;
-                    ngoagents.addGeometry(newGeometry);
-                    ngoAgentList.add(a);
-                    schedule.scheduleRepeating(a);
+                    addAgent(AgentProfile.NGO, homeTract, startingEdge, goalEdge);
                 }
             }
 
@@ -653,27 +1196,7 @@ public class MK_5 extends SimState	{
 
                 for (int i = 0; i < pop; i++)	{
                 	//pop; i++)	{ 	// NO IDEA IF THIS MAKES A DIFFERENCE!?!
-                    agents.ElderlyAgent a = new agents.ElderlyAgent(this, homeTract, workTract, startingEdge, goalEdge);
-                    /*System.out.println(
-                    		"Elderly Agent " + i + ":	" 
-            				+ " Home: " +homeTract + ";	"
-                    		+ "	Work: " +workTract + ";	"
-                    		//+ " Starting Edge: " +startingEdge + ";"
-                    		+ "	Pop: " +pop + ";	"
-                    		+ "	id_id: " +id_id + ";	"
-                    		+ "	Road_ID: " +ROAD_ID);*/
-                    boolean successfulStart = a.start(this);
-
-                    if (!successfulStart)	{
-                    	System.out.println("Elderly agents added successfully!");
-                    	continue; // DON'T ADD IT if it's bad
-                    }
-
-                    MasonGeometry newGeometry = a.getGeometry();
-                    newGeometry.isMovable = true;
-                    elderlyagents.addGeometry(newGeometry);
-                    elderlyAgentList.add(a);
-                    schedule.scheduleRepeating(a);
+                    addAgent(AgentProfile.ELDERLY, homeTract, startingEdge, goalEdge);
                 }
             }
 
@@ -727,27 +1250,7 @@ public class MK_5 extends SimState	{
 
                 for (int i = 0; i < pop; i++)	{
                 	//pop; i++)	{ 	// NO IDEA IF THIS MAKES A DIFFERENCE!?!
-                    LimitedActionsAgent a = new LimitedActionsAgent(this, homeTract, workTract, startingEdge, goalEdge);
-                    /*System.out.println(
-                    		"Limited Actions Agent " + i + ":	" 
-            				+ " Home: " +homeTract + ";	"
-                    		+ "	Work: " +workTract + ";	"
-                    		//+ " Starting Edge: " +startingEdge + ";"
-                    		+ "	Pop: " +pop + ";	"
-                    		+ "	id_id: " +id_id + ";	"
-                    		+ "	Road_ID: " +ROAD_ID);*/
-                    boolean successfulStart = a.start(this);
-
-                    if (!successfulStart)	{
-                    	System.out.println("Limited Actions agents successfully added!");
-                    	continue; // DON'T ADD IT if it's bad
-                    }
-
-                    MasonGeometry newGeometry = a.getGeometry();
-                    newGeometry.isMovable = true;
-                    limitedactionsagents.addGeometry(newGeometry);
-                    limitedActionsAgentList.add(a);
-                    schedule.scheduleRepeating(a);
+                    addAgent(AgentProfile.LIMITED_ACTIONS, homeTract, startingEdge, goalEdge);
                 }
             }
 
@@ -776,6 +1279,10 @@ public class MK_5 extends SimState	{
 
         while (nodeIterator.hasNext())	{
             Node node = (Node) nodeIterator.next();
+            if (planner.getChains() != null
+            		&& planner.getChains().isInterior(routingGraph.nodeId(node)))	{
+                continue;	// just joins two links of the same road
+            }
             coord = node.getCoordinate();
             point = fact.createPoint(coord);
 
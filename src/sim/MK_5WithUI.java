@@ -1,9 +1,6 @@
 package sim;
 
-import agents.ElderlyAgent;
-import agents.LimitedActionsAgent;
-import agents.MainAgent;
-import agents.NGOAgent;
+import agents.AgentStore;
 import org.jfree.data.xy.XYSeries;
 import sim.display.Console;
 import sim.display.Controller;
@@ -44,6 +41,7 @@ public class MK_5WithUI extends GUIState	{
     private GeomVectorFieldPortrayal roadsPortrayal = new GeomVectorFieldPortrayal();
     private GeomVectorFieldPortrayal flood3Portrayal = new GeomVectorFieldPortrayal();
     private GeomVectorFieldPortrayal flood2Portrayal = new GeomVectorFieldPortrayal();
+    private GeomVectorFieldPortrayal serviceAreaPortrayal = new GeomVectorFieldPortrayal();
     //private GeomVectorFieldPortrayal HouseholdsFZPortrayal = new GeomVectorFieldPortrayal();
     //private GeomVectorFieldPortrayal HouseholdsPortrayal = new GeomVectorFieldPortrayal();
     private GeomVectorFieldPortrayal agentPortrayal = new GeomVectorFieldPortrayal();
@@ -134,59 +132,13 @@ public class MK_5WithUI extends GUIState	{
 				public void step(SimState state)	{
                 	sim.MK_5 world = (sim.MK_5) state;
                     double maxS = 0, minS = 10000, avgS = 0, count = 0;
-                    /////////////// Main Agent ///////////////////////
-                    for (MainAgent a : world.agentList)	{
-                        if (a.reachedDestination)	{
+                    AgentStore agents = world.agentStore;
+                    for (int i = 0; i < agents.size(); i++)	{
+                        if (agents.hasArrived(i))	{
                             continue;
                         }
                         count++;
-                        double speed = Math.abs(a.speed);
-                        avgS += speed;
-                        if (speed > maxS)	{
-                            maxS = speed;
-                        }
-                        if (speed < minS)	{
-                            minS = speed;
-                        }
-                    }
-
-                    /////////////// NGO Agent /////////////////////
-                    for (NGOAgent b : world.ngoAgentList)	{
-                        if (b.reachedDestination)	{
-                            continue;
-                        }
-                        count++;
-                        double speed = Math.abs(b.speed);
-                        avgS += speed;
-                        if (speed > maxS)	{
-                            maxS = speed;
-                        }
-                        if (speed < minS)	{
-                            minS = speed;
-                        }
-                    }
-                    /////////////// Elderly Agent ////////////////////
-                    for (ElderlyAgent c : world.elderlyAgentList)	{
-                        if (c.reachedDestination)	{
-                            continue;
-                        }
-                        count++;
-                        double speed = Math.abs(c.speed);
-                        avgS += speed;
-                        if (speed > maxS)	{
-                            maxS = speed;
-                        }
-                        if (speed < minS)	{
-                            minS = speed;
-                        }
-                    }
-                    /////////////// Limited Actions Agent ////////////////////
-                    for (LimitedActionsAgent d : world.limitedActionsAgentList)	{
-                        if (d.reachedDestination)	{
-                            continue;
-                        }
-                        count++;
-                        double speed = Math.abs(d.speed);
+                        double speed = Math.abs(agents.getSpeed(i));
                         avgS += speed;
                         if (speed > maxS)	{
                             maxS = speed;
@@ -219,6 +171,9 @@ public class MK_5WithUI extends GUIState	{
 
             flood2Portrayal.setField(world.flood2);
             flood2Portrayal.setPortrayalForAll(new GeomPortrayal(Color.BLUE, true));
+
+            serviceAreaPortrayal.setField(world.serviceAreaHulls);
+            serviceAreaPortrayal.setPortrayalForAll(new GeomPortrayal(new Color(0, 160, 0, 60), true));
             
             //HouseholdsFZPortrayal.setField(world.HouseholdsFZ);
             //HouseholdsFZPortrayal.setPortrayalForAll(new GeomPortrayal(Color.YELLOW, 50, true));
@@ -316,6 +271,7 @@ public class MK_5WithUI extends GUIState	{
             display.attach(polyPortrayal, "LSOA");
             display.attach(flood2Portrayal, "FZ2 Zone");
             display.attach(flood3Portrayal, "FZ3 Zone");
+            display.attach(serviceAreaPortrayal, "Service Areas");
             //display.attach(HouseholdsPortrayal, "Households not in FZ");
             //display.attach(HouseholdsFZPortrayal, "Households in FZ");
             display.attach(roadsPortrayal, "Roads");
@@ -0,0 +1,148 @@
+package utilities;
+
+/**
+ * A static 2-d tree over a fixed set of points, for nearest-neighbour
+ * queries. Points are referred to by their index in the arrays the tree was
+ * built from.
+ *
+ * The tree is stored implicitly: the point splitting each range of the
+ * permutation sits at the middle of that range, so no node objects are
+ * needed.
+ */
+public class KdTree {
+
+	final double [] x, y;
+	// point indices, arranged so that each range's median splits it
+	final int [] order;
+
+	/**
+	 * @param x - x coordinates of the points
+	 * @param y - y coordinates of the points, in the same order
+	 */
+	public KdTree(double [] x, double [] y){
+		this.x = x;
+		this.y = y;
+		order = new int [x.length];
+		for(int i = 0; i < order.length; i++)
+			order[i] = i;
+		build(0, order.length, true);
+	}
+
+	void build(int lo, int hi, boolean vertical){
+		if(hi - lo < 2)
+			return;
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, vertical);
+		build(lo, mid, !vertical);
+		build(mid + 1, hi, !vertical);
+	}
+
+	/**
+	 * Partially sorts order[lo..hi] so that position k holds the point that would be there
+	 * if the range were sorted along the given axis
+	 */
+	void select(int lo, int hi, int k, boolean vertical){
+		double [] c = vertical ? x : y;
+		while(hi > lo){
+			double pivot = c[order[(lo + hi) >>> 1]];
+			int i = lo, j = hi;
+			while(i <= j){
+				while(c[order[i]] < pivot) i++;
+				while(c[order[j]] > pivot) j--;
+				if(i <= j){
+					int t = order[i]; order[i] = order[j]; order[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if(k <= j) hi = j;
+			else if(k >= i) lo = i;
+			else return;
+		}
+	}
+
+	public int size(){
+		return order.length;
+	}
+
+	/**
+	 * @return the index of the point nearest (qx, qy), or -1 if the tree is empty
+	 */
+	public int nearest(double qx, double qy){
+		int [] best = new int [1];
+		double [] bestDistance = new double [1];
+		nearest(qx, qy, 1, best, bestDistance);
+		return order.length == 0 ? -1 : best[0];
+	}
+
+	/**
+	 * @return the distance from (qx, qy) to the nearest point, or infinity if the tree is empty
+	 */
+	public double nearestDistance(double qx, double qy){
+		int [] best = new int [1];
+		double [] bestDistance = new double [1];
+		if(nearest(qx, qy, 1, best, bestDistance) == 0)
+			return Double.POSITIVE_INFINITY;
+		return Math.sqrt(bestDistance[0]);
+	}
+
+	/**
+	 * Finds the k points nearest (qx, qy)
+	 * @param k - how many points to find
+	 * @param out - receives the point indices, nearest first; must have room for k
+	 * @param squaredDistances - receives their squared distances, or may be null
+	 * @return the number of points found, which is less than k only if the tree is smaller
+	 */
+	public int nearest(double qx, double qy, int k, int [] out, double [] squaredDistances){
+		double [] d = squaredDistances != null ? squaredDistances : new double [k];
+		if(k <= 0 || order.length == 0)
+			return 0;
+		return search(0, order.length, true, qx, qy, k, out, d, 0);
+	}
+
+	/**
+	 * Visits the range [lo, hi), keeping the best points found so far sorted in out/d
+	 * @return the number of entries now in out
+	 */
+	int search(int lo, int hi, boolean vertical, double qx, double qy, int k,
+			int [] out, double [] d, int found){
+		if(hi <= lo)
+			return found;
+		int mid = (lo + hi) >>> 1;
+		int p = order[mid];
+		double dx = x[p] - qx, dy = y[p] - qy;
+		found = offer(p, dx * dx + dy * dy, k, out, d, found);
+
+		// descend into the side holding the query first, then the other side if it could
+		// still hold something nearer than the worst point kept
+		double split = vertical ? qx - x[p] : qy - y[p];
+		if(split < 0){
+			found = search(lo, mid, !vertical, qx, qy, k, out, d, found);
+			if(found < k || split * split < d[found - 1])
+				found = search(mid + 1, hi, !vertical, qx, qy, k, out, d, found);
+		}
+		else {
+			found = search(mid + 1, hi, !vertical, qx, qy, k, out, d, found);
+			if(found < k || split * split < d[found - 1])
+				found = search(lo, mid, !vertical, qx, qy, k, out, d, found);
+		}
+		return found;
+	}
+
+	/**
+	 * Inserts a candidate into the sorted list of the best k
+	 */
+	int offer(int p, double distance, int k, int [] out, double [] d, int found){
+		if(found == k && distance >= d[k - 1])
+			return found;
+		int i = found < k ? found++ : k - 1;
+		while(i > 0 && d[i - 1] > distance){
+			out[i] = out[i - 1];
+			d[i] = d[i - 1];
+			i--;
+		}
+		out[i] = p;
+		d[i] = distance;
+		return found;
+	}
+}